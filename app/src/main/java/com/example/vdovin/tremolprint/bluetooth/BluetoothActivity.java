@@ -9,14 +9,17 @@ import android.content.Intent;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
 import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
 import android.view.KeyEvent;
 import android.view.View;
 import android.widget.Button;
 import android.widget.Toast;
 
 import com.example.vdovin.tremolprint.R;
+import com.example.vdovin.tremolprint.protocol.tremol.ZFPAsync;
 import com.example.vdovin.tremolprint.protocol.tremol.ZFPException;
 import com.example.vdovin.tremolprint.protocol.tremol.ZFPLib;
+import com.example.vdovin.tremolprint.protocol.tremol.ZFPReceipt;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -27,6 +30,7 @@ import java.util.UUID;
 
 public class BluetoothActivity extends AppCompatActivity implements View.OnClickListener {
 
+    private static final String TAG = BluetoothActivity.class.getSimpleName();
     private static final UUID APP_UUID = UUID.fromString("0000110E-0000-1000-8000-00805F9B34FB");
     private static final int REQUEST_ENABLE_BT = 1;
     private static final int REQUEST_DEVICE = 2;
@@ -36,7 +40,7 @@ public class BluetoothActivity extends AppCompatActivity implements View.OnClick
     private BluetoothSocket mBtSocket;
     private BluetoothAdapter bluetoothAdapter;
 
-    private ZFPLib tremolPrint;
+    private ZFPAsync tremolPrint;
 
     private Button print;
 
@@ -125,7 +129,7 @@ public class BluetoothActivity extends AppCompatActivity implements View.OnClick
                     socket.connect();
                     final InputStream inputStream = socket.getInputStream();
                     final OutputStream outputStream = socket.getOutputStream();
-                    tremolPrint = new ZFPLib(inputStream, outputStream);
+                    tremolPrint = new ZFPAsync(new ZFPLib(inputStream, outputStream));
                     postToast(CONNECTED);
                 } catch (IOException e) {
                     try {
@@ -143,7 +147,7 @@ public class BluetoothActivity extends AppCompatActivity implements View.OnClick
 
                         final InputStream inputStream = fallbackSocket.getInputStream();
                         final OutputStream outputStream = fallbackSocket.getOutputStream();
-                        tremolPrint = new ZFPLib(inputStream, outputStream);
+                        tremolPrint = new ZFPAsync(new ZFPLib(inputStream, outputStream));
                         postToast(CONNECTED);
 
                     } catch (IOException | NoSuchMethodException e1) {
@@ -159,6 +163,7 @@ public class BluetoothActivity extends AppCompatActivity implements View.OnClick
 
     public synchronized void disconnect() {
         if (tremolPrint != null) {
+            tremolPrint.close();
             tremolPrint = null;
         }
 
@@ -209,12 +214,25 @@ public class BluetoothActivity extends AppCompatActivity implements View.OnClick
     public void onClick(View v) {
 
         try {
-            tremolPrint.openFiscalBon(1, "0", false, false);
-            tremolPrint.sellFree("Test article", '1', 2.34f, 1.0f, 0.0f);
-            tremolPrint.sellFree("Test article2", '1', 1.0f, 3.54f, 0.0f);
-            float sum = tremolPrint.calcIntermediateSum(false, false, false, 0.0f, '0');
-            tremolPrint.payment(sum, 0, false);
-            tremolPrint.closeFiscalBon();
+            ZFPReceipt receipt = new ZFPReceipt()
+                    .openFiscalBon(1, "0", false, false)
+                    .sellFree("Test article", '1', 2.34f, 1.0f, 0.0f)
+                    .sellFree("Test article2", '1', 1.0f, 3.54f, 0.0f);
+            // pay exactly what the articles sum up to
+            receipt.payment(receipt.getTotalAmount(), 0, false)
+                    .closeFiscalBon();
+            // printed on the printer thread, the UI thread is never blocked
+            tremolPrint.printReceipt(receipt, new ZFPAsync.Callback<ZFPReceipt>() {
+                @Override
+                public void onResult(ZFPReceipt result) {
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    Log.e(TAG, "Receipt failed", e);
+                    postToast("FiscalPrinterException: " + e.getMessage());
+                }
+            });
         } catch (ZFPException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,328 @@
+/*
+ * ZFPAmount.java
+ *
+ */
+
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/** ZFPAmount is an exact decimal number - prices, quantities, sums and percents
+ *  used by the Zeka FP commands. The value is <code>unscaled / 10^scale</code>,
+ *  e.g. 2.34 is stored as 234 with scale 2. Rounding is half up (away from zero).
+ *  A result which does not fit the long throws ArithmeticException.
+ */
+public final class ZFPAmount implements Comparable<ZFPAmount> {
+
+    /** Maximal supported scale */
+    public static final int MAX_SCALE = 9;
+
+    public static final ZFPAmount ZERO = new ZFPAmount(0, 0);
+
+    protected static final long[] POW10 = {
+            1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L,
+            1000000000L, 10000000000L, 100000000000L, 1000000000000L, 10000000000000L,
+            100000000000000L, 1000000000000000L, 10000000000000000L, 100000000000000000L,
+            1000000000000000000L};
+
+    private final long m_unscaled;
+    private final int m_scale;
+
+    private ZFPAmount(long unscaled, int scale) {
+        m_unscaled = unscaled;
+        m_scale = scale;
+    }
+
+    /** Creates an amount from minor units
+     *  @param unscaled the value in minor units
+     *  @param scale number of decimals (0 to {@link #MAX_SCALE})
+     *  @return the amount
+     */
+    public static ZFPAmount valueOf(long unscaled, int scale) {
+        if ((0 > scale) || (MAX_SCALE < scale))
+            throw new IllegalArgumentException("scale " + scale);
+        return new ZFPAmount(unscaled, scale);
+    }
+
+    /** Creates an amount from a whole number
+     *  @param value the value
+     *  @return the amount
+     */
+    public static ZFPAmount valueOf(long value) {
+        return new ZFPAmount(value, 0);
+    }
+
+    /** Creates an amount from a binary floating point number
+     *  @param value the value
+     *  @param scale number of decimals to keep, the rest is rounded half up
+     *  @return the amount
+     *  @throws NumberFormatException if the value is not a number or too large
+     */
+    public static ZFPAmount valueOf(double value, int scale) {
+        if (Double.isNaN(value) || Double.isInfinite(value))
+            throw new NumberFormatException(Double.toString(value));
+        BigDecimal exact = new BigDecimal(Double.toString(value)).setScale(scale, RoundingMode.HALF_UP);
+        // longValueExact() needs API level 19
+        if (63 < exact.unscaledValue().bitLength())
+            throw new NumberFormatException(Double.toString(value));
+        return valueOf(exact.unscaledValue().longValue(), scale);
+    }
+
+    /** Parses an amount like "-12.340", surrounding spaces and a leading '+' are allowed
+     *  @param s the text
+     *  @return the amount with as many decimals as the text has
+     *  @throws NumberFormatException if the text is not a decimal number
+     */
+    public static ZFPAmount parse(String s) {
+        int off = 0;
+        int end = s.length();
+        while ((off < end) && (' ' >= s.charAt(off)))
+            off++;
+        while ((end > off) && (' ' >= s.charAt(end - 1)))
+            end--;
+
+        long value = 0;
+        int scale = -1;
+        boolean minus = false;
+        boolean any = false;
+        for (int i = off; i < end; i++) {
+            char c = s.charAt(i);
+            if (('0' <= c) && ('9' >= c)) {
+                if ((MAX_SCALE < scale + 1) || ((Long.MAX_VALUE - (c - '0')) / 10 < value))
+                    throw new NumberFormatException(s);
+                value = value * 10 + (c - '0');
+                any = true;
+                if (0 <= scale)
+                    scale++;
+            } else if ((('.' == c) || (',' == c)) && (0 > scale)) {
+                scale = 0;
+            } else if ((('-' == c) || ('+' == c)) && (i == off)) {
+                minus = '-' == c;
+            } else
+                throw new NumberFormatException(s);
+        }
+        if (!any)
+            throw new NumberFormatException(s);
+
+        return new ZFPAmount(minus ? -value : value, Math.max(scale, 0));
+    }
+
+    /** Parses an amount directly from ASCII bytes, e.g. a Zeka FP response
+     *  @param buf the buffer
+     *  @param off offset of the text
+     *  @param len length of the text
+     *  @return the amount
+     *  @throws NumberFormatException if the text is not a decimal number
+     */
+    public static ZFPAmount parse(byte[] buf, int off, int len) {
+        int end = off + len;
+        while ((off < end) && (' ' >= buf[off]))
+            off++;
+        while ((end > off) && (' ' >= buf[end - 1]))
+            end--;
+
+        long value = 0;
+        int scale = -1;
+        boolean minus = false;
+        boolean any = false;
+        for (int i = off; i < end; i++) {
+            byte c = buf[i];
+            if (('0' <= c) && ('9' >= c)) {
+                if ((MAX_SCALE < scale + 1) || ((Long.MAX_VALUE - (c - '0')) / 10 < value))
+                    throw new NumberFormatException(new String(buf, off, end - off));
+                value = value * 10 + (c - '0');
+                any = true;
+                if (0 <= scale)
+                    scale++;
+            } else if ((('.' == c) || (',' == c)) && (0 > scale)) {
+                scale = 0;
+            } else if ((('-' == c) || ('+' == c)) && (i == off)) {
+                minus = '-' == c;
+            } else
+                throw new NumberFormatException(new String(buf, off, end - off));
+        }
+        if (!any)
+            throw new NumberFormatException(new String(buf, off, end - off));
+
+        return new ZFPAmount(minus ? -value : value, Math.max(scale, 0));
+    }
+
+    /** Gets the value in minor units
+     *  @return the unscaled value
+     */
+    public long getUnscaledValue() {
+        return m_unscaled;
+    }
+
+    /** Gets the number of decimals
+     *  @return the scale
+     */
+    public int getScale() {
+        return m_scale;
+    }
+
+    /** Gets the sign
+     *  @return -1, 0 or 1
+     */
+    public int signum() {
+        return (0 < m_unscaled) ? 1 : ((0 > m_unscaled) ? -1 : 0);
+    }
+
+    /** Gets the value in minor units of another scale, rounded half up
+     *  @param scale the scale
+     *  @return the unscaled value in the given scale
+     */
+    public long toUnits(int scale) {
+        return rescale(m_unscaled, m_scale, scale);
+    }
+
+    /** Changes the number of decimals, rounded half up
+     *  @param scale the new scale
+     *  @return the amount with the given scale
+     */
+    public ZFPAmount setScale(int scale) {
+        if (scale == m_scale)
+            return this;
+        return valueOf(toUnits(scale), scale);
+    }
+
+    public ZFPAmount negate() {
+        return new ZFPAmount(-m_unscaled, m_scale);
+    }
+
+    public ZFPAmount abs() {
+        return (0 > m_unscaled) ? negate() : this;
+    }
+
+    public ZFPAmount add(ZFPAmount other) {
+        int scale = Math.max(m_scale, other.m_scale);
+        return new ZFPAmount(addUnits(toUnits(scale), other.toUnits(scale)), scale);
+    }
+
+    public ZFPAmount subtract(ZFPAmount other) {
+        return add(other.negate());
+    }
+
+    /** Multiplies two amounts
+     *  @param other the multiplier
+     *  @param scale scale of the result, rounded half up
+     *  @return the product
+     *  @throws ArithmeticException if the product does not fit
+     */
+    public ZFPAmount multiply(ZFPAmount other, int scale) {
+        return valueOf(rescale(multiplyUnits(m_unscaled, other.m_unscaled), m_scale + other.m_scale, scale), scale);
+    }
+
+    /** Gets a percentage of the amount
+     *  @param percent the percent
+     *  @param scale scale of the result, rounded half up
+     *  @return amount * percent / 100
+     *  @throws ArithmeticException if the product does not fit
+     */
+    public ZFPAmount percent(ZFPAmount percent, int scale) {
+        return valueOf(rescale(multiplyUnits(m_unscaled, percent.m_unscaled), m_scale + percent.m_scale + 2, scale), scale);
+    }
+
+    public float floatValue() {
+        return (float) doubleValue();
+    }
+
+    public double doubleValue() {
+        return (double) m_unscaled / POW10[m_scale];
+    }
+
+    @Override
+    public int compareTo(ZFPAmount other) {
+        if (m_scale == other.m_scale)
+            return (m_unscaled < other.m_unscaled) ? -1 : ((m_unscaled == other.m_unscaled) ? 0 : 1);
+
+        int scale = Math.max(m_scale, other.m_scale);
+        long a = m_unscaled;
+        long b = other.m_unscaled;
+        long fa = POW10[scale - m_scale];
+        long fb = POW10[scale - other.m_scale];
+        // compare the whole parts first so that the rescaling cannot overflow
+        long wa = a / POW10[m_scale];
+        long wb = b / POW10[other.m_scale];
+        if (wa != wb)
+            return (wa < wb) ? -1 : 1;
+        long ra = (a % POW10[m_scale]) * fa;
+        long rb = (b % POW10[other.m_scale]) * fb;
+        return (ra < rb) ? -1 : ((ra == rb) ? 0 : 1);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return (o instanceof ZFPAmount) && (0 == compareTo((ZFPAmount) o));
+    }
+
+    @Override
+    public int hashCode() {
+        long v = m_unscaled;
+        int s = m_scale;
+        while ((0 < s) && (0 == v % 10)) {
+            v /= 10;
+            s--;
+        }
+        return (int) (v ^ (v >>> 32)) * 31 + s;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder res = new StringBuilder(24);
+        long v = m_unscaled;
+        if (0 > v)
+            res.append('-');
+        String digits = Long.toString(Math.abs(v));
+        if (digits.length() <= m_scale) {
+            res.append("0.");
+            for (int i = digits.length(); i < m_scale; i++)
+                res.append('0');
+            res.append(digits);
+        } else if (0 < m_scale) {
+            res.append(digits, 0, digits.length() - m_scale);
+            res.append('.');
+            res.append(digits, digits.length() - m_scale, digits.length());
+        } else
+            res.append(digits);
+        return res.toString();
+    }
+
+    /** Converts minor units between scales, rounded half up */
+    protected static long rescale(long value, int from, int to) {
+        if (from == to)
+            return value;
+        if (from < to)
+            return multiplyUnits(value, POW10[to - from]);
+        if (POW10.length <= from - to) {
+            // 10^19 does not fit a long, only the values from its half up round to one
+            if (POW10.length < from - to)
+                return 0;
+            return (5000000000000000000L <= value) ? 1 : ((-5000000000000000000L >= value) ? -1 : 0);
+        }
+
+        long div = POW10[from - to];
+        long q = value / div;
+        long r = Math.abs(value % div);
+        if (r >= div - r)
+            q += (0 > value) ? -1 : 1;
+        return q;
+    }
+
+    /** Adds minor units, Math.addExact() needs API level 24 */
+    protected static long addUnits(long a, long b) {
+        long sum = a + b;
+        if (0 > ((a ^ sum) & (b ^ sum)))
+            throw new ArithmeticException("amount overflow");
+        return sum;
+    }
+
+    /** Multiplies minor units, Math.multiplyExact() needs API level 24 */
+    protected static long multiplyUnits(long a, long b) {
+        long product = a * b;
+        if ((0 != a) && ((product / a != b) || ((-1 == a) && (Long.MIN_VALUE == b))))
+            throw new ArithmeticException("amount overflow");
+        return product;
+    }
+}
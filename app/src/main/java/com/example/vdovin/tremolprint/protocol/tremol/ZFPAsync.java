@@ -0,0 +1,294 @@
+/*
+ * ZFPAsync.java
+ *
+ */
+
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.LockSupport;
+
+/** ZFPAsync lets any thread use one {@link ZFPLib} without blocking.
+ *  The commands are put into a lock-free queue and executed one by one by a single
+ *  thread owned by this object, so the frames of different callers never interleave.
+ *  Each command gives a <code>Future</code> and can optionally report to a {@link Callback}.
+ *  The texts for the external display go to a {@link ZFPDisplay} instead of the queue, they are
+ *  sent only while no other command is waiting. The same idle gaps keep the snapshot of
+ *  {@link ZFPStatusMonitor} fresh, so the status can be checked without a round trip.
+ *  When the ZFPLib has a {@link ZFPJournal}, {@link #recoverReceipt(Callback)} or {@link #dropReceipt(Callback)}
+ *  decide about an interrupted receipt. With {@link ZFPLib#setAutoRecover(boolean)} the first idle gap
+ *  reads the status and so recovers a receipt left by an earlier run, and a later refresh one
+ *  interrupted by a power down.
+ *  <pre>
+ *  ZFPAsync zfp = new ZFPAsync(new ZFPLib(input, output));
+ *  zfp.printReceipt(receipt, new ZFPAsync.Callback&lt;ZFPReceipt&gt;() { ... });
+ *  </pre>
+ */
+public class ZFPAsync {
+
+    /** A command executed on the printer thread */
+    public interface Command<T> {
+        T execute(ZFPLib zfp) throws ZFPException;
+    }
+
+    /** Receives the result of a command, on the printer thread unless the command is cancelled.
+     *  A RuntimeException thrown by the callback is ignored.
+     */
+    public interface Callback<T> {
+        void onResult(T result);
+
+        void onError(Exception e);
+    }
+
+    protected final ZFPLib m_zfp;
+    protected final ConcurrentLinkedQueue<FutureTask<?>> m_queue;
+    protected final ZFPDisplay m_display;
+    protected final ZFPStatusMonitor m_statusMonitor;
+    protected final Thread m_worker;
+    protected volatile boolean m_running;
+
+    /** Creates a new instance of ZFPAsync and starts its printer thread
+     *  @param zfp the printer, it must not be used directly afterwards
+     */
+    public ZFPAsync(ZFPLib zfp) {
+        m_zfp = zfp;
+        m_queue = new ConcurrentLinkedQueue<FutureTask<?>>();
+        m_display = new ZFPDisplay();
+        m_statusMonitor = new ZFPStatusMonitor();
+        m_running = true;
+        m_worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, "ZFPAsync");
+        m_worker.setDaemon(true);
+        m_worker.start();
+    }
+
+    /** Queues a command
+     *  @param cmd the command
+     *  @return the pending result, <code>get()</code> throws <code>ExecutionException</code>
+     *          with the <code>ZFPException</code> as the cause when the command fails
+     */
+    public <T> Future<T> submit(Command<T> cmd) {
+        return submit(cmd, null);
+    }
+
+    /** Queues a command
+     *  @param cmd the command
+     *  @param callback receives the result, may be null
+     *  @return the pending result
+     */
+    public <T> Future<T> submit(final Command<T> cmd, final Callback<T> callback) {
+        FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                try {
+                    return cmd.execute(m_zfp);
+                } catch (ZFPException e) {
+                    // the printer may be in trouble, read its status in the next gap
+                    m_statusMonitor.invalidate();
+                    throw e;
+                }
+            }
+        }) {
+            @Override
+            protected void done() {
+                if (null != callback)
+                    report(this, callback);
+            }
+        };
+
+        m_queue.offer(task);
+        if (m_running)
+            LockSupport.unpark(m_worker);
+        else
+            task.cancel(false);
+        return task;
+    }
+
+    /** Gets Zeka FP status
+     *  @see ZFPLib#getStatus()
+     */
+    public Future<ZFPStatus> getStatus(Callback<ZFPStatus> callback) {
+        return submit(new Command<ZFPStatus>() {
+            @Override
+            public ZFPStatus execute(ZFPLib zfp) throws ZFPException {
+                ZFPStatus status = zfp.getStatus();
+                m_statusMonitor.update(status);
+                return status;
+            }
+        }, callback);
+    }
+
+    /** Gets information about the current receipt
+     *  @see ZFPLib#getCurrentReceiptInfo()
+     */
+    public Future<ZFPReceiptInfo> getCurrentReceiptInfo(Callback<ZFPReceiptInfo> callback) {
+        return submit(new Command<ZFPReceiptInfo>() {
+            @Override
+            public ZFPReceiptInfo execute(ZFPLib zfp) throws ZFPException {
+                return zfp.getCurrentReceiptInfo();
+            }
+        }, callback);
+    }
+
+    /** Prints a whole receipt
+     *  @return the pending result, the receipt itself when it is printed
+     *  @see ZFPLib#printReceipt(ZFPReceipt)
+     */
+    public Future<ZFPReceipt> printReceipt(final ZFPReceipt receipt, Callback<ZFPReceipt> callback) {
+        return submit(new Command<ZFPReceipt>() {
+            @Override
+            public ZFPReceipt execute(ZFPLib zfp) throws ZFPException {
+                zfp.printReceipt(receipt);
+                return receipt;
+            }
+        }, callback);
+    }
+
+    /** Completes or voids the receipt the journal holds as interrupted
+     *  @return the pending result, one of the results of {@link ZFPJournal}
+     *  @see ZFPLib#recoverReceipt()
+     */
+    public Future<Integer> recoverReceipt(Callback<Integer> callback) {
+        return submit(new Command<Integer>() {
+            @Override
+            public Integer execute(ZFPLib zfp) throws ZFPException {
+                return zfp.recoverReceipt();
+            }
+        }, callback);
+    }
+
+    /** Forgets the receipt the journal holds as interrupted
+     *  @return the pending result, true when a receipt was pending
+     *  @see ZFPLib#dropReceipt()
+     */
+    public Future<Boolean> dropReceipt(Callback<Boolean> callback) {
+        return submit(new Command<Boolean>() {
+            @Override
+            public Boolean execute(ZFPLib zfp) {
+                return zfp.dropReceipt();
+            }
+        }, callback);
+    }
+
+    /** Gets the status monitor, its snapshot is read without blocking */
+    public ZFPStatusMonitor getStatusMonitor() {
+        return m_statusMonitor;
+    }
+
+    /** Gets the display channel, e.g. to change its flush interval */
+    public ZFPDisplay getDisplay() {
+        return m_display;
+    }
+
+    /** Shows a text on the first line of the external display once the printer is idle.
+     *  A text which is replaced before it is sent is never sent.
+     *  @see ZFPLib#displayLine1(String)
+     */
+    public void displayLine1(String line) {
+        m_display.setLine1(line);
+        LockSupport.unpark(m_worker);
+    }
+
+    /** Shows a text on the second line of the external display once the printer is idle
+     *  @see ZFPLib#displayLine2(String)
+     */
+    public void displayLine2(String line) {
+        m_display.setLine2(line);
+        LockSupport.unpark(m_worker);
+    }
+
+    /** Shows a text on both lines of the external display once the printer is idle
+     *  @see ZFPLib#display(String)
+     */
+    public void display(String text) {
+        m_display.setText(text);
+        LockSupport.unpark(m_worker);
+    }
+
+    /** Clears the external display once the printer is idle
+     *  @see ZFPLib#displayClear()
+     */
+    public void displayClear() {
+        m_display.clear();
+        LockSupport.unpark(m_worker);
+    }
+
+    /** Stops the printer thread after the current command and cancels the queued ones.
+     *  The wrapped {@link ZFPLib} is closed as well.
+     */
+    public void close() {
+        m_running = false;
+        LockSupport.unpark(m_worker);
+    }
+
+    protected void work() {
+        while (m_running) {
+            FutureTask<?> task = m_queue.poll();
+            if (null != task) {
+                task.run();
+                continue;
+            }
+
+            // the display and the status only get the printer when no command is waiting
+            long now = System.nanoTime();
+            long displayDelay = m_display.getFlushDelay(now);
+            long statusDelay = m_statusMonitor.getRefreshDelay(now);
+            if (0 == displayDelay) {
+                try {
+                    m_display.flush(m_zfp);
+                } catch (ZFPException e) {
+                    // sent again by the next flush
+                }
+            } else if (0 == statusDelay) {
+                try {
+                    m_statusMonitor.refresh(m_zfp);
+                } catch (ZFPException e) {
+                    // kept in the monitor, tried again after the interval
+                }
+            } else if ((0 < displayDelay) || (0 < statusDelay)) {
+                LockSupport.parkNanos(this, (0 > displayDelay) ? statusDelay
+                        : (0 > statusDelay) ? displayDelay : Math.min(displayDelay, statusDelay));
+            } else {
+                // submit() and the display setters unpark after their change, so a wakeup cannot be lost
+                LockSupport.park(this);
+            }
+        }
+
+        FutureTask<?> task;
+        while (null != (task = m_queue.poll()))
+            task.cancel(false);
+        m_zfp.close();
+    }
+
+    protected static <T> void report(Future<T> task, Callback<T> callback) {
+        try {
+            callback.onResult(task.get());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            onError(callback, (cause instanceof Exception) ? (Exception) cause : e);
+        } catch (CancellationException e) {
+            onError(callback, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            // thrown by onResult, it must not kill the printer thread
+        }
+    }
+
+    protected static <T> void onError(Callback<T> callback, Exception e) {
+        try {
+            callback.onError(e);
+        } catch (RuntimeException ignored) {
+            // thrown by the callback, it must not kill the printer thread
+        }
+    }
+}
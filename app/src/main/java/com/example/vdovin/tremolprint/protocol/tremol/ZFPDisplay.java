@@ -0,0 +1,175 @@
+/*
+ * ZFPDisplay.java
+ *
+ */
+
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+/** ZFPDisplay collects the texts for the external display of Zeka FP and sends only what changed.
+ *  Setting a line only stores it, a later text for the same line replaces the one not sent yet.
+ *  {@link #flush(ZFPLib)} sends the lines which differ from what the display shows, both lines
+ *  in one command when both changed, and nothing when the display is up to date.
+ *  The texts can be set from any thread. {@link ZFPAsync} flushes them when it has no other
+ *  command to execute and at most once per interval, so the display never delays a receipt.
+ */
+public class ZFPDisplay {
+
+    /** Characters per line */
+    public static final int WIDTH = 20;
+    /** Default minimum time between two flushes in milliseconds */
+    public static final long DEFAULT_INTERVAL = 200;
+
+    protected static final int LINES = 2;
+
+    // the latest text of each line, trailing spaces removed
+    protected final String[] m_pending;
+    // what the display shows, null when unknown
+    protected final String[] m_shown;
+    protected long m_interval;
+    protected long m_lastFlush;
+
+    /** Creates a new instance of ZFPDisplay, the content of the display is unknown */
+    public ZFPDisplay() {
+        m_pending = new String[LINES];
+        m_shown = new String[LINES];
+        m_interval = DEFAULT_INTERVAL;
+    }
+
+    /** Sets the minimum time between two flushes
+     *  @param interval interval in milliseconds, 0 flushes whenever the printer is idle
+     */
+    public synchronized void setInterval(long interval) {
+        m_interval = Math.max(interval, 0);
+    }
+
+    public synchronized long getInterval() {
+        return m_interval;
+    }
+
+    /** Sets the text of the first line, truncated to 20 characters */
+    public synchronized void setLine1(String line) {
+        m_pending[0] = normalize(line, 0);
+    }
+
+    /** Sets the text of the second line, truncated to 20 characters */
+    public synchronized void setLine2(String line) {
+        m_pending[1] = normalize(line, 0);
+    }
+
+    /** Sets the text of both lines, the first 20 characters go to the first line */
+    public synchronized void setText(String text) {
+        m_pending[0] = normalize(text, 0);
+        m_pending[1] = normalize(text, WIDTH);
+    }
+
+    /** Clears both lines */
+    public synchronized void clear() {
+        m_pending[0] = "";
+        m_pending[1] = "";
+    }
+
+    /** Forgets what the display shows, e.g. after the printer was restarted.
+     *  The next flush sends the lines again.
+     */
+    public synchronized void invalidate() {
+        for (int i = 0; i < LINES; i++) {
+            if (null == m_pending[i])
+                m_pending[i] = m_shown[i];
+            m_shown[i] = null;
+        }
+    }
+
+    /** Tells if a line differs from what the display shows */
+    public synchronized boolean isPending() {
+        for (int i = 0; i < LINES; i++)
+            if (changed(i))
+                return true;
+        return false;
+    }
+
+    /** Gets the time until the next flush is due
+     *  @param now the current time in terms of <code>System.nanoTime()</code>
+     *  @return nanoseconds to wait, 0 when the flush is due, -1 when nothing changed
+     */
+    public synchronized long getFlushDelay(long now) {
+        if (!isPending())
+            return -1;
+        long left = m_lastFlush + m_interval * 1000000L - now;
+        return (0 < left) ? left : 0;
+    }
+
+    /** Sends the changed lines
+     *  @param zfp the printer, the call must not overlap other commands on it
+     *  @throws ZFPException in case of communication error, the lines are sent again by the next flush
+     */
+    public void flush(ZFPLib zfp) throws ZFPException {
+        String line1;
+        String line2;
+        synchronized (this) {
+            m_lastFlush = System.nanoTime();
+            line1 = changed(0) ? m_pending[0] : null;
+            line2 = changed(1) ? m_pending[1] : null;
+            m_pending[0] = null;
+            m_pending[1] = null;
+        }
+        if ((null == line1) && (null == line2))
+            return;
+
+        try {
+            if ((null != line1) && (null != line2)) {
+                if ((0 == line1.length()) && (0 == line2.length()))
+                    zfp.displayClear();
+                else
+                    zfp.display(pad(line1) + line2);
+            } else if (null != line1) {
+                zfp.displayLine1(line1);
+            } else {
+                zfp.displayLine2(line2);
+            }
+        } catch (ZFPException e) {
+            synchronized (this) {
+                // the display may show anything now, a newer text wins
+                restore(0, line1);
+                restore(1, line2);
+            }
+            throw e;
+        }
+
+        synchronized (this) {
+            if (null != line1)
+                m_shown[0] = line1;
+            if (null != line2)
+                m_shown[1] = line2;
+        }
+    }
+
+    protected boolean changed(int i) {
+        return (null != m_pending[i]) && !m_pending[i].equals(m_shown[i]);
+    }
+
+    protected void restore(int i, String line) {
+        if (null == line)
+            return;
+        m_shown[i] = null;
+        if (null == m_pending[i])
+            m_pending[i] = line;
+    }
+
+    // the part of the text shown on one line, without the trailing spaces which make no difference
+    protected static String normalize(String text, int from) {
+        if (null == text)
+            text = "";
+        int end = Math.min(text.length(), from + WIDTH);
+        while ((end > from) && (' ' == text.charAt(end - 1)))
+            end--;
+        return (end > from) ? text.substring(from, end) : "";
+    }
+
+    protected static String pad(String line) {
+        StringBuilder s = new StringBuilder(WIDTH);
+        s.append(line);
+        while (WIDTH > s.length())
+            s.append(' ');
+        return s.toString();
+    }
+}
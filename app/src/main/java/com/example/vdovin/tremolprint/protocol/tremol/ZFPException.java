@@ -24,6 +24,9 @@ public class ZFPException extends Exception {
      */
     public static final int ZFP_LANG_EN = 0;
 
+    /** Error code, -1 when the exception has none */
+    protected int m_error = -1;
+
     /**
      * Creates a new instance of <code>ZFPException</code> without detail message.
      */
@@ -51,6 +54,15 @@ public class ZFPException extends Exception {
      */
     public ZFPException(int error, int lang) {
         super(getErrorString(error, lang));
+        m_error = error;
+    }
+
+    /**
+     * Return the error code given to the constructor
+     * @return the error code or -1 when there is none, e.g. for I/O errors
+     */
+    public int getErrorCode() {
+        return m_error;
     }
     
     /**
@@ -136,6 +148,10 @@ public class ZFPException extends Exception {
                 data.append("��������� ����������!");
                 break;
 
+            case 0x10F:
+                data.append("в журнала има прекъснат бон!");
+                break;
+
             default:
                 data.append("��������� ������!");
                 break;
@@ -320,6 +336,10 @@ public class ZFPException extends Exception {
                 data.append("invalid device found!");
                 break;
 
+            case 0x10F:
+                data.append("an interrupted receipt is pending in the journal!");
+                break;
+
             default:
                 data.append("unknown error!");
                 break;
@@ -0,0 +1,228 @@
+/*
+ * ZFPFrameDecoder.java
+ *
+ */
+
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/** ZFPFrameDecoder recognizes what Zeka FP sends while the bytes arrive.
+ *  The transport pushes every received chunk into {@link #feed(byte[], int, int)},
+ *  for example straight from a USB read callback. Single byte answers are reported
+ *  at once, frames are collected up to ETX with the CRC computed on the way.
+ *  {@link ZFPLib} takes the results with {@link #next(byte[], long)}.
+ */
+public class ZFPFrameDecoder {
+
+    /** Nothing arrived before the deadline */
+    public static final int NONE = 0;
+    /** A frame starting with ACK or STX and a correct CRC */
+    public static final int FRAME = 1;
+    /** A frame with a wrong CRC */
+    public static final int BAD_CRC = 2;
+    /** A frame which is too short or does not fit the buffer */
+    public static final int BAD_FRAME = 3;
+    /** NACK, the printer did not accept the frame */
+    public static final int NACK = 4;
+    /** The antiecho byte came back */
+    public static final int ANTIECHO = 5;
+    /** RETRY, the printer asks for the frame again */
+    public static final int RETRY = 6;
+    /** Answer to a 0x04 or 0x05 ping, the byte is the data */
+    public static final int PING = 7;
+
+    protected static final int FRAME_SIZE = 256;
+    protected static final int QUEUE_SIZE = 8;
+
+    // the frame being collected
+    protected final byte[] m_frame;
+    protected int m_len;
+    protected byte m_crc;
+    protected long m_frameStart;
+
+    // results not taken yet
+    protected final int[] m_kinds;
+    protected final byte[][] m_data;
+    protected final int[] m_lens;
+    protected final long[] m_starts;
+    protected int m_head;
+    protected int m_count;
+    protected long m_dropped;
+    protected int m_lastLen;
+    protected long m_lastStart;
+    protected IOException m_error;
+    protected boolean m_closed;
+
+    /** Creates a new instance of ZFPFrameDecoder */
+    public ZFPFrameDecoder() {
+        m_frame = new byte[FRAME_SIZE];
+        m_kinds = new int[QUEUE_SIZE];
+        m_lens = new int[QUEUE_SIZE];
+        m_starts = new long[QUEUE_SIZE];
+        m_data = new byte[QUEUE_SIZE][FRAME_SIZE];
+    }
+
+    /** Decodes received bytes
+     *  @param buf the bytes
+     *  @param off offset of the first byte
+     *  @param len number of bytes
+     */
+    public synchronized void feed(byte[] buf, int off, int len) {
+        for (int i = off; i < off + len; i++)
+            decode(buf[i]);
+    }
+
+    /** Decodes the remaining bytes of a buffer, its position is left unchanged */
+    public synchronized void feed(ByteBuffer buf) {
+        for (int i = buf.position(); i < buf.limit(); i++)
+            decode(buf.get(i));
+    }
+
+    /** Takes the next result waiting until the deadline
+     *  @param dst receives the frame or the single byte, at least 256 bytes
+     *  @param deadline deadline in terms of <code>System.nanoTime()</code>
+     *  @return one of the result kinds, {@link #NONE} when the deadline has passed
+     *  @throws IOException when the transport failed or the decoder is closed
+     */
+    public synchronized int next(byte[] dst, long deadline) throws IOException {
+        while (0 == m_count) {
+            if (null != m_error)
+                throw m_error;
+            if (m_closed)
+                throw new IOException("decoder closed");
+
+            long left = deadline - System.nanoTime();
+            if (0 >= left)
+                return NONE;
+            try {
+                wait(left / 1000000L, (int) (left % 1000000L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for fiscal printer response");
+            }
+        }
+
+        int kind = m_kinds[m_head];
+        m_lastLen = m_lens[m_head];
+        m_lastStart = m_starts[m_head];
+        System.arraycopy(m_data[m_head], 0, dst, 0, m_lastLen);
+        m_head = (m_head + 1) % QUEUE_SIZE;
+        m_count--;
+        return kind;
+    }
+
+    /** Gets the length of the frame or byte returned by the last {@link #next(byte[], long)} */
+    public synchronized int getLength() {
+        return m_lastLen;
+    }
+
+    /** Gets the time the first byte of the last result arrived
+     *  @return time in terms of <code>System.nanoTime()</code>
+     */
+    public synchronized long getStartTime() {
+        return m_lastStart;
+    }
+
+    /** Gets the number of results dropped because nobody took them */
+    public synchronized long getDroppedCount() {
+        return m_dropped;
+    }
+
+    /** Drops the results not taken yet and any partial frame */
+    public synchronized void clear() {
+        m_count = 0;
+        m_len = 0;
+    }
+
+    /** Wakes the waiting reader with the error of the transport */
+    public synchronized void fail(IOException e) {
+        if (!m_closed)
+            m_error = e;
+        notifyAll();
+    }
+
+    /** Wakes the waiting reader, it gets an <code>IOException</code> */
+    public synchronized void close() {
+        m_closed = true;
+        notifyAll();
+    }
+
+    protected void decode(byte b) {
+        if (0 < m_len) {
+            m_frame[m_len++] = b;
+            if ((byte) 0x0A == b) {
+                endFrame();
+            } else {
+                m_crc ^= b;
+                if (FRAME_SIZE == m_len) {
+                    m_len = 0;
+                    complete(BAD_FRAME, m_frame, FRAME_SIZE);
+                }
+            }
+            return;
+        }
+
+        switch (b) {
+            case 0x06: // ACK
+            case 0x02: // STX
+                m_frame[0] = b;
+                m_len = 1;
+                m_crc = 0;
+                m_frameStart = System.nanoTime();
+                break;
+            case 0x15:
+                complete(NACK, b);
+                break;
+            case 0x03:
+                complete(ANTIECHO, b);
+                break;
+            case 0x0E:
+                complete(RETRY, b);
+                break;
+            case 0x04:
+            case 0x05:
+                complete(PING, b);
+                break;
+            default:
+                // noise between answers
+                break;
+        }
+    }
+
+    protected void endFrame() {
+        int len = m_len;
+        m_len = 0;
+        if (7 > len) {
+            complete(BAD_FRAME, m_frame, len);
+            return;
+        }
+
+        // m_crc holds bytes 1 to len - 2, the CRC itself is taken out again
+        byte crc = (byte) (m_crc ^ m_frame[len - 3] ^ m_frame[len - 2]);
+        boolean ok = (m_frame[len - 3] == (byte) (((crc >> 4) & 0x0F) | 0x30))
+                && (m_frame[len - 2] == (byte) ((crc & 0x0F) | 0x30));
+        complete(ok ? FRAME : BAD_CRC, m_frame, len);
+    }
+
+    protected void complete(int kind, byte b) {
+        m_frame[0] = b;
+        m_frameStart = System.nanoTime();
+        complete(kind, m_frame, 1);
+    }
+
+    protected void complete(int kind, byte[] src, int len) {
+        if (QUEUE_SIZE == m_count) {
+            m_dropped++;
+            return;
+        }
+        int tail = (m_head + m_count) % QUEUE_SIZE;
+        m_kinds[tail] = kind;
+        m_lens[tail] = len;
+        m_starts[tail] = m_frameStart;
+        System.arraycopy(src, 0, m_data[tail], 0, len);
+        m_count++;
+        notifyAll();
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * ZFPFrameEncoder.java
+ *
+ */
+
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+import com.example.vdovin.tremolprint.protocol.sun.PrintfFormat;
+
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/** ZFPFrameEncoder writes Zeka FP frames straight into a reusable byte buffer.
+ *  The text and number fields produce the same bytes as the <code>PrintfFormat</code>
+ *  and <code>String.getBytes()</code> based code they replace, without creating
+ *  any objects. Several frames can be written one after another into the same buffer.
+ */
+public class ZFPFrameEncoder {
+
+    protected static final int FRAME_SIZE = 256;
+    protected static final long[] POW10 = ZFPAmount.POW10;
+
+    protected byte[] m_buf;
+    protected int m_pos;
+    protected int m_start;
+    protected final char m_separator;
+
+    /** Creates a new instance of ZFPFrameEncoder with room for one frame */
+    public ZFPFrameEncoder() {
+        this(FRAME_SIZE);
+    }
+
+    /** Creates a new instance of ZFPFrameEncoder
+     *  @param capacity initial buffer size in bytes, the buffer grows when needed
+     */
+    public ZFPFrameEncoder(int capacity) {
+        m_buf = new byte[Math.max(capacity, 8)];
+        // PrintfFormat localizes the decimal point of the fields it does not post-process
+        m_separator = new DecimalFormatSymbols(Locale.getDefault()).getDecimalSeparator();
+    }
+
+    /** Discards all frames */
+    public void reset() {
+        m_pos = 0;
+        m_start = 0;
+    }
+
+    /** Gets the buffer holding the frames
+     *  @return the buffer, valid until the next write
+     */
+    public byte[] getBuffer() {
+        return m_buf;
+    }
+
+    /** Gets the number of bytes written
+     *  @return offset of the end of the last frame
+     */
+    public int size() {
+        return m_pos;
+    }
+
+    /** Starts a new frame, the header is completed by {@link #end()} and {@link #seal(int, int, int)}
+     *  @param cmd command code
+     *  @return offset of the frame in the buffer
+     */
+    public int begin(byte cmd) {
+        m_start = m_pos;
+        ensure(4);
+        m_buf[m_pos++] = (byte) 0x02;   // STX
+        m_buf[m_pos++] = 0;             // LEN
+        m_buf[m_pos++] = 0;             // NBL
+        m_buf[m_pos++] = cmd;           // CMD
+        return m_start;
+    }
+
+    /** Completes the frame started by {@link #begin(byte)}, leaving room for the CRC
+     *  @return length of the frame
+     */
+    public int end() {
+        ensure(3);
+        m_buf[m_start + 1] = (byte) (m_pos - m_start - 4 + 0x20 + 0x03); // LEN
+        m_buf[m_pos++] = 0;
+        m_buf[m_pos++] = 0;
+        m_buf[m_pos++] = (byte) 0x0A;   // ETX
+        return m_pos - m_start;
+    }
+
+    /** Puts the block number and the CRC into a completed frame
+     *  @param offset offset of the frame in the buffer
+     *  @param len length of the frame
+     *  @param nbl block number
+     */
+    public void seal(int offset, int len, int nbl) {
+        m_buf[offset + 2] = (byte) nbl;
+        byte crc = 0;
+        for (int i = offset + 1; i < offset + len - 3; i++)
+            crc ^= m_buf[i];
+        m_buf[offset + len - 3] = (byte) ((crc >> 4) | 0x30);
+        m_buf[offset + len - 2] = (byte) ((crc & 0x0F) | 0x30);
+    }
+
+    /** Appends raw bytes */
+    public ZFPFrameEncoder append(byte[] data, int off, int len) {
+        ensure(len);
+        System.arraycopy(data, off, m_buf, m_pos, len);
+        m_pos += len;
+        return this;
+    }
+
+    /** Appends a character, as <code>String.getBytes()</code> would encode it */
+    public ZFPFrameEncoder append(char c) {
+        if (0x80 > c) {
+            ensure(1);
+            m_buf[m_pos++] = (byte) c;
+        } else
+            putChar(c);
+        return this;
+    }
+
+    /** Appends a string without padding */
+    public ZFPFrameEncoder append(String s) {
+        return text(s, 0, s.length());
+    }
+
+    /** Appends a flag as '1' or '0' */
+    public ZFPFrameEncoder append(boolean flag) {
+        return append(flag ? '1' : '0');
+    }
+
+    /** Appends a string left aligned and padded with spaces, like
+     *  <code>PrintfFormat("%-<i>width</i>s").sprintf(nstrcpy(s, width))</code>
+     *  @param s the string
+     *  @param width field width, longer strings are truncated
+     */
+    public ZFPFrameEncoder text(String s, int width) {
+        int len = Math.min(s.length(), width);
+        text(s, 0, len);
+        ensure(width - len);
+        for (int i = len; i < width; i++)
+            m_buf[m_pos++] = (byte) ' ';
+        return this;
+    }
+
+    /** Appends a non-negative integer padded with zeros to the width
+     *  @param value the number
+     *  @param width minimal number of digits
+     */
+    public ZFPFrameEncoder unsigned(long value, int width) {
+        int digits = 1;
+        for (long v = value / 10; 0 != v; v /= 10)
+            digits++;
+        for (int i = digits; i < width; i++)
+            append('0');
+        ensure(digits);
+        m_pos += digits;
+        for (int i = 1; i <= digits; i++) {
+            m_buf[m_pos - i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return this;
+    }
+
+    /** Appends an amount the way {@link ZFPLib#getFloatFormat(float, int)} formats it
+     *  @param num the amount
+     *  @param count number of decimals (2 or 3)
+     */
+    public ZFPFrameEncoder amount(float num, int count) {
+        int start = m_pos;
+        float max_value = (2 == count) ? 9999999.99f : 999999.999f;
+        if (max_value < num)
+            fixed(num, 0, 0, false, '.');
+        else
+            fixed(num, count, 10, true, '.');
+
+        if ((9 < m_pos - start) && ('.' == m_buf[start + 9]))
+            m_pos = start + 9;
+        return this;
+    }
+
+    /** Appends an exact amount the way {@link #amount(float, int)} formats a float
+     *  @param num the amount
+     *  @param count number of decimals (2 or 3)
+     */
+    public ZFPFrameEncoder amount(ZFPAmount num, int count) {
+        int start = m_pos;
+        ZFPAmount max_value = ZFPAmount.valueOf(999999999L, count); // 9999999.99 or 999999.999
+        if (0 < num.compareTo(max_value))
+            fixed(num, 0, 0, false, '.');
+        else
+            fixed(num, count, 10, true, '.');
+
+        if ((9 < m_pos - start) && ('.' == m_buf[start + 9]))
+            m_pos = start + 9;
+        return this;
+    }
+
+    /** Appends a percentage, like <code>PrintfFormat("%6.2f")</code> */
+    public ZFPFrameEncoder percent(float num) {
+        return fixed(num, 2, 6, false, m_separator);
+    }
+
+    /** Appends an exact percentage the way {@link #percent(float)} formats a float */
+    public ZFPFrameEncoder percent(ZFPAmount num) {
+        return fixed(num, 2, 6, false, m_separator);
+    }
+
+    /** Appends an exact number in fixed point notation, rounded half up
+     *  @see #fixed(float, int, int, boolean, char)
+     */
+    public ZFPFrameEncoder fixed(ZFPAmount num, int decimals, int width, boolean zeros, char separator) {
+        long value = num.toUnits(decimals);
+        return fixedUnits(0 > value, Math.abs(value), decimals, width, zeros, separator);
+    }
+
+    /** Appends a number in fixed point notation, like <code>PrintfFormat("%0<i>width</i>.<i>decimals</i>f")</code>
+     *  @param num the number
+     *  @param decimals number of decimals (0 to 4)
+     *  @param width minimal field width
+     *  @param zeros pads with zeros when true, with spaces when false
+     *  @param separator decimal separator
+     */
+    public ZFPFrameEncoder fixed(float num, int decimals, int width, boolean zeros, char separator) {
+        if (Float.isNaN(num) || Float.isInfinite(num) || (1.0e14f < Math.abs(num)) || (4 < decimals)) {
+            // out of the range of the fast path
+            StringBuffer fmt = new StringBuffer("%");
+            if (zeros)
+                fmt.append('0');
+            if (0 < width)
+                fmt.append(width);
+            fmt.append('.').append(decimals).append('f');
+            String res = new PrintfFormat(fmt.toString()).sprintf(num);
+            return append(('.' == separator) ? res.replace(',', '.') : res);
+        }
+
+        int bits = Float.floatToIntBits(num);
+        return fixedUnits(0 > bits, round(bits, decimals), decimals, width, zeros, separator);
+    }
+
+    protected ZFPFrameEncoder fixedUnits(boolean minus, long value, int decimals, int width,
+                                         boolean zeros, char separator) {
+        int intDigits = 1;
+        for (long v = value / POW10[decimals] / 10; 0 != v; v /= 10)
+            intDigits++;
+        int len = intDigits + ((0 < decimals) ? 1 + decimals : 0) + (minus ? 1 : 0);
+
+        if (!zeros) {
+            ensure(width - len);
+            for (int i = len; i < width; i++)
+                m_buf[m_pos++] = (byte) ' ';
+        }
+        if (minus)
+            append('-');
+        if (zeros) {
+            ensure(width - len);
+            for (int i = len; i < width; i++)
+                m_buf[m_pos++] = (byte) '0';
+        }
+        unsigned(value / POW10[decimals], 1);
+        if (0 < decimals) {
+            append(separator);
+            unsigned(value % POW10[decimals], decimals);
+        }
+        return this;
+    }
+
+    /** Rounds the absolute value of a float scaled by 10^decimals, half to even,
+     *  which is what PrintfFormat does with the digits of the widened double
+     */
+    protected static long round(int bits, int decimals) {
+        int exp = (bits >> 23) & 0xFF;
+        long mant = bits & 0x7FFFFF;
+        if (0 != exp)
+            mant |= 0x800000;
+        else
+            exp = 1;
+        int shift = exp - 150;
+
+        long scaled = mant * POW10[decimals];
+        if (0 <= shift)
+            return scaled << shift;
+
+        shift = -shift;
+        if (62 <= shift)
+            return 0;
+        long q = scaled >> shift;
+        long r = scaled & ((1L << shift) - 1);
+        long half = 1L << (shift - 1);
+        if ((half < r) || ((half == r) && (0 != (q & 1))))
+            q++;
+        return q;
+    }
+
+    protected ZFPFrameEncoder text(String s, int from, int to) {
+        ensure(to - from);
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (0x80 > c)
+                m_buf[m_pos++] = (byte) c;
+            else if (Character.isHighSurrogate(c) && (i + 1 < to) && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                ensure(4);
+                m_buf[m_pos++] = (byte) (0xF0 | (cp >> 18));
+                m_buf[m_pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                m_buf[m_pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                m_buf[m_pos++] = (byte) (0x80 | (cp & 0x3F));
+            } else
+                putChar(c);
+        }
+        return this;
+    }
+
+    // UTF-8, the default charset on Android
+    protected void putChar(char c) {
+        ensure(3);
+        if (Character.isSurrogate(c)) {
+            m_buf[m_pos++] = (byte) '?';
+        } else if (0x800 > c) {
+            m_buf[m_pos++] = (byte) (0xC0 | (c >> 6));
+            m_buf[m_pos++] = (byte) (0x80 | (c & 0x3F));
+        } else {
+            m_buf[m_pos++] = (byte) (0xE0 | (c >> 12));
+            m_buf[m_pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            m_buf[m_pos++] = (byte) (0x80 | (c & 0x3F));
+        }
+    }
+
+    protected void ensure(int len) {
+        if (m_buf.length < m_pos + len) {
+            byte[] buf = new byte[Math.max(m_buf.length * 2, m_pos + len)];
+            System.arraycopy(m_buf, 0, buf, 0, m_pos);
+            m_buf = buf;
+        }
+    }
+}
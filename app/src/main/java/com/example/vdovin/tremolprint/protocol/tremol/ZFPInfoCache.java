@@ -0,0 +1,205 @@
+/*
+ * ZFPInfoCache.java
+ *
+ */
+
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/** ZFPInfoCache keeps the responses of the Zeka FP information commands which rarely change:
+ *  version, factory and fiscal number, tax number, tax percents, payment types,
+ *  parameters, header and footer lines and operators. The decimal point is not kept, its command
+ *  0x63 also answers the number of the last receipt, which changes with every receipt.
+ *  <p>
+ *  When it is set on a {@link ZFPLib}, these commands are answered from memory after the first
+ *  time. The response frames themselves are kept, so the getters parse them as usual.
+ *  A command which changes the information drops the matching responses before it is sent,
+ *  e.g. <code>setTaxPercents</code> drops the tax percents.
+ *  <p>
+ *  The cache can be saved and loaded again after a restart. A loaded cache is used only after
+ *  the factory and fiscal number read from the printer match the saved ones, a different
+ *  printer starts with an empty cache. The operators are never saved, their response holds
+ *  the passwords.
+ */
+public class ZFPInfoCache {
+
+    /** The command whose response identifies the printer */
+    public static final byte IDENTITY = 0x60;
+
+    protected static final int MAGIC = 0x5A494331; // "ZIC1"
+    protected static final byte OPERATOR = 0x6A;
+
+    protected final boolean[] m_cached;
+    protected final byte[][] m_invalidates;
+    protected final Map<String, byte[]> m_responses;
+    protected boolean m_verified;
+    protected byte[] m_identity;
+
+    /** Creates a new empty instance of ZFPInfoCache */
+    public ZFPInfoCache() {
+        m_cached = new boolean[256];
+        m_invalidates = new byte[256][];
+        m_responses = new HashMap<String, byte[]>();
+        m_verified = true;
+
+        byte[] cached = {0x21, 0x60, 0x61, 0x62, 0x64, 0x65, 0x69, 0x6A};
+        for (byte cmd : cached)
+            m_cached[cmd] = true;
+        m_invalidates[0x40] = new byte[]{0x60};         // setSerialNumber
+        m_invalidates[0x41] = new byte[]{0x60, 0x61};   // setTaxNumber, makeFiscal
+        m_invalidates[0x42] = new byte[]{0x62};         // setTaxPercents
+        m_invalidates[0x44] = new byte[]{0x64, 0x69};   // setPayType and setClicheLine share the command
+        m_invalidates[0x45] = new byte[]{0x65};         // setParameters
+        m_invalidates[0x4A] = new byte[]{0x6A};         // setOperatorUserPass
+    }
+
+    /** Tells if the responses of a command are kept */
+    public boolean isCached(byte cmd) {
+        return m_cached[cmd & 0xFF];
+    }
+
+    /** Tells if the cache belongs to the connected printer, false after {@link #readFrom(InputStream)}
+     *  until the identity has been read from the printer
+     */
+    public synchronized boolean isVerified() {
+        return m_verified;
+    }
+
+    /** Gets a kept response
+     *  @param cmd the command byte
+     *  @param data the data of the command, may be null
+     *  @param dst receives the response frame
+     *  @return length of the frame, -1 when it is not kept
+     */
+    public synchronized int get(byte cmd, byte[] data, byte[] dst) {
+        if (!m_verified || !isCached(cmd))
+            return -1;
+        byte[] response = m_responses.get(key(cmd, data));
+        if (null == response)
+            return -1;
+        System.arraycopy(response, 0, dst, 0, response.length);
+        return response.length;
+    }
+
+    /** Keeps the response of a command
+     *  @param cmd the command byte
+     *  @param data the data of the command, may be null
+     *  @param response the response frame
+     *  @param len length of the frame
+     */
+    public synchronized void put(byte cmd, byte[] data, byte[] response, int len) {
+        if (!isCached(cmd))
+            return;
+        byte[] copy = new byte[len];
+        System.arraycopy(response, 0, copy, 0, len);
+
+        if ((IDENTITY == cmd) && !m_verified) {
+            // everything loaded belongs to another printer unless the identity matches
+            byte[] saved = m_responses.get(key(cmd, null));
+            if ((null == saved) || !sameIdentity(saved, copy))
+                m_responses.clear();
+            m_verified = true;
+        }
+        m_responses.put(key(cmd, data), copy);
+    }
+
+    /** Drops the responses a command changes, called before the command is sent
+     *  @param cmd the command byte
+     */
+    public synchronized void invalidate(byte cmd) {
+        byte[] dropped = m_invalidates[cmd & 0xFF];
+        if (null == dropped)
+            return;
+        Iterator<String> keys = m_responses.keySet().iterator();
+        while (keys.hasNext()) {
+            char c = keys.next().charAt(0);
+            for (byte d : dropped)
+                if (c == (char) (d & 0xFF))
+                    keys.remove();
+        }
+    }
+
+    /** Drops all responses, e.g. when another printer is connected */
+    public synchronized void clear() {
+        m_responses.clear();
+        m_verified = true;
+    }
+
+    /** Saves the responses, except the operators
+     *  @param out the destination
+     *  @throws IOException when writing fails
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        Map<String, byte[]> responses;
+        synchronized (this) {
+            responses = new HashMap<String, byte[]>(m_responses);
+        }
+        DataOutputStream dout = new DataOutputStream(out);
+        int count = 0;
+        for (String key : responses.keySet())
+            if (OPERATOR != (byte) key.charAt(0))
+                count++;
+        dout.writeInt(MAGIC);
+        dout.writeInt(count);
+        for (Map.Entry<String, byte[]> e : responses.entrySet()) {
+            if (OPERATOR == (byte) e.getKey().charAt(0))
+                continue;
+            dout.writeUTF(e.getKey());
+            dout.writeShort(e.getValue().length);
+            dout.write(e.getValue());
+        }
+        dout.flush();
+    }
+
+    /** Replaces the responses with saved ones, they are used once the printer is verified
+     *  @param in the source
+     *  @throws IOException when reading fails or the data is not a saved cache
+     */
+    public void readFrom(InputStream in) throws IOException {
+        DataInputStream din = new DataInputStream(in);
+        if (MAGIC != din.readInt())
+            throw new IOException("not a saved ZFPInfoCache");
+        Map<String, byte[]> responses = new HashMap<String, byte[]>();
+        for (int count = din.readInt(); 0 < count; count--) {
+            String key = din.readUTF();
+            byte[] response = new byte[din.readUnsignedShort()];
+            din.readFully(response);
+            // the file is not trusted, only what this cache would keep is taken
+            if (isCached((byte) key.charAt(0)))
+                responses.put(key, response);
+        }
+        synchronized (this) {
+            m_responses.clear();
+            m_responses.putAll(responses);
+            m_verified = false;
+        }
+    }
+
+    // the command byte as the first char, followed by the data bytes
+    protected static String key(byte cmd, byte[] data) {
+        int len = (null == data) ? 0 : data.length;
+        char[] key = new char[len + 1];
+        key[0] = (char) (cmd & 0xFF);
+        for (int i = 0; i < len; i++)
+            key[i + 1] = (char) (data[i] & 0xFF);
+        return new String(key);
+    }
+
+    // the identity frames differ only in their NBL and CRC
+    protected static boolean sameIdentity(byte[] a, byte[] b) {
+        if (a.length != b.length)
+            return false;
+        for (int i = 3; i < a.length - 3; i++)
+            if (a[i] != b[i])
+                return false;
+        return true;
+    }
+}
@@ -0,0 +1,429 @@
+/*
+ * ZFPJournal.java
+ *
+ */
+
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/** ZFPJournal is a write-ahead log of the receipts printed by {@link ZFPLib#printReceipt(ZFPReceipt)}.
+ *  All commands of a receipt are written before the first one is sent, and every command
+ *  Zeka FP acknowledged is noted right after its response. A receipt interrupted by a crash of
+ *  the application or a power down of the printer stays pending until the caller decides about it:
+ *  {@link ZFPLib#recoverReceipt()} compares it with the receipt info of the printer and sends the
+ *  missing commands or voids it, {@link ZFPLib#dropReceipt()} forgets it. With
+ *  {@link ZFPLib#setAutoRecover(boolean)} ZFPLib recovers it itself when no caller was told about it.
+ *  A command Zeka FP refused with an error code is noted as well and never sent again.
+ *  <p>
+ *  The journal is a memory mapped file, a record is copied to memory and nothing else, so it
+ *  survives the death of the process at once. It is forced to the storage after a number of
+ *  records, or by {@link #sync()}, against the loss of the whole device. Each record has a sequence
+ *  number and a CRC, the journal ends at the first record which does not follow the previous one.
+ *  Only the receipt being printed matters, a receipt which does not fit behind the previous ones
+ *  starts again at the beginning of the file.
+ *  <p>
+ *  The journal has a single writer, the thread using the ZFPLib.
+ */
+public class ZFPJournal {
+
+    /** No receipt was pending */
+    public static final int NONE = 0;
+    /** The receipt was printed normally */
+    public static final int PRINTED = 1;
+    /** Zeka FP had closed the receipt already */
+    public static final int CLOSED = 2;
+    /** The missing commands were sent */
+    public static final int REPLAYED = 3;
+    /** The sales were voided and the empty receipt closed */
+    public static final int VOIDED = 4;
+    /** The receipt open in Zeka FP does not match the journal, it was left as it is */
+    public static final int CONFLICT = 5;
+    /** Zeka FP refused a command of the receipt, what it executed was left as it is */
+    public static final int FAILED = 6;
+    /** The caller dropped the receipt */
+    public static final int DROPPED = 7;
+
+    /** Default size of the file */
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+    /** Default number of records between two syncs */
+    public static final int DEFAULT_SYNC_INTERVAL = 16;
+    /** Default age in milliseconds until which an unpaid receipt is completed instead of voided */
+    public static final long DEFAULT_REPLAY_WINDOW = 5 * 60 * 1000;
+
+    protected static final int MAGIC = 0x5A4A4E31; // "ZJN1"
+    protected static final int FILE_HEADER = 8;
+    // sequence number 4, type 1, payload length 2 ... CRC 4
+    protected static final int RECORD_HEADER = 7;
+    protected static final int RECORD_OVERHEAD = RECORD_HEADER + 4;
+
+    protected static final byte BEGIN = 1;
+    protected static final byte DONE = 2;
+    protected static final byte END = 3;
+    protected static final byte FAIL = 4;
+
+    /** The receipt was written by a recovery, it is never voided */
+    protected static final int RECOVERY = 1;
+
+    protected final MappedByteBuffer m_buffer;
+    protected final int m_capacity;
+    protected final CRC32 m_crc;
+    protected byte[] m_record;
+    protected int m_recordLen;
+    protected int m_pos;
+    protected int m_seq;
+    protected int m_syncInterval;
+    protected int m_unsynced;
+    protected long m_replayWindow;
+
+    // the pending receipt
+    protected boolean m_pending;
+    protected boolean m_orphaned;
+    protected int m_beginPos;
+    protected long m_beginTime;
+    protected int m_flags;
+    protected int m_steps;
+    protected int m_done;
+    protected int m_failed;
+
+    /** Opens a journal with the default capacity
+     *  @param file the journal file, created when it does not exist
+     *  @throws IOException when the file cannot be mapped
+     */
+    public ZFPJournal(File file) throws IOException {
+        this(file, DEFAULT_CAPACITY);
+    }
+
+    /** Opens a journal and finds the receipt which was pending when it was last used
+     *  @param file the journal file, created when it does not exist
+     *  @param capacity size of the file, the largest receipt must fit
+     *  @throws IOException when the file cannot be mapped
+     */
+    public ZFPJournal(File file, int capacity) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() > capacity)
+                capacity = (int) Math.min(raf.length(), Integer.MAX_VALUE);
+            else
+                raf.setLength(capacity);
+            // the mapping stays valid after the file is closed
+            m_buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } finally {
+            raf.close();
+        }
+        m_capacity = capacity;
+        m_crc = new CRC32();
+        m_record = new byte[256];
+        m_syncInterval = DEFAULT_SYNC_INTERVAL;
+        m_replayWindow = DEFAULT_REPLAY_WINDOW;
+        m_failed = -1;
+
+        if (MAGIC != m_buffer.getInt(0)) {
+            m_buffer.putInt(0, MAGIC);
+            m_buffer.putInt(4, capacity);
+            m_pos = FILE_HEADER;
+        } else {
+            scan();
+            m_orphaned = m_pending;
+        }
+    }
+
+    /** Sets after how many records the journal is forced to the storage
+     *  @param interval number of records, 1 forces every record, 0 leaves it to {@link #sync()}
+     */
+    public void setSyncInterval(int interval) {
+        m_syncInterval = Math.max(interval, 0);
+    }
+
+    /** Sets the age until which an interrupted receipt is completed when it is not paid yet,
+     *  an older one is voided since the customer is most probably gone
+     *  @param window age in milliseconds
+     */
+    public void setReplayWindow(long window) {
+        m_replayWindow = Math.max(window, 0);
+    }
+
+    public long getReplayWindow() {
+        return m_replayWindow;
+    }
+
+    /** Tells if a receipt was interrupted */
+    public boolean hasPending() {
+        return m_pending;
+    }
+
+    /** Tells if the pending receipt was found when the journal was opened. It was left by an
+     *  earlier run of the application, so its failure was never reported to a caller.
+     */
+    public boolean isOrphaned() {
+        return m_pending && m_orphaned;
+    }
+
+    /** Gets the number of commands of the pending receipt */
+    public int getStepCount() {
+        return m_pending ? m_steps : 0;
+    }
+
+    /** Gets the number of commands of the pending receipt Zeka FP acknowledged */
+    public int getDoneCount() {
+        return m_pending ? m_done : 0;
+    }
+
+    /** Gets the command of the pending receipt Zeka FP refused with an error code
+     *  @return the command number, -1 when no command was refused
+     */
+    public int getFailedStep() {
+        return m_pending ? m_failed : -1;
+    }
+
+    /** Gets the time the pending receipt was started
+     *  @return time in terms of <code>System.currentTimeMillis()</code>
+     */
+    public long getBeginTime() {
+        return m_beginTime;
+    }
+
+    /** Gets a command of the pending receipt
+     *  @param index the command number
+     *  @return the command byte followed by its data
+     */
+    public byte[] getStep(int index) {
+        if (!m_pending || (0 > index) || (m_steps <= index))
+            throw new IndexOutOfBoundsException(Integer.toString(index));
+        int pos = m_beginPos + RECORD_HEADER + 8 + 1 + 2;
+        for (int i = 0; i < index; i++)
+            pos += 2 + (m_buffer.getShort(pos) & 0xFFFF);
+        byte[] step = new byte[m_buffer.getShort(pos) & 0xFFFF];
+        for (int i = 0; i < step.length; i++)
+            step[i] = m_buffer.get(pos + 2 + i);
+        return step;
+    }
+
+    /** Writes all commands of a receipt before it is sent
+     *  @param receipt the receipt, its frames are encoded
+     *  @throws IOException when the receipt does not fit into the journal
+     */
+    public void begin(ZFPReceipt receipt) throws IOException {
+        int count = receipt.getStepCount();
+        byte[] frames = receipt.getFrames().getBuffer();
+        start(BEGIN);
+        putLong(System.currentTimeMillis());
+        put((byte) 0);
+        putShort(count);
+        // the command byte and the data, the NBL and the CRC are made again when it is sent
+        for (int i = 0; i < count; i++) {
+            int len = receipt.getLength(i) - 6;
+            putShort(len);
+            put(frames, receipt.getOffset(i) + 3, len);
+        }
+        begin(count);
+        m_orphaned = false;
+    }
+
+    /** Writes the commands a recovery is going to send
+     *  @param steps the commands, each one the command byte followed by its data
+     *  @param done number of commands Zeka FP executed already
+     *  @param time time of the original receipt
+     *  @throws IOException when the receipt does not fit into the journal
+     */
+    protected void begin(List<byte[]> steps, int done, long time) throws IOException {
+        start(BEGIN);
+        putLong(time);
+        put((byte) RECOVERY);
+        putShort(steps.size());
+        for (byte[] step : steps) {
+            putShort(step.length);
+            put(step, 0, step.length);
+        }
+        begin(steps.size());
+        for (int i = 0; i < done; i++)
+            done(i);
+    }
+
+    /** Notes a command acknowledged by Zeka FP, the commands are acknowledged in their order
+     *  @param step the command number
+     */
+    public void done(int step) {
+        if (!m_pending)
+            return;
+        start(DONE);
+        putShort(step);
+        append();
+        m_done = step + 1;
+    }
+
+    /** Notes a command Zeka FP refused with an error code, it is not sent by a recovery
+     *  @param step the command number
+     */
+    public void fail(int step) {
+        if (!m_pending)
+            return;
+        start(FAIL);
+        putShort(step);
+        append();
+        m_failed = step;
+    }
+
+    /** Ends the pending receipt
+     *  @param result how it ended, e.g. {@link #PRINTED}
+     */
+    public void end(int result) {
+        if (!m_pending)
+            return;
+        start(END);
+        put((byte) result);
+        append();
+        m_pending = false;
+    }
+
+    /** Forces the written records to the storage */
+    public void sync() {
+        if (0 != m_unsynced) {
+            m_buffer.force();
+            m_unsynced = 0;
+        }
+    }
+
+    protected boolean isRecovery() {
+        return 0 != (m_flags & RECOVERY);
+    }
+
+    protected void begin(int count) throws IOException {
+        // the whole receipt with all of its acknowledgements, a refusal and the end has to fit behind the begin record
+        int needed = m_recordLen + 4 + (count + 2) * (RECORD_OVERHEAD + 2);
+        if (FILE_HEADER + needed > m_capacity)
+            throw new IOException("receipt of " + count + " commands does not fit into the journal");
+        if (m_pos + needed > m_capacity)
+            m_pos = FILE_HEADER;
+
+        m_beginPos = m_pos;
+        append();
+        m_pending = true;
+        m_beginTime = m_buffer.getLong(m_beginPos + RECORD_HEADER);
+        m_flags = m_buffer.get(m_beginPos + RECORD_HEADER + 8);
+        m_steps = count;
+        m_done = 0;
+        m_failed = -1;
+    }
+
+    protected void start(byte type) {
+        m_recordLen = 0;
+        putInt(m_seq + 1);
+        put(type);
+        putShort(0);
+    }
+
+    // writes the record prepared in m_record with its length and CRC
+    protected void append() {
+        int payload = m_recordLen - RECORD_HEADER;
+        m_record[5] = (byte) (payload >> 8);
+        m_record[6] = (byte) payload;
+        m_crc.reset();
+        m_crc.update(m_record, 0, m_recordLen);
+        putInt((int) m_crc.getValue());
+
+        m_buffer.position(m_pos);
+        m_buffer.put(m_record, 0, m_recordLen);
+        m_pos += m_recordLen;
+        m_seq++;
+        if ((0 != m_syncInterval) && (++m_unsynced >= m_syncInterval))
+            sync();
+        else if (0 == m_syncInterval)
+            m_unsynced++;
+    }
+
+    // reads the records up to the first one which is broken or out of sequence
+    protected void scan() {
+        int pos = FILE_HEADER;
+        int seq = 0;
+        byte[] record = m_record;
+        while (pos + RECORD_OVERHEAD <= m_capacity) {
+            int recordSeq = m_buffer.getInt(pos);
+            int len = RECORD_HEADER + (m_buffer.getShort(pos + 5) & 0xFFFF);
+            if ((0 == recordSeq) || ((0 != seq) && (seq + 1 != recordSeq)) || (pos + len + 4 > m_capacity))
+                break;
+            if (record.length < len)
+                record = new byte[len];
+            m_buffer.position(pos);
+            m_buffer.get(record, 0, len);
+            m_crc.reset();
+            m_crc.update(record, 0, len);
+            if ((int) m_crc.getValue() != m_buffer.getInt(pos + len))
+                break;
+
+            switch (record[4]) {
+                case BEGIN:
+                    m_pending = true;
+                    m_beginPos = pos;
+                    m_beginTime = m_buffer.getLong(pos + RECORD_HEADER);
+                    m_flags = record[RECORD_HEADER + 8];
+                    m_steps = m_buffer.getShort(pos + RECORD_HEADER + 9) & 0xFFFF;
+                    m_done = 0;
+                    m_failed = -1;
+                    break;
+                case DONE:
+                    m_done = (m_buffer.getShort(pos + RECORD_HEADER) & 0xFFFF) + 1;
+                    break;
+                case FAIL:
+                    m_failed = m_buffer.getShort(pos + RECORD_HEADER) & 0xFFFF;
+                    break;
+                case END:
+                    m_pending = false;
+                    break;
+            }
+            seq = recordSeq;
+            pos += len + 4;
+        }
+        m_seq = seq;
+        m_pos = pos;
+    }
+
+    /** Gets the commands of the pending receipt */
+    protected List<byte[]> getSteps() {
+        List<byte[]> steps = new ArrayList<byte[]>(m_steps);
+        for (int i = 0; i < m_steps; i++)
+            steps.add(getStep(i));
+        return steps;
+    }
+
+    protected void put(byte b) {
+        ensure(1);
+        m_record[m_recordLen++] = b;
+    }
+
+    protected void put(byte[] b, int off, int len) {
+        ensure(len);
+        System.arraycopy(b, off, m_record, m_recordLen, len);
+        m_recordLen += len;
+    }
+
+    protected void putShort(int v) {
+        put((byte) (v >> 8));
+        put((byte) v);
+    }
+
+    protected void putInt(int v) {
+        putShort(v >> 16);
+        putShort(v);
+    }
+
+    protected void putLong(long v) {
+        putInt((int) (v >> 32));
+        putInt((int) v);
+    }
+
+    protected void ensure(int len) {
+        if (m_recordLen + len > m_record.length) {
+            byte[] record = new byte[Math.max(m_record.length * 2, m_recordLen + len)];
+            System.arraycopy(m_record, 0, record, 0, m_recordLen);
+            m_record = record;
+        }
+    }
+}
@@ -8,9 +8,13 @@ package com.example.vdovin.tremolprint.protocol.tremol;
 import com.example.vdovin.tremolprint.protocol.sun.PrintfFormat;
 
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.List;
 
 /**
  * ZFPLib is the main class responsible for communication with Zeka FP
@@ -42,8 +46,13 @@ public class ZFPLib {
      */
     public static final int ZFP_TEXTALIGNCENTER = 2;
 
-    protected final long g_timeout = 3000;
-    protected final long p_timeout = 1000;
+    protected static final ZFPAmount MIN_PRICE = ZFPAmount.valueOf(-99999999L);
+    protected static final ZFPAmount MAX_PRICE = ZFPAmount.valueOf(99999999L);
+    protected static final ZFPAmount MAX_QUANTITY = ZFPAmount.valueOf(999999999L, 3);
+    protected static final ZFPAmount MAX_SUM = ZFPAmount.valueOf(9999999999L);
+    protected static final ZFPAmount MIN_PERCENT = ZFPAmount.valueOf(-999L);
+    protected static final ZFPAmount MAX_PERCENT = ZFPAmount.valueOf(999L);
+
 
     protected OutputStream outputStream;
     protected InputStream inputStream;
@@ -51,11 +60,56 @@ public class ZFPLib {
     protected byte[] m_receiveBuf;
     protected int m_receiveLen;
     protected int m_lang;
+    protected ZFPReceiver m_receiver;
+    protected ZFPFrameDecoder m_decoder;
+    protected ZFPRetryPolicy m_retryPolicy;
+    protected ZFPMetrics m_metrics;
+    protected long m_pingTime;
+    protected ZFPTimeoutPolicy m_timeoutPolicy;
+    protected long m_deadline;
+    protected ZFPInfoCache m_infoCache;
+    protected ZFPReceiptState m_receiptState;
+    protected int m_subTotalCheck;
+    protected int m_subTotalCount;
+    protected boolean m_verifyOnClose;
+    protected ZFPJournal m_journal;
+    protected boolean m_autoRecover;
+    protected long m_lastWaitTime;
+    protected long m_sessionWindow;
+    protected long m_lastFrameTime;
+    protected boolean m_sessionAlive;
+    protected ZFPFrameEncoder m_encoder;
+    protected byte[] m_pingBuf;
 
     public ZFPLib(InputStream inputStream, OutputStream outputStream) {
         this.inputStream = inputStream;
         this.outputStream = outputStream;
         init();
+        m_receiver = new ZFPReceiver(inputStream, m_decoder);
+    }
+
+    /**
+     * Creates a ZFPLib for a transport which pushes the received bytes itself,
+     * e.g. from a USB read callback, into the decoder
+     *
+     * @param decoder decoder fed with everything received from Zeka FP
+     * @param outputStream stream to Zeka FP
+     */
+    public ZFPLib(ZFPFrameDecoder decoder, OutputStream outputStream) {
+        this.outputStream = outputStream;
+        init();
+        m_decoder = decoder;
+    }
+
+    /**
+     * Stops reading from the input stream. The streams themselves are not closed, nor is
+     * a decoder passed to the constructor: it belongs to the transport which feeds it.
+     */
+    public void close() {
+        if (null != m_receiver) {
+            m_receiver.close();
+            m_decoder.close();
+        }
     }
 
     static public String nstrcpy(String s, int maxlen) {
@@ -65,21 +119,27 @@ public class ZFPLib {
     }
 
     static public String getFloatFormat(float num, int count) {
-        float max_value = (2 == count) ? 9999999.99f : 999999.999f;
-        String match;
-        if (max_value < num)
-            match = "%.0f";
-        else {
-            match = "%010.";
-            match += Integer.toString(count);
-            match += "f";
-        }
+        ZFPFrameEncoder res = new ZFPFrameEncoder(16);
+        res.amount(num, count);
+        return new String(res.getBuffer(), 0, res.size());
+    }
+
+    static public String getAmountFormat(ZFPAmount num, int count) {
+        ZFPFrameEncoder res = new ZFPFrameEncoder(16);
+        res.amount(num, count);
+        return new String(res.getBuffer(), 0, res.size());
+    }
 
-        String res = new PrintfFormat(match).sprintf(num).replace(',', '.');
-        if ('.' == res.charAt(9))
-            return res.substring(0, 9);
+    protected static boolean inRange(ZFPAmount num, ZFPAmount min, ZFPAmount max) {
+        return (0 <= num.compareTo(min)) && (0 >= num.compareTo(max));
+    }
 
-        return res;
+    protected static ZFPAmount parseAmount(byte[] buf, int off, int len, int lang) throws ZFPException {
+        try {
+            return ZFPAmount.parse(buf, off, len);
+        } catch (NumberFormatException e) {
+            throw new ZFPException(0x106, lang);
+        }
     }
 
     /**
@@ -96,10 +156,231 @@ public class ZFPLib {
         m_lang = language;
     }
 
+    /**
+     * Return the time spent waiting for the response of the last command
+     *
+     * @return wait time in nanoseconds
+     */
+    public long getLastWaitTime() {
+        return m_lastWaitTime;
+    }
+
+    /**
+     * Return the session window
+     *
+     * @return session window in milliseconds, 0 when the session mode is off
+     * @see #setSessionWindow(long)
+     */
+    public long getSessionWindow() {
+        return m_sessionWindow;
+    }
+
+    /**
+     * Enables the session mode. While it is on, the 0x04 and 0x05 pings before a command
+     * are skipped if the previous frame was answered correctly within the window.
+     * A timeout, NACK, antiecho or bad frame ends the session and the next command
+     * makes the full ping handshake again.
+     *
+     * @param window session window in milliseconds, 0 turns the session mode off (default)
+     */
+    public void setSessionWindow(long window) {
+        m_sessionWindow = (0 < window) ? window : 0;
+        m_sessionAlive = false;
+    }
+
+    /**
+     * Return the retry policy
+     *
+     * @return the policy deciding when a failed frame is sent again
+     */
+    public ZFPRetryPolicy getRetryPolicy() {
+        return m_retryPolicy;
+    }
+
+    /**
+     * Sets the retry policy
+     *
+     * @param policy the policy, <code>ZFPRetryPolicy.NONE</code> or null turns the retries off
+     * @see ZFPRetryPolicy
+     */
+    public void setRetryPolicy(ZFPRetryPolicy policy) {
+        m_retryPolicy = (null != policy) ? policy : ZFPRetryPolicy.NONE;
+    }
+
+    /**
+     * Return the number of frames sent again
+     *
+     * @return number of resends recorded in the metrics
+     */
+    public long getRetryCount() {
+        return m_metrics.getRetryCount();
+    }
+
+    /**
+     * Return the latency and error metrics of the commands
+     *
+     * @return the metrics, <code>snapshot()</code> gives the values
+     * @see ZFPMetrics
+     */
+    public ZFPMetrics getMetrics() {
+        return m_metrics;
+    }
+
+    /**
+     * Sets the metrics the commands are recorded in, e.g. one shared by several printers
+     *
+     * @param metrics the metrics
+     */
+    public void setMetrics(ZFPMetrics metrics) {
+        m_metrics = metrics;
+    }
+
+    /**
+     * Return the timeout policy
+     *
+     * @return the policy giving the response timeout of each command
+     */
+    public ZFPTimeoutPolicy getTimeoutPolicy() {
+        return m_timeoutPolicy;
+    }
+
+    public void setTimeoutPolicy(ZFPTimeoutPolicy policy) {
+        m_timeoutPolicy = policy;
+    }
+
+    /**
+     * Sets a deadline for the following commands. A command fails with a timeout when its
+     * response has not arrived by then, even if its own timeout is longer.
+     *
+     * @param deadline deadline in terms of <code>System.nanoTime()</code>, 0 removes it
+     */
+    public void setDeadline(long deadline) {
+        m_deadline = deadline;
+    }
+
+    public long getDeadline() {
+        return m_deadline;
+    }
+
+    /**
+     * Return the information cache
+     *
+     * @return the cache, null when the information is always read from Zeka FP
+     */
+    public ZFPInfoCache getInfoCache() {
+        return m_infoCache;
+    }
+
+    /**
+     * Sets the cache the rarely changing information (version, numbers, tax percents, payment types,
+     * parameters, header lines and operators) is answered from. It is off by default.
+     *
+     * @param cache the cache, null turns it off
+     * @see ZFPInfoCache
+     */
+    public void setInfoCache(ZFPInfoCache cache) {
+        m_infoCache = cache;
+    }
+
+    /**
+     * Gets the state of the current receipt as it follows from the commands Zeka FP accepted,
+     * so void, sub total and close can be decided without reading the receipt info.
+     * The receipt info is read only the first time and after an error or a power down.
+     *
+     * @return the state, it changes with every receipt command
+     * @throws ZFPException in case of communication error while synchronizing
+     * @see ZFPReceiptState
+     */
+    public ZFPReceiptState getReceiptState() throws ZFPException {
+        if (!m_receiptState.isSynchronized())
+            getCurrentReceiptInfo();
+        return m_receiptState;
+    }
+
+    /**
+     * Makes every n-th {@link #getSubTotal()} ask Zeka FP as well, to find a drift of the local sums
+     * while the receipts go on. It is off by default.
+     *
+     * @param interval number of sub totals per check, 1 checks all of them, 0 turns the checks off
+     */
+    public void setSubTotalCheck(int interval) {
+        m_subTotalCheck = Math.max(interval, 0);
+    }
+
+    /**
+     * Sets if {@link #closeFiscalBon()} compares the change of a receipt paid with a local sub total
+     * with the change Zeka FP reports. It is on by default and costs one more frame after such receipts.
+     *
+     * @param verify true to compare, false to trust the local sums
+     */
+    public void setVerifyOnClose(boolean verify) {
+        m_verifyOnClose = verify;
+    }
+
+    /**
+     * Return the receipt journal
+     *
+     * @return the journal, null when the receipts are not journaled
+     */
+    public ZFPJournal getJournal() {
+        return m_journal;
+    }
+
+    /**
+     * Sets the journal {@link #printReceipt(ZFPReceipt)} writes every receipt to, so an interrupted
+     * receipt can be completed or voided by {@link #recoverReceipt()}, or forgotten by
+     * {@link #dropReceipt()}. It is off by default.
+     *
+     * @param journal the journal, null turns it off
+     * @see ZFPJournal
+     */
+    public void setJournal(ZFPJournal journal) {
+        m_journal = journal;
+    }
+
+    /**
+     * Sets if an interrupted receipt is recovered without the caller when nobody else decides
+     * about it: a receipt the journal found when it was opened, see {@link ZFPJournal#isOrphaned()},
+     * is recovered by {@link #printReceipt(ZFPReceipt)} before the new receipt and by
+     * {@link #getStatus()}; any pending receipt is recovered by {@link #getStatus()} once Zeka FP
+     * reports a power down, it keeps the receipt open until then. A receipt whose failure was
+     * thrown to the caller is otherwise still left to it, so printing it again is refused (0x10F)
+     * and cannot print it twice. It is off by default.
+     *
+     * @param autoRecover true to recover automatically
+     * @see #recoverReceipt()
+     */
+    public void setAutoRecover(boolean autoRecover) {
+        m_autoRecover = autoRecover;
+    }
+
+    public boolean isAutoRecover() {
+        return m_autoRecover;
+    }
+
+    protected long getDeadline(byte cmd, long start) {
+        long deadline = start + m_timeoutPolicy.getTimeout(cmd) * 1000000L;
+        if ((0 != m_deadline) && (0 > m_deadline - deadline))
+            return m_deadline;
+        return deadline;
+    }
+
+    protected boolean isSessionAlive() {
+        return m_sessionAlive && (m_sessionWindow * 1000000L > System.nanoTime() - m_lastFrameTime);
+    }
+
     protected void init() {
         m_lastNbl = 0x20;
         m_receiveBuf = new byte[256];
         m_lang = ZFPException.ZFP_LANG_EN; // default is English
+        m_decoder = new ZFPFrameDecoder();
+        m_retryPolicy = new ZFPRetryPolicy();
+        m_metrics = new ZFPMetrics();
+        m_timeoutPolicy = new ZFPTimeoutPolicy();
+        m_encoder = new ZFPFrameEncoder();
+        m_pingBuf = new byte[2];
+        m_receiptState = new ZFPReceiptState();
+        m_verifyOnClose = true;
     }
 
     protected boolean makeCRC(byte[] data, int len, int mode) {
@@ -129,32 +410,31 @@ public class ZFPLib {
     }
 
     protected boolean doPing(byte ping, int retries) throws ZFPException {
-        byte[] b = new byte[1];
+        byte[] b = m_pingBuf;
         for (int i = 0; i < retries; i++) {
             try {
                 b[0] = (byte) 0x03;  // antiecho
-                outputStream.write(b);
-
-                b[0] = ping;        // ping
-                outputStream.write(b);
-
-                b[0] = 0;
-                long start = System.currentTimeMillis();
-                do {
-                    if (0 < inputStream.available()) {
-                        inputStream.read(b);
-                        if (b[0] == (byte) 0x03) {
-                            throw new ZFPException(0x10E, m_lang);
-                        }
-                        if (b[0] == ping) {
-                            return true;
-                        }
-                        try {
-                            wait(20);
-                        } catch (Exception e) {
-                        }
+                b[1] = ping;        // ping
+                outputStream.write(b, 0, 2);
+                outputStream.flush();
+
+                long start = System.nanoTime();
+                long deadline = getDeadline(ping, start);
+                int kind;
+                while (ZFPFrameDecoder.NONE != (kind = m_decoder.next(m_receiveBuf, deadline))) {
+                    if (ZFPFrameDecoder.ANTIECHO == kind) {
+                        throw new ZFPException(0x10E, m_lang);
+                    }
+                    if ((ZFPFrameDecoder.PING == kind) && (m_receiveBuf[0] == ping)) {
+                        m_timeoutPolicy.record(ping, System.nanoTime() - start);
+                        return true;
                     }
-                } while (p_timeout > System.currentTimeMillis() - start);
+                }
+                m_timeoutPolicy.record(ping, System.nanoTime() - start);
+                if ((0 != m_deadline) && (0 >= m_deadline - System.nanoTime()))
+                    break;
+            } catch (ZFPException e) {
+                throw e;
             } catch (Exception e) {
                 throw new ZFPException(e);
             }
@@ -170,120 +450,486 @@ public class ZFPLib {
         return doPing((byte) 0x05, 10);
     }
 
-    protected void getResponse() throws ZFPException {
-        int read;
-
-        long start = System.currentTimeMillis();
+    protected void getResponse(long start, long deadline) throws ZFPException {
 
-        do {
-            try {
-                if (0 < inputStream.available()) {
-                    read = inputStream.read(m_receiveBuf, 0, 1);
-                    if (0 < read) {
-                        if ((byte) 0x06 == m_receiveBuf[0]) {  // ACK
-                            break;
-                        } else if ((byte) 0x02 == m_receiveBuf[0]) { // STX
-                            break;
-                        } else if ((byte) 0x15 == m_receiveBuf[0]) { // NACK
-                            throw new ZFPException(0x103, m_lang);
-                        } else if ((byte) 0x03 == m_receiveBuf[0]) { // ANTIECHO
-                            throw new ZFPException(0x10E, m_lang);
-                        } else if ((byte) 0x0E == m_receiveBuf[0]) { // RETRY
-                            // ToDo
-                            break;
-                        }
-                    }
+        try {
+            int kind;
+            do {
+                kind = m_decoder.next(m_receiveBuf, deadline);
+                switch (kind) {
+                    case ZFPFrameDecoder.NONE:
+                        throw new ZFPException(0x102, m_lang);
+                    case ZFPFrameDecoder.NACK:
+                    case ZFPFrameDecoder.RETRY: // the frame has to be sent again
+                        throw new ZFPException(0x103, m_lang);
+                    case ZFPFrameDecoder.ANTIECHO:
+                        throw new ZFPException(0x10E, m_lang);
+                    case ZFPFrameDecoder.BAD_CRC:
+                        throw new ZFPException(0x104, m_lang);
+                    case ZFPFrameDecoder.BAD_FRAME:
+                        throw new ZFPException(0x105, m_lang);
                 }
-            } catch (Exception e) {
-                throw new ZFPException(e);
+                // late ping answers are skipped
+            } while (ZFPFrameDecoder.FRAME != kind);
+            m_receiveLen = m_decoder.getLength();
+        } catch (ZFPException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ZFPException(e);
+        } finally {
+            m_lastWaitTime = System.nanoTime() - start;
+        }
+
+        if (((byte) 0x06 != m_receiveBuf[0]) && (m_receiveBuf[2] != (byte) m_lastNbl)) {
+            throw new ZFPException(0x10B, m_lang);
+        }
+
+        // the frame is valid, the printer is talking to us
+        m_lastFrameTime = System.nanoTime();
+        m_sessionAlive = 0 < m_sessionWindow;
+
+        if ((byte) 0x06 == m_receiveBuf[0]) {  // ACK
+            if (((byte) 0x30 != m_receiveBuf[2]) || ((byte) 0x30 != m_receiveBuf[3])) {
+                int error = Integer.parseInt(new String(m_receiveBuf, 2, 2), 16);
+                throw new ZFPException(error, m_lang);
             }
+        }
+    }
 
-            if (g_timeout < System.currentTimeMillis() - start) {
-                throw new ZFPException(0x102, m_lang);
+    protected void sendCommand(byte cmd, byte[] data) throws ZFPException {
+        ZFPInfoCache cache = m_infoCache;
+        if ((null != cache) && cache.isCached(cmd)) {
+            // a loaded cache is checked against the printer before it answers anything
+            if (!cache.isVerified() && (ZFPInfoCache.IDENTITY != cmd))
+                sendCommand(ZFPInfoCache.IDENTITY, null);
+            int len = cache.get(cmd, data, m_receiveBuf);
+            if (0 <= len) {
+                m_receiveLen = len;
+                return;
             }
+        }
+
+        m_encoder.reset();
+        m_encoder.begin(cmd);
+        if (null != data)
+            m_encoder.append(data, 0, data.length);
+        sendCommand(m_encoder.end());
+
+        if (null != cache)
+            cache.put(cmd, data, m_receiveBuf, m_receiveLen);
+    }
+
+    /**
+     * Sends the single frame prepared in m_encoder
+     */
+    protected void sendCommand(int len) throws ZFPException {
+        if (null != m_infoCache)
+            m_infoCache.invalidate(m_encoder.getBuffer()[3]);
+        handshake(m_encoder.getBuffer()[3]);
+        m_sessionAlive = false; // until a valid response arrives
+
+        m_lastNbl = nextNbl(m_lastNbl);
+        m_encoder.seal(0, len, m_lastNbl);
+        sendFrame(m_encoder.getBuffer(), 0, len);
+    }
 
+    /**
+     * Makes the ping handshake unless the session is alive. The time counts for the command which follows.
+     */
+    protected void handshake(byte cmd) throws ZFPException {
+        if (isSessionAlive())
+            return;
+
+        long start = System.nanoTime();
+        try {
+            checkForZFP();
+            checkForZFPBusy();
+        } catch (ZFPException e) {
+            m_metrics.error(cmd, e);
+            throw e;
+        }
+        m_pingTime = System.nanoTime() - start;
+        m_metrics.record(cmd, ZFPMetrics.PING, m_pingTime);
+    }
+
+    protected static int nextNbl(int nbl) {
+        return (0xFF < ++nbl) ? 0x20 : nbl;
+    }
+
+    /**
+     * Sends a sealed frame and waits for its response. A frame which fails is sent again
+     * with the same NBL as long as the retry policy allows it.
+     */
+    protected void sendFrame(byte[] frame, int off, int len) throws ZFPException {
+        byte cmd = frame[off + 3];
+        long begin = System.nanoTime();
+        long pingTime = m_pingTime;
+        m_pingTime = 0;
+        for (int retries = 0; ; retries++) {
+            long start = System.nanoTime();
             try {
-                if (0 == inputStream.available())
-                    wait(20);
+                outputStream.write(frame, off, len);
+                outputStream.flush();
             } catch (Exception e) {
+                ZFPException error = new ZFPException(e);
+                m_metrics.error(cmd, error);
+                m_receiptState.failed(cmd);
+                throw error;
             }
-        } while (true);
+            long sent = System.nanoTime();
+            m_metrics.record(cmd, ZFPMetrics.SEND, sent - start);
 
-        // read the data
-        m_receiveLen = 1;
-        int avail;
-        do {
             try {
-                avail = inputStream.available();
-            } catch (Exception e) {
-                throw new ZFPException(e);
-            }
-            if (0 < avail) {
-                try {
-                    read = inputStream.read(m_receiveBuf, m_receiveLen, 1);
-                } catch (Exception e) {
-                    throw new ZFPException(e);
+                getResponse(sent, getDeadline(cmd, sent));
+                m_timeoutPolicy.record(cmd, m_lastWaitTime);
+                // the receiver may stamp the first byte while flush() is still returning
+                m_metrics.record(cmd, ZFPMetrics.FIRST_BYTE, Math.max(m_decoder.getStartTime() - sent, 0));
+                m_metrics.record(cmd, ZFPMetrics.TOTAL, pingTime + System.nanoTime() - begin);
+                m_receiptState.apply(frame, off, len, m_receiveBuf, m_receiveLen);
+                return;
+            } catch (ZFPException e) {
+                if (-1 != e.getErrorCode())
+                    m_timeoutPolicy.record(cmd, m_lastWaitTime);
+                long delay = m_retryPolicy.getDelay(retries + 1);
+                if (!m_retryPolicy.shouldRetry(cmd, e.getErrorCode(), retries)
+                        || ((0 != m_deadline) && (m_deadline - System.nanoTime() <= delay * 1000000L))) {
+                    m_metrics.error(cmd, e);
+                    m_receiptState.failed(cmd);
+                    throw e;
                 }
-                if (0 < read) {
-                    if ((byte) 0x0A == m_receiveBuf[m_receiveLen]) {
-                        m_receiveLen += read;
-                        break;
-                    }
-                    m_receiveLen += read;
-                }
-            }
-            // timeout check
-            if (g_timeout < System.currentTimeMillis() - start) {
-                throw new ZFPException(0x102, m_lang);
+                m_metrics.retry(cmd);
+                backoff(delay, e);
             }
+        }
+    }
+
+    protected void backoff(long delay, ZFPException cause) throws ZFPException {
+        try {
+            if (0 < delay)
+                Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw cause;
+        }
+        // whatever is left of the failed answer must not be taken for the next one
+        m_decoder.clear();
+    }
+
+    /**
+     * Prints a whole receipt. All frames are encoded before the first byte is sent,
+     * then they are sent one after another, each waiting only for its own response.
+     *
+     * When the receipts are journaled, no receipt is printed while an interrupted one is pending:
+     * the caller decides about it first with {@link #recoverReceipt()} or {@link #dropReceipt()},
+     * unless it is recovered automatically, see {@link #setAutoRecover(boolean)}.
+     *
+     * @param receipt the receipt to be printed
+     * @throws ZFPException if the receipt is incorrect, an interrupted receipt is pending (0x10F)
+     *                      or in case of communication error
+     * @see ZFPReceipt
+     */
+    public void printReceipt(ZFPReceipt receipt) throws ZFPException {
+        receipt.validate(m_lang);
+
+        ZFPJournal journal = m_journal;
+        if (null != journal) {
+            if (m_autoRecover && journal.isOrphaned())
+                recoverReceipt();
+            if (journal.hasPending())
+                throw new ZFPException(0x10F, m_lang);
             try {
-                wait(20);
-            } catch (Exception e) {
+                journal.begin(receipt);
+            } catch (IOException e) {
+                throw new ZFPException(e);
             }
-        } while (true);
-
+        }
 
-        if (!makeCRC(m_receiveBuf, m_receiveLen, 1)) {
-            throw new ZFPException(0x104, m_lang);
+        long start = System.nanoTime();
+        int count = receipt.getStepCount();
+        ZFPFrameEncoder frames = receipt.getFrames();
+        int nbl = m_lastNbl;
+        for (int i = 0; i < count; i++) {
+            nbl = nextNbl(nbl);
+            frames.seal(receipt.getOffset(i), receipt.getLength(i), nbl);
         }
 
-        if ((byte) 0x06 == m_receiveBuf[0]) {  // ACK
-            if (((byte) 0x30 != m_receiveBuf[2]) || ((byte) 0x30 != m_receiveBuf[3])) {
-                int error = Integer.parseInt(new String(m_receiveBuf, 2, 2), 16);
-                throw new ZFPException(error, m_lang);
+        receipt.reset();
+        int i = 0;
+        try {
+            if (0 < count)
+                handshake(receipt.getCommand(0));
+            for (; i < count; i++) {
+                m_sessionAlive = false;
+                m_lastNbl = frames.getBuffer()[receipt.getOffset(i) + 2] & 0xFF;
+                sendFrame(frames.getBuffer(), receipt.getOffset(i), receipt.getLength(i));
+                if ((byte) 0x33 == receipt.getCommand(i))
+                    receipt.setSubTotal(parseAmount(m_receiveBuf, 4, m_receiveLen - 7, m_lang));
+                receipt.stepDone();
+                if (null != journal)
+                    journal.done(i);
             }
-        } else if (m_receiveBuf[2] != (byte) m_lastNbl) {
-            throw new ZFPException(0x10B, m_lang);
+            if (null != journal)
+                journal.end(ZFPJournal.PRINTED);
+        } catch (ZFPException e) {
+            if ((null != journal) && isPrinterError(e))
+                refused(journal, i);
+            throw e;
+        } finally {
+            receipt.setExecutionTime(System.nanoTime() - start);
         }
     }
 
-    protected void sendCommand(byte cmd, byte[] data) throws ZFPException {
-        checkForZFP();
-        checkForZFPBusy();
-
-        // prepare the command
-        int len = (null != data) ? data.length : 0;
-        byte[] fullCmd = new byte[4 + len + 3];
-        fullCmd[0] = (byte) 0x02;                // STX
-        fullCmd[1] = (byte) (len + 0x20 + 0x03); // LEN
-        if (0xFF < ++m_lastNbl)
-            m_lastNbl = 0x20;
-        fullCmd[2] = (byte) m_lastNbl;           // NBL
-        fullCmd[3] = cmd;                       // CMD
+    /**
+     * Completes or voids the receipt the journal holds as interrupted, e.g. after a power down of
+     * Zeka FP or a restart of the application. The receipt info tells which commands were executed:
+     * the rest is sent, unless the receipt is older than the replay window of the journal and not
+     * paid yet, then its sales are voided and the empty receipt is closed. A command Zeka FP refused
+     * with an error code is never sent again, the receipt is voided when it can be and otherwise
+     * left as it is. An open receipt which does not match the journal is left as it is as well.
+     * <p>
+     * It is called by this class only when the receipts are recovered automatically, otherwise the
+     * caller decides about a pending receipt, see {@link ZFPJournal#hasPending()} and
+     * {@link #setAutoRecover(boolean)}.
+     *
+     * @return what was done, one of the results of {@link ZFPJournal}
+     * @throws ZFPException in case of communication error, the receipt stays pending
+     * @see ZFPJournal
+     * @see #dropReceipt()
+     */
+    public int recoverReceipt() throws ZFPException {
+        ZFPJournal journal = m_journal;
+        if ((null == journal) || !journal.hasPending())
+            return ZFPJournal.NONE;
+
+        List<byte[]> steps = journal.getSteps();
+        int done = journal.getDoneCount();
+        boolean refused = 0 <= journal.getFailedStep();
+        // the receipt info does not tell the operator, it is known only from an acknowledged opening
+        int operator = m_receiptState.getOperator();
+        ZFPReceiptInfo info = getCurrentReceiptInfo();
+        if (!info.isOpenReceipt()) {
+            // not opened at all, or closed before the close was noted
+            if (0 != done) {
+                journal.end(ZFPJournal.CLOSED);
+                return ZFPJournal.CLOSED;
+            }
+            replay(journal, steps, 0);
+            journal.end(ZFPJournal.REPLAYED);
+            return ZFPJournal.REPLAYED;
+        }
 
-        if (null != data)
-            System.arraycopy(data, 0, fullCmd, 4, len);
+        int executed = getExecutedSteps(steps, done, refused, info);
+        if ((0 > executed) || !isSameReceipt(steps, executed, done, operator, info)) {
+            journal.end(ZFPJournal.CONFLICT);
+            return ZFPJournal.CONFLICT;
+        }
 
-        makeCRC(fullCmd, fullCmd.length, 0);
-        fullCmd[fullCmd.length - 1] = (byte) 0x0A; // ETX
+        if (refused || (System.currentTimeMillis() - journal.getBeginTime() > journal.getReplayWindow())) {
+            if (!info.isPaymentStarted() && !info.getVoidStatus() && !journal.isRecovery()) {
+                voidReceipt(journal, steps, executed);
+                journal.end(ZFPJournal.VOIDED);
+                return ZFPJournal.VOIDED;
+            }
+            if (refused) {
+                journal.end(ZFPJournal.FAILED);
+                return ZFPJournal.FAILED;
+            }
+        }
+
+        replay(journal, steps, executed);
+        journal.end(ZFPJournal.REPLAYED);
+        return ZFPJournal.REPLAYED;
+    }
+
+    /**
+     * Forgets the receipt the journal holds as interrupted, e.g. when it was finished by hand.
+     * Nothing is sent to Zeka FP.
+     *
+     * @return true when a receipt was pending
+     * @see #recoverReceipt()
+     */
+    public boolean dropReceipt() {
+        ZFPJournal journal = m_journal;
+        if ((null == journal) || !journal.hasPending())
+            return false;
+        journal.end(ZFPJournal.DROPPED);
+        return true;
+    }
 
+    /**
+     * Registers the executed sales again with the opposite amount, pays the zero sum and closes
+     * the receipt. The commands are journaled as a recovery, which is never voided.
+     */
+    protected void voidReceipt(ZFPJournal journal, List<byte[]> steps, int executed) throws ZFPException {
+        List<byte[]> voided = new ArrayList<byte[]>(steps.subList(0, executed));
+        for (int i = 0; i < executed; i++)
+            if (isSale(steps.get(i)))
+                voided.add(storno(steps.get(i)));
+        m_encoder.reset();
+        int len = encodePayment(m_encoder, ZFPAmount.ZERO, 0, false, m_lang);
+        voided.add(Arrays.copyOfRange(m_encoder.getBuffer(), 3, len - 3));
+        voided.add(new byte[]{0x38});
         try {
-            outputStream.write(fullCmd);
-        } catch (Exception e) {
+            journal.begin(voided, executed, journal.getBeginTime());
+        } catch (IOException e) {
             throw new ZFPException(e);
         }
+        replay(journal, voided, executed);
+    }
+
+    protected void replay(ZFPJournal journal, List<byte[]> steps, int from) throws ZFPException {
+        // the command executed without its response
+        if (journal.getDoneCount() < from)
+            journal.done(from - 1);
+        for (int i = from; i < steps.size(); i++) {
+            byte[] step = steps.get(i);
+            m_encoder.reset();
+            m_encoder.begin(step[0]);
+            m_encoder.append(step, 1, step.length - 1);
+            try {
+                sendCommand(m_encoder.end());
+            } catch (ZFPException e) {
+                if (isPrinterError(e))
+                    refused(journal, i);
+                throw e;
+            }
+            journal.done(i);
+        }
+    }
+
+    /**
+     * Notes a command Zeka FP refused. The receipt is over when its opening was refused,
+     * nothing of it was executed.
+     */
+    protected static void refused(ZFPJournal journal, int step) {
+        if (0 == journal.getDoneCount())
+            journal.end(ZFPJournal.FAILED);
+        else
+            journal.fail(step);
+    }
+
+    /**
+     * Tells if the error code was reported by Zeka FP, the codes above 0x100 are found by this library
+     */
+    protected static boolean isPrinterError(ZFPException e) {
+        return (0 < e.getErrorCode()) && (0x100 > e.getErrorCode());
+    }
+
+    /**
+     * Finds how many commands of an interrupted receipt Zeka FP executed. The command after the
+     * acknowledged ones may have been executed without its response, the sales and the payment
+     * flags tell it, unless Zeka FP refused it. A command which changes neither, e.g. a sub total,
+     * is sent again.
+     *
+     * @return number of executed commands, -1 when the open receipt does not match them
+     */
+    protected static int getExecutedSteps(List<byte[]> steps, int done, boolean refused, ZFPReceiptInfo info) {
+        if (!refused && (done < steps.size()) && isVisible(steps, done, info) && isExecuted(steps, done + 1, info))
+            return done + 1;
+        if (isExecuted(steps, done, info))
+            return done;
+        return -1;
+    }
+
+    /**
+     * Tells if the open receipt is the journaled one: the operator must be the same when it is known,
+     * the tax groups must hold the executed sales when their amounts are known, and an empty receipt
+     * is taken only when Zeka FP acknowledged at least its opening, any receipt opened meanwhile
+     * would look the same.
+     */
+    protected boolean isSameReceipt(List<byte[]> steps, int executed, int done, int operator, ZFPReceiptInfo info) {
+        if ((0 != operator) && (operator != Character.digit(steps.get(0)[1], 10)))
+            return false;
+        if ((0 == done) && (0 == info.getPurchaces()))
+            return 0 != operator;
+
+        ZFPReceiptState expected = new ZFPReceiptState();
+        if (m_receiptState.hasDecimalPoint())
+            expected.setDecimalPoint(m_receiptState.getScale());
+        expected.open(true, false);
+        for (int i = 1; i < executed; i++) {
+            byte[] step = steps.get(i);
+            if ((byte) 0x31 == step[0]) {
+                try {
+                    expected.sellFree(step, 1, step.length);
+                } catch (NumberFormatException | ArithmeticException e) {
+                    return false;
+                }
+            } else if (((byte) 0x32 == step[0])
+                    || (((byte) 0x33 == step[0]) && ZFPReceiptState.hasAdjustment(step, 1, step.length))) {
+                // the printer knows the price or spreads the discount, the amounts cannot be compared
+                return true;
+            }
+        }
+        if (!expected.isExact())
+            return true;
+        for (int i = 0; i < ZFPReceiptState.GROUPS; i++)
+            if (0 != expected.getTaxGroupAmount(i).compareTo(info.getTaxGroupAmount(i)))
+                return false;
+        return true;
+    }
 
-        getResponse();
+    protected static boolean isVisible(List<byte[]> steps, int index, ZFPReceiptInfo info) {
+        switch (steps.get(index)[0]) {
+            case 0x30:
+            case 0x31:
+            case 0x32:
+                return true;
+            case 0x35:
+                // a later payment shows only when it finishes the payment
+                return (0 == count(steps, index, (byte) 0x35)) || info.isPaymentFinished();
+            default:
+                return false;
+        }
+    }
+
+    protected static boolean isExecuted(List<byte[]> steps, int count, ZFPReceiptInfo info) {
+        boolean paid = 0 != count(steps, count, (byte) 0x35);
+        return (0 < count) && (count(steps, count, (byte) 0x31) + count(steps, count, (byte) 0x32) == info.getPurchaces())
+                && (paid == info.isPaymentStarted()) && (paid || !info.isPaymentFinished());
+    }
+
+    protected static int count(List<byte[]> steps, int count, byte cmd) {
+        int n = 0;
+        for (int i = 0; i < count; i++)
+            if (cmd == steps.get(i)[0])
+                n++;
+        return n;
+    }
+
+    protected static boolean isSale(byte[] step) {
+        return ((byte) 0x31 == step[0]) || ((byte) 0x32 == step[0]);
+    }
+
+    /**
+     * Makes the sale which cancels a sale: the free sale name;taxgrp;price*quantity[,percent%]
+     * with the opposite price, the database sale +;number*quantity as a void
+     */
+    protected byte[] storno(byte[] step) throws ZFPException {
+        if ((byte) 0x32 == step[0]) {
+            byte[] voided = step.clone();
+            voided[1] = ((byte) '-' == step[1]) ? (byte) '+' : (byte) '-';
+            return voided;
+        }
+        // the name may hold ';', the tax group is the field before the last one
+        int end = step.length;
+        int sep = ZFPReceiptState.lastIndexOf(step, (byte) ';', 1, end);
+        int star = ZFPReceiptState.indexOf(step, (byte) '*', sep + 1, end);
+        if ((3 > sep) || (0 > star))
+            throw new ZFPException(0x101, m_lang);
+        int comma = ZFPReceiptState.indexOf(step, (byte) ',', star + 1, end);
+        ZFPAmount price = parseAmount(step, sep + 1, star - sep - 1, m_lang);
+        ZFPAmount quantity = parseAmount(step, star + 1, ((0 > comma) ? end : comma) - star - 1, m_lang);
+        ZFPAmount percent = ZFPAmount.ZERO;
+        if (0 <= comma) {
+            int pend = ((byte) '%' == step[end - 1]) ? end - 1 : end;
+            percent = parseAmount(step, comma + 1, pend - comma - 1, m_lang);
+        }
+
+        m_encoder.reset();
+        int len = encodeSellFree(m_encoder, new String(step, 1, sep - 3), (char) step[sep - 1],
+                price.negate(), quantity, percent, m_lang);
+        return Arrays.copyOfRange(m_encoder.getBuffer(), 3, len - 3);
     }
 
 //////////////////////////////////////////////////////////////////////
@@ -299,7 +945,20 @@ public class ZFPLib {
      */
     public ZFPStatus getStatus() throws ZFPException {
         sendCommand((byte) 0x20, null);
-        return new ZFPStatus(m_receiveBuf, m_receiveLen, m_lang);
+        ZFPStatus status = new ZFPStatus(m_receiveBuf, m_receiveLen, m_lang);
+        if (status.isPowerDown())
+            m_receiptState.invalidate();
+
+        ZFPJournal journal = m_journal;
+        if (m_autoRecover && (null != journal)
+                && (journal.isOrphaned() || (status.isPowerDown() && journal.hasPending()))) {
+            try {
+                recoverReceipt();
+            } catch (ZFPException e) {
+                // the receipt stays pending, the next status tries again
+            }
+        }
+        return status;
     }
 
     /**
@@ -610,18 +1269,22 @@ public class ZFPLib {
      * @throws ZFPException if the input parameters are incorrect or in case of communication error
      */
     public void openFiscalBon(int oper, String pass, boolean detailed, boolean vat) throws ZFPException {
+        m_encoder.reset();
+        sendCommand(encodeOpenFiscalBon(m_encoder, oper, pass, detailed, vat, m_lang));
+    }
+
+    protected static int encodeOpenFiscalBon(ZFPFrameEncoder data, int oper, String pass,
+                                             boolean detailed, boolean vat, int lang) throws ZFPException {
         if ((9 < oper) || (1 > oper))
-            throw new ZFPException(0x101, m_lang);
+            throw new ZFPException(0x101, lang);
 
-        StringBuffer data = new StringBuffer(Integer.toString(oper));
-        data.append(";");
-        data.append(new PrintfFormat("%-4s").sprintf(nstrcpy(pass, 4)));
+        data.begin((byte) 0x30);
+        data.unsigned(oper, 1);
+        data.append(';');
+        data.text(pass, 4);
         data.append(detailed ? ";1" : ";0");
         data.append(vat ? ";1;2" : ";0;2");
-
-
-        sendCommand((byte) 0x30, data.toString().getBytes());
-
+        return data.end();
     }
 
     /**
@@ -666,9 +1329,14 @@ public class ZFPLib {
      * @throws ZFPException in case of communication error
      */
     public void closeFiscalBon() throws ZFPException {
+        boolean verify = m_verifyOnClose && m_receiptState.isLocalSubTotal();
+        ZFPAmount change = m_receiptState.getChangeAmount();
 
         sendCommand((byte) 0x38, null);
 
+        // the change tells if the printer had the same total as the local sub total
+        if (verify && (0 != change.compareTo(getCurrentReceiptInfo().getChangeAmount())))
+            m_receiptState.drift();
     }
 
     /**
@@ -691,26 +1359,63 @@ public class ZFPLib {
      * @throws ZFPException if the input parameters are incorrect or in case of communication error
      */
     public void sellFree(String name, char taxgrp, float price, float quantity, float discount) throws ZFPException {
+        m_encoder.reset();
+        sendCommand(encodeSellFree(m_encoder, name, taxgrp, price, quantity, discount, m_lang));
+    }
+
+    protected static int encodeSellFree(ZFPFrameEncoder data, String name, char taxgrp, float price,
+                                        float quantity, float discount, int lang) throws ZFPException {
         if ((-99999999.0f > price) || (99999999.0f < price) || (0.0f > quantity) ||
                 (999999.999f < quantity) || (-999.0f > discount) || (999.0f < discount))
-            throw new ZFPException(0x101, m_lang);
+            throw new ZFPException(0x101, lang);
 
-        StringBuffer data = new StringBuffer(new PrintfFormat("%-36s").sprintf(nstrcpy(name, 36)));
-        data.append(";");
+        data.begin((byte) 0x31);
+        data.text(name, 36);
+        data.append(';');
         data.append(taxgrp);
-        data.append(";");
-        data.append(getFloatFormat(price, 2));
-        data.append("*");
-        data.append(getFloatFormat(quantity, 3));
+        data.append(';');
+        data.amount(price, 2);
+        data.append('*');
+        data.amount(quantity, 3);
         if (0.0f != discount) {
-            data.append(",");
-            data.append(new PrintfFormat("%6.2f").sprintf(discount));
-            data.append("%");
+            data.append(',');
+            data.percent(discount);
+            data.append('%');
         }
+        return data.end();
+    }
 
+    /**
+     * Registers item sell from PC database with exact amounts
+     *
+     * @see #sellFree(String, char, float, float, float)
+     * @throws ZFPException if the input parameters are incorrect or in case of communication error
+     */
+    public void sellFree(String name, char taxgrp, ZFPAmount price, ZFPAmount quantity, ZFPAmount discount) throws ZFPException {
+        m_encoder.reset();
+        sendCommand(encodeSellFree(m_encoder, name, taxgrp, price, quantity, discount, m_lang));
+    }
 
-        sendCommand((byte) 0x31, data.toString().getBytes());
+    protected static int encodeSellFree(ZFPFrameEncoder data, String name, char taxgrp, ZFPAmount price,
+                                        ZFPAmount quantity, ZFPAmount discount, int lang) throws ZFPException {
+        if (!inRange(price, MIN_PRICE, MAX_PRICE) || !inRange(quantity, ZFPAmount.ZERO, MAX_QUANTITY) ||
+                !inRange(discount, MIN_PERCENT, MAX_PERCENT))
+            throw new ZFPException(0x101, lang);
 
+        data.begin((byte) 0x31);
+        data.text(name, 36);
+        data.append(';');
+        data.append(taxgrp);
+        data.append(';');
+        data.amount(price, 2);
+        data.append('*');
+        data.amount(quantity, 3);
+        if (0 != discount.signum()) {
+            data.append(',');
+            data.percent(discount);
+            data.append('%');
+        }
+        return data.end();
     }
 
     /**
@@ -723,25 +1428,58 @@ public class ZFPLib {
      * @throws ZFPException if the input parameters are incorrect or in case of communication error
      */
     public void sellDB(boolean isVoid, int number, float quantity, float discount) throws ZFPException {
+        m_encoder.reset();
+        sendCommand(encodeSellDB(m_encoder, isVoid, number, quantity, discount, m_lang));
+    }
+
+    protected static int encodeSellDB(ZFPFrameEncoder data, boolean isVoid, int number,
+                                      float quantity, float discount, int lang) throws ZFPException {
         if ((0 > quantity) || (9999999999.0f < quantity) ||
                 (-999.0f > discount) || (999.0f < discount) || (0 > number))
-            throw new ZFPException(0x101, m_lang);
+            throw new ZFPException(0x101, lang);
 
-        StringBuffer data = new StringBuffer();
+        data.begin((byte) 0x32);
         data.append(isVoid ? '-' : '+');
-        data.append(";");
-        data.append(new PrintfFormat("%05u").sprintf(number));
-        data.append("*");
-        data.append(getFloatFormat(quantity, 3));
+        data.append(';');
+        data.unsigned(number, 5);
+        data.append('*');
+        data.amount(quantity, 3);
         if (0.0f != discount) {
-            data.append(",");
-            data.append(new PrintfFormat("%6.2f").sprintf(discount));
-            data.append("%");
+            data.append(',');
+            data.percent(discount);
+            data.append('%');
         }
+        return data.end();
+    }
 
+    /**
+     * Registers item sell from FP internal database with exact amounts
+     *
+     * @see #sellDB(boolean, int, float, float)
+     * @throws ZFPException if the input parameters are incorrect or in case of communication error
+     */
+    public void sellDB(boolean isVoid, int number, ZFPAmount quantity, ZFPAmount discount) throws ZFPException {
+        m_encoder.reset();
+        sendCommand(encodeSellDB(m_encoder, isVoid, number, quantity, discount, m_lang));
+    }
 
-        sendCommand((byte) 0x32, data.toString().getBytes());
+    protected static int encodeSellDB(ZFPFrameEncoder data, boolean isVoid, int number,
+                                      ZFPAmount quantity, ZFPAmount discount, int lang) throws ZFPException {
+        if (!inRange(quantity, ZFPAmount.ZERO, MAX_SUM) || !inRange(discount, MIN_PERCENT, MAX_PERCENT) || (0 > number))
+            throw new ZFPException(0x101, lang);
 
+        data.begin((byte) 0x32);
+        data.append(isVoid ? '-' : '+');
+        data.append(';');
+        data.unsigned(number, 5);
+        data.append('*');
+        data.amount(quantity, 3);
+        if (0 != discount.signum()) {
+            data.append(',');
+            data.percent(discount);
+            data.append('%');
+        }
+        return data.end();
     }
 
     /**
@@ -757,25 +1495,92 @@ public class ZFPLib {
      */
     public float calcIntermediateSum(boolean print, boolean show, boolean isPercent,
                                      float discount, char taxgrp) throws ZFPException {
-        StringBuffer data = new StringBuffer();
-        data.append(print ? '1' : '0');
-        data.append(";");
-        data.append(show ? '1' : '0');
+        m_encoder.reset();
+        sendCommand(encodeIntermediateSum(m_encoder, print, show, isPercent, discount, taxgrp));
+
+        return Float.parseFloat(new String(m_receiveBuf, 4, m_receiveLen - 7).trim());
+    }
+
+    /**
+     * Calculates the sub total sum of the receipt with exact amounts
+     *
+     * @return returns the exact sub total sum
+     * @throws ZFPException if the input parameters are incorrect or in case of communication error
+     * @see #calcIntermediateSum(boolean, boolean, boolean, float, char)
+     */
+    public ZFPAmount calcIntermediateSum(boolean print, boolean show, boolean isPercent,
+                                         ZFPAmount discount, char taxgrp) throws ZFPException {
+        m_encoder.reset();
+        sendCommand(encodeIntermediateSum(m_encoder, print, show, isPercent, discount, taxgrp));
+
+        return parseAmount(m_receiveBuf, 4, m_receiveLen - 7, m_lang);
+    }
+
+    /**
+     * Gets the sub total sum of the open receipt, e.g. the amount to pay. It is computed from the
+     * accepted sales without any communication; Zeka FP is asked only when the local sums are not
+     * exact, the decimal point was never read or a check is due.
+     *
+     * @return the sub total sum
+     * @throws ZFPException in case of communication error
+     * @see #setSubTotalCheck(int)
+     * @see ZFPReceiptState
+     */
+    public ZFPAmount getSubTotal() throws ZFPException {
+        ZFPReceiptState state = getReceiptState();
+        if (!state.hasDecimalPoint())
+            state.setDecimalPoint(getDecimalPoint());
+
+        boolean check = (0 != m_subTotalCheck) && (0 == ++m_subTotalCount % m_subTotalCheck);
+        if (state.isOpenReceipt() && state.isExact() && !check) {
+            state.setLocalSubTotal();
+            return state.getTotalAmount();
+        }
+
+        boolean exact = state.isOpenReceipt() && state.isExact();
+        ZFPAmount local = state.getTotalAmount();
+        ZFPAmount sum = calcIntermediateSum(false, false, false, ZFPAmount.ZERO, '0');
+        if (exact && (0 != local.compareTo(sum)))
+            state.drift();
+        return sum;
+    }
+
+    protected static int encodeIntermediateSum(ZFPFrameEncoder data, boolean print, boolean show,
+                                               boolean isPercent, float discount, char taxgrp) {
+        data.begin((byte) 0x33);
+        data.append(print);
+        data.append(';');
+        data.append(show);
         if (0.0f != discount) {
             if (isPercent) {
-                data.append(",");
-                data.append(new PrintfFormat("%6.2f").sprintf(discount));
-                data.append("%");
+                data.append(',');
+                data.percent(discount);
+                data.append('%');
             } else {
-                data.append(":");
-                data.append(getFloatFormat(discount, 2));
+                data.append(':');
+                data.amount(discount, 2);
             }
         }
+        return data.end();
+    }
 
-
-        sendCommand((byte) 0x33, data.toString().getBytes());
-
-        return Float.parseFloat(new String(m_receiveBuf, 4, m_receiveLen - 7).trim());
+    protected static int encodeIntermediateSum(ZFPFrameEncoder data, boolean print, boolean show,
+                                               boolean isPercent, ZFPAmount discount, char taxgrp) {
+        data.begin((byte) 0x33);
+        data.append(print);
+        data.append(';');
+        data.append(show);
+        if (0 != discount.signum()) {
+            if (isPercent) {
+                data.append(',');
+                data.percent(discount);
+                data.append('%');
+            } else {
+                data.append(':');
+                data.amount(discount, 2);
+            }
+        }
+        return data.end();
     }
 
     /**
@@ -787,16 +1592,41 @@ public class ZFPLib {
      * @throws ZFPException if the input parameters are incorrect or in case of communication error
      */
     public void payment(float sum, int type, boolean noRest) throws ZFPException {
+        m_encoder.reset();
+        sendCommand(encodePayment(m_encoder, sum, type, noRest, m_lang));
+    }
+
+    protected static int encodePayment(ZFPFrameEncoder data, float sum, int type, boolean noRest, int lang) throws ZFPException {
         if ((0 > type) || (4 < type) || (0.0f > sum) || (9999999999.0f < sum))
-            throw new ZFPException(0x101, m_lang);
+            throw new ZFPException(0x101, lang);
 
-        String data = Integer.toString(type);
-        data += noRest ? ";1;" : ";0;";
-        data += getFloatFormat(sum, 2);
+        data.begin((byte) 0x35);
+        data.unsigned(type, 1);
+        data.append(noRest ? ";1;" : ";0;");
+        data.amount(sum, 2);
+        return data.end();
+    }
 
+    /**
+     * Registers payment of the receipt with an exact sum
+     *
+     * @see #payment(float, int, boolean)
+     * @throws ZFPException if the input parameters are incorrect or in case of communication error
+     */
+    public void payment(ZFPAmount sum, int type, boolean noRest) throws ZFPException {
+        m_encoder.reset();
+        sendCommand(encodePayment(m_encoder, sum, type, noRest, m_lang));
+    }
 
-        sendCommand((byte) 0x35, data.getBytes());
+    protected static int encodePayment(ZFPFrameEncoder data, ZFPAmount sum, int type, boolean noRest, int lang) throws ZFPException {
+        if ((0 > type) || (4 < type) || !inRange(sum, ZFPAmount.ZERO, MAX_SUM))
+            throw new ZFPException(0x101, lang);
 
+        data.begin((byte) 0x35);
+        data.unsigned(type, 1);
+        data.append(noRest ? ";1;" : ";0;");
+        data.amount(sum, 2);
+        return data.end();
     }
 
     /**
@@ -1075,10 +1905,12 @@ public class ZFPLib {
             }
             fs.close();
             outputStream.write(buf);
+            outputStream.flush();
         } catch (Exception e) {
             new ZFPException(e);
 
         }
+    }
 
         /** Sets Zeka FP system date and time based on the PC system clock
          *  @exception ZFPException in case of communication error
@@ -1398,6 +2230,8 @@ public class ZFPLib {
 
         sendCommand((byte) 0x72, null);
 
-        return new ZFPReceiptInfo(m_receiveBuf, m_receiveLen, m_lang);
+        ZFPReceiptInfo info = new ZFPReceiptInfo(m_receiveBuf, m_receiveLen, m_lang);
+        m_receiptState.sync(info);
+        return info;
     }
 }
@@ -0,0 +1,290 @@
+/*
+ * ZFPMetrics.java
+ *
+ */
+
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** ZFPMetrics counts where the time of each command goes.
+ *  For every command byte there is a latency histogram of the pings before the frame,
+ *  of writing the frame, of the wait for the first response byte and of the whole command.
+ *  Errors are counted by {@link ZFPException} code, resends by command.
+ *  Recording is lock-free, so one instance may be shared by several {@link ZFPLib}s
+ *  and {@link #snapshot()} can be taken from any thread.
+ */
+public class ZFPMetrics {
+
+    /** The 0x04 and 0x05 pings before the frame */
+    public static final int PING = 0;
+    /** Writing the frame to the output stream */
+    public static final int SEND = 1;
+    /** From the end of the write to the first byte of the response */
+    public static final int FIRST_BYTE = 2;
+    /** The whole command including pings and resends */
+    public static final int TOTAL = 3;
+
+    protected static final int PHASES = 4;
+    protected static final String[] PHASE_NAMES = {"ping", "send", "first", "total"};
+    // bucket i holds the times from 2^i to 2^(i+1) - 1 microseconds
+    protected static final int BUCKETS = 28;
+    // codes 0x00 to 0x10F, the last slot counts the errors without a code
+    protected static final int ERROR_CODES = 0x111;
+
+    /** Lock-free log2 histogram of durations */
+    protected static class Histogram {
+        protected final AtomicLongArray m_buckets = new AtomicLongArray(BUCKETS);
+        protected final AtomicLong m_sum = new AtomicLong();
+        protected final AtomicLong m_max = new AtomicLong();
+
+        protected void record(long nanos) {
+            long micros = Math.max(nanos / 1000L, 1);
+            m_buckets.incrementAndGet(Math.min(63 - Long.numberOfLeadingZeros(micros), BUCKETS - 1));
+            m_sum.addAndGet(nanos);
+            long max;
+            while (nanos > (max = m_max.get()) && !m_max.compareAndSet(max, nanos)) {
+                // another thread raised it, check again
+            }
+        }
+    }
+
+    /** Everything recorded for one command byte */
+    protected static class Command {
+        protected final Histogram[] m_phases = new Histogram[PHASES];
+        protected final AtomicLong m_retries = new AtomicLong();
+        protected final AtomicLong m_errors = new AtomicLong();
+
+        protected Command() {
+            for (int i = 0; i < PHASES; i++)
+                m_phases[i] = new Histogram();
+        }
+    }
+
+    protected final AtomicReferenceArray<Command> m_commands;
+    protected final AtomicLongArray m_errors;
+
+    /** Creates a new instance of ZFPMetrics */
+    public ZFPMetrics() {
+        m_commands = new AtomicReferenceArray<Command>(256);
+        m_errors = new AtomicLongArray(ERROR_CODES);
+    }
+
+    /** Records the duration of a phase of a command
+     *  @param cmd the command byte
+     *  @param phase {@link #PING}, {@link #SEND}, {@link #FIRST_BYTE} or {@link #TOTAL}
+     *  @param nanos duration in nanoseconds
+     */
+    public void record(byte cmd, int phase, long nanos) {
+        command(cmd).m_phases[phase].record(nanos);
+    }
+
+    /** Records a resend of a frame */
+    public void retry(byte cmd) {
+        command(cmd).m_retries.incrementAndGet();
+    }
+
+    /** Records a failed command
+     *  @param cmd the command byte
+     *  @param e the error given to the caller
+     */
+    public void error(byte cmd, ZFPException e) {
+        command(cmd).m_errors.incrementAndGet();
+        int code = e.getErrorCode();
+        m_errors.incrementAndGet(((0 <= code) && (ERROR_CODES - 1 > code)) ? code : ERROR_CODES - 1);
+    }
+
+    /** Gets the number of resends of all commands */
+    public long getRetryCount() {
+        long retries = 0;
+        for (int i = 0; i < 256; i++) {
+            Command c = m_commands.get(i);
+            if (null != c)
+                retries += c.m_retries.get();
+        }
+        return retries;
+    }
+
+    /** Copies the current values, recording goes on meanwhile */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    protected Command command(byte cmd) {
+        int i = cmd & 0xFF;
+        Command c = m_commands.get(i);
+        if (null == c) {
+            m_commands.compareAndSet(i, null, new Command());
+            c = m_commands.get(i);
+        }
+        return c;
+    }
+
+    /** The values of a ZFPMetrics at one point in time.
+     *  Times are in nanoseconds, the percentiles are the upper bound of their bucket.
+     */
+    public static class Snapshot {
+        protected final long m_time;
+        protected final long[][][] m_buckets;
+        protected final long[][] m_sums;
+        protected final long[][] m_maxs;
+        protected final long[] m_retries;
+        protected final long[] m_commandErrors;
+        protected final long[] m_errors;
+
+        protected Snapshot(ZFPMetrics metrics) {
+            m_time = System.currentTimeMillis();
+            m_buckets = new long[256][][];
+            m_sums = new long[256][];
+            m_maxs = new long[256][];
+            m_retries = new long[256];
+            m_commandErrors = new long[256];
+            for (int i = 0; i < 256; i++) {
+                Command c = metrics.m_commands.get(i);
+                if (null == c)
+                    continue;
+                m_buckets[i] = new long[PHASES][BUCKETS];
+                m_sums[i] = new long[PHASES];
+                m_maxs[i] = new long[PHASES];
+                for (int p = 0; p < PHASES; p++) {
+                    Histogram h = c.m_phases[p];
+                    for (int b = 0; b < BUCKETS; b++)
+                        m_buckets[i][p][b] = h.m_buckets.get(b);
+                    m_sums[i][p] = h.m_sum.get();
+                    m_maxs[i][p] = h.m_max.get();
+                }
+                m_retries[i] = c.m_retries.get();
+                m_commandErrors[i] = c.m_errors.get();
+            }
+            m_errors = new long[ERROR_CODES];
+            for (int i = 0; i < ERROR_CODES; i++)
+                m_errors[i] = metrics.m_errors.get(i);
+        }
+
+        /** Gets the time the snapshot was taken
+         *  @return time in milliseconds as <code>System.currentTimeMillis()</code>
+         */
+        public long getTime() {
+            return m_time;
+        }
+
+        /** Gets the number of recorded durations of a phase of a command */
+        public long getCount(byte cmd, int phase) {
+            long[] buckets = buckets(cmd, phase);
+            long count = 0;
+            if (null != buckets)
+                for (int b = 0; b < BUCKETS; b++)
+                    count += buckets[b];
+            return count;
+        }
+
+        public long getMean(byte cmd, int phase) {
+            long count = getCount(cmd, phase);
+            return (0 == count) ? 0 : m_sums[cmd & 0xFF][phase] / count;
+        }
+
+        public long getMax(byte cmd, int phase) {
+            return (null == m_maxs[cmd & 0xFF]) ? 0 : m_maxs[cmd & 0xFF][phase];
+        }
+
+        /** Gets a percentile of a phase of a command
+         *  @param percentile percentile between 0 and 100
+         *  @return upper bound of the bucket in nanoseconds, 0 when nothing was recorded
+         */
+        public long getPercentile(byte cmd, int phase, double percentile) {
+            long[] buckets = buckets(cmd, phase);
+            long count = getCount(cmd, phase);
+            if (0 == count)
+                return 0;
+
+            long rank = (long) Math.ceil(count * percentile / 100.0);
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += buckets[b];
+                if ((seen >= rank) && (0 < seen))
+                    return Math.min((2L << b) * 1000L, getMax(cmd, phase));
+            }
+            return getMax(cmd, phase);
+        }
+
+        public long getRetryCount(byte cmd) {
+            return m_retries[cmd & 0xFF];
+        }
+
+        public long getErrorCount(byte cmd) {
+            return m_commandErrors[cmd & 0xFF];
+        }
+
+        /** Gets how often an error code was given to the callers
+         *  @param code the <code>ZFPException</code> error code, -1 for errors without a code
+         */
+        public long getErrorCountByCode(int code) {
+            return ((0 <= code) && (ERROR_CODES - 1 > code)) ? m_errors[code] : m_errors[ERROR_CODES - 1];
+        }
+
+        /** Writes one line per used command and one per error code, times in milliseconds
+         *  @param out the destination, e.g. a file or a <code>StringWriter</code> for logcat
+         *  @throws IOException when writing fails
+         */
+        public void write(Writer out) throws IOException {
+            out.write("cmd count retries errors");
+            for (int p = 0; p < PHASES; p++)
+                out.write(" " + PHASE_NAMES[p] + ":mean/p50/p99/max");
+            out.write('\n');
+            for (int i = 0; i < 256; i++) {
+                if (null == m_buckets[i])
+                    continue;
+                byte cmd = (byte) i;
+                out.write(hex(i) + " " + getCount(cmd, TOTAL) + " " + m_retries[i] + " " + m_commandErrors[i]);
+                for (int p = 0; p < PHASES; p++) {
+                    out.write(" " + millis(getMean(cmd, p)) + "/" + millis(getPercentile(cmd, p, 50))
+                            + "/" + millis(getPercentile(cmd, p, 99)) + "/" + millis(getMax(cmd, p)));
+                }
+                out.write('\n');
+            }
+            for (int i = 0; i < ERROR_CODES; i++) {
+                if (0 == m_errors[i])
+                    continue;
+                out.write("error " + ((ERROR_CODES - 1 == i) ? "-1" : hex(i)) + " " + m_errors[i] + "\n");
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringWriter out = new StringWriter();
+            try {
+                write(out);
+            } catch (IOException e) {
+                // not thrown by StringWriter
+            }
+            return out.toString();
+        }
+
+        protected long[] buckets(byte cmd, int phase) {
+            long[][] phases = m_buckets[cmd & 0xFF];
+            return (null == phases) ? null : phases[phase];
+        }
+
+        protected static String hex(int value) {
+            String s = Integer.toHexString(value).toUpperCase();
+            return (1 == s.length()) ? "0x0" + s : "0x" + s;
+        }
+
+        protected static String millis(long nanos) {
+            long micros = nanos / 1000L;
+            StringBuilder s = new StringBuilder();
+            s.append(micros / 1000L).append('.');
+            long frac = micros % 1000L;
+            if (100 > frac)
+                s.append('0');
+            if (10 > frac)
+                s.append('0');
+            return s.append(frac).toString();
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * ZFPReceipt.java
+ *
+ */
+
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+/** ZFPReceipt collects the commands of a whole client receipt so that
+ *  {@link ZFPLib#printReceipt(ZFPReceipt)} can print it in one call.
+ *  The input data of each command is checked and encoded into its frame when it is added,
+ *  so nothing is formatted while the receipt is being sent.
+ *  <pre>
+ *  ZFPReceipt receipt = new ZFPReceipt()
+ *          .openFiscalBon(1, "0", false, false)
+ *          .sellFree("Article", '1', 2.34f, 1.0f, 0.0f)
+ *          .payment(2.34f, 0, false)
+ *          .closeFiscalBon();
+ *  zfp.printReceipt(receipt);
+ *  </pre>
+ */
+public class ZFPReceipt {
+
+    protected final int m_lang;
+    protected final ZFPFrameEncoder m_frames;
+    protected int[] m_offsets;
+    protected int[] m_lengths;
+    protected int m_count;
+    protected int m_done;
+    protected ZFPAmount m_subTotal;
+    protected ZFPAmount m_total;
+    protected long m_executionTime;
+
+    /** Creates a new empty receipt with English error messages */
+    public ZFPReceipt() {
+        this(ZFPException.ZFP_LANG_EN);
+    }
+
+    /** Creates a new empty receipt
+     *  @param lang error message language
+     */
+    public ZFPReceipt(int lang) {
+        m_lang = lang;
+        m_frames = new ZFPFrameEncoder(1024);
+        m_offsets = new int[16];
+        m_lengths = new int[16];
+        m_subTotal = ZFPAmount.ZERO;
+        m_total = ZFPAmount.ZERO;
+    }
+
+    /** Opens client receipt
+     *  @see ZFPLib#openFiscalBon(int, String, boolean, boolean)
+     *  @throws ZFPException if the input parameters are incorrect
+     */
+    public ZFPReceipt openFiscalBon(int oper, String pass, boolean detailed, boolean vat) throws ZFPException {
+        int offset = m_frames.size();
+        return add(offset, ZFPLib.encodeOpenFiscalBon(m_frames, oper, pass, detailed, vat, m_lang));
+    }
+
+    /** Registers item sell from PC database
+     *  @see ZFPLib#sellFree(String, char, float, float, float)
+     *  @throws ZFPException if the input parameters are incorrect
+     */
+    public ZFPReceipt sellFree(String name, char taxgrp, float price, float quantity, float discount) throws ZFPException {
+        int offset = m_frames.size();
+        int length = ZFPLib.encodeSellFree(m_frames, name, taxgrp, price, quantity, discount, m_lang);
+        sold(offset, length);
+        return add(offset, length);
+    }
+
+    /** Registers item sell from PC database with exact amounts
+     *  @see ZFPLib#sellFree(String, char, ZFPAmount, ZFPAmount, ZFPAmount)
+     *  @throws ZFPException if the input parameters are incorrect
+     */
+    public ZFPReceipt sellFree(String name, char taxgrp, ZFPAmount price, ZFPAmount quantity, ZFPAmount discount) throws ZFPException {
+        int offset = m_frames.size();
+        int length = ZFPLib.encodeSellFree(m_frames, name, taxgrp, price, quantity, discount, m_lang);
+        sold(offset, length);
+        return add(offset, length);
+    }
+
+    /** Registers item sell from FP internal database
+     *  @see ZFPLib#sellDB(boolean, int, float, float)
+     *  @throws ZFPException if the input parameters are incorrect
+     */
+    public ZFPReceipt sellDB(boolean isVoid, int number, float quantity, float discount) throws ZFPException {
+        int offset = m_frames.size();
+        return add(offset, ZFPLib.encodeSellDB(m_frames, isVoid, number, quantity, discount, m_lang));
+    }
+
+    /** Registers item sell from FP internal database with exact amounts
+     *  @see ZFPLib#sellDB(boolean, int, ZFPAmount, ZFPAmount)
+     *  @throws ZFPException if the input parameters are incorrect
+     */
+    public ZFPReceipt sellDB(boolean isVoid, int number, ZFPAmount quantity, ZFPAmount discount) throws ZFPException {
+        int offset = m_frames.size();
+        return add(offset, ZFPLib.encodeSellDB(m_frames, isVoid, number, quantity, discount, m_lang));
+    }
+
+    /** Calculates the sub total sum, the result is available by {@link #getSubTotal()} after printing
+     *  @see ZFPLib#calcIntermediateSum(boolean, boolean, boolean, float, char)
+     */
+    public ZFPReceipt calcIntermediateSum(boolean print, boolean show, boolean isPercent,
+                                          float discount, char taxgrp) {
+        int offset = m_frames.size();
+        return add(offset, ZFPLib.encodeIntermediateSum(m_frames, print, show, isPercent, discount, taxgrp));
+    }
+
+    /** Calculates the sub total sum with an exact discount
+     *  @see ZFPLib#calcIntermediateSum(boolean, boolean, boolean, ZFPAmount, char)
+     */
+    public ZFPReceipt calcIntermediateSum(boolean print, boolean show, boolean isPercent,
+                                          ZFPAmount discount, char taxgrp) {
+        int offset = m_frames.size();
+        return add(offset, ZFPLib.encodeIntermediateSum(m_frames, print, show, isPercent, discount, taxgrp));
+    }
+
+    /** Registers payment of the receipt
+     *  @see ZFPLib#payment(float, int, boolean)
+     *  @throws ZFPException if the input parameters are incorrect
+     */
+    public ZFPReceipt payment(float sum, int type, boolean noRest) throws ZFPException {
+        int offset = m_frames.size();
+        return add(offset, ZFPLib.encodePayment(m_frames, sum, type, noRest, m_lang));
+    }
+
+    /** Registers payment of the receipt with an exact sum
+     *  @see ZFPLib#payment(ZFPAmount, int, boolean)
+     *  @throws ZFPException if the input parameters are incorrect
+     */
+    public ZFPReceipt payment(ZFPAmount sum, int type, boolean noRest) throws ZFPException {
+        int offset = m_frames.size();
+        return add(offset, ZFPLib.encodePayment(m_frames, sum, type, noRest, m_lang));
+    }
+
+    /** Closes the client receipt
+     *  @see ZFPLib#closeFiscalBon()
+     */
+    public ZFPReceipt closeFiscalBon() {
+        int offset = m_frames.begin((byte) 0x38);
+        return add(offset, m_frames.end());
+    }
+
+    /** Checks the order of the commands: the receipt is opened first and closed last,
+     *  there is at least one sale and it is paid, no sale follows a payment.
+     *  @param lang error message language
+     *  @throws ZFPException if the receipt is incorrect
+     */
+    public void validate(int lang) throws ZFPException {
+        int count = m_count;
+        if ((2 > count) || ((byte) 0x30 != getCommand(0)) || ((byte) 0x38 != getCommand(count - 1)))
+            throw new ZFPException(0x101, lang);
+
+        boolean sold = false;
+        boolean paid = false;
+        for (int i = 1; i < count - 1; i++) {
+            switch (getCommand(i)) {
+                case 0x31:
+                case 0x32:
+                    if (paid)
+                        throw new ZFPException(0x101, lang);
+                    sold = true;
+                    break;
+
+                case 0x33:
+                    if (!sold)
+                        throw new ZFPException(0x101, lang);
+                    break;
+
+                case 0x35:
+                    if (!sold)
+                        throw new ZFPException(0x101, lang);
+                    paid = true;
+                    break;
+
+                default: // open or close in the middle
+                    throw new ZFPException(0x101, lang);
+            }
+        }
+        if (!paid)
+            throw new ZFPException(0x101, lang);
+    }
+
+    /** Gets the number of commands in the receipt
+     *  @return number of commands
+     */
+    public int getStepCount() {
+        return m_count;
+    }
+
+    /** Gets the number of commands confirmed by Zeka FP during the last printing
+     *  @return number of completed commands
+     */
+    public int getCompletedSteps() {
+        return m_done;
+    }
+
+    /** Gets the sub total sum returned by Zeka FP during the last printing
+     *  @return the sub total sum, 0 if the receipt does not calculate it
+     */
+    public float getSubTotal() {
+        return m_subTotal.floatValue();
+    }
+
+    /** Gets the exact sub total sum returned by Zeka FP during the last printing
+     *  @return the sub total sum, zero if the receipt does not calculate it
+     */
+    public ZFPAmount getSubTotalAmount() {
+        return m_subTotal;
+    }
+
+    /** Gets the sum of the sales from PC database added so far, rounded to 2 decimals the way
+     *  Zeka FP does, e.g. the amount to pay. The sales from FP internal database are not included,
+     *  their prices are known only to the printer.
+     *  @return the sum of the sales
+     */
+    public ZFPAmount getTotalAmount() {
+        return m_total;
+    }
+
+    /** Gets the time spent printing the receipt, including encoding and all responses
+     *  @return time in nanoseconds
+     */
+    public long getExecutionTime() {
+        return m_executionTime;
+    }
+
+    protected ZFPReceipt add(int offset, int length) {
+        if (m_offsets.length == m_count) {
+            int[] offsets = new int[m_count * 2];
+            int[] lengths = new int[m_count * 2];
+            System.arraycopy(m_offsets, 0, offsets, 0, m_count);
+            System.arraycopy(m_lengths, 0, lengths, 0, m_count);
+            m_offsets = offsets;
+            m_lengths = lengths;
+        }
+        m_offsets[m_count] = offset;
+        m_lengths[m_count] = length;
+        m_count++;
+        return this;
+    }
+
+    // the amounts are parsed back from the frame, so they are rounded exactly like the ones Zeka FP gets
+    protected void sold(int offset, int length) {
+        byte[] b = m_frames.getBuffer();
+        int end = offset + length - 3;
+        int sep = ZFPReceiptState.lastIndexOf(b, (byte) ';', offset + 4, end);
+        m_total = m_total.add(ZFPReceiptState.saleAmount(b, sep + 1, end, 2));
+    }
+
+    protected byte getCommand(int index) {
+        return m_frames.getBuffer()[m_offsets[index] + 3];
+    }
+
+    protected ZFPFrameEncoder getFrames() {
+        return m_frames;
+    }
+
+    protected int getOffset(int index) {
+        return m_offsets[index];
+    }
+
+    protected int getLength(int index) {
+        return m_lengths[index];
+    }
+
+    protected void reset() {
+        m_done = 0;
+        m_subTotal = ZFPAmount.ZERO;
+        m_executionTime = 0;
+    }
+
+    protected void stepDone() {
+        m_done++;
+    }
+
+    protected void setSubTotal(ZFPAmount subTotal) {
+        m_subTotal = subTotal;
+    }
+
+    protected void setExecutionTime(long time) {
+        m_executionTime = time;
+    }
+}
@@ -11,7 +11,7 @@ package com.example.vdovin.tremolprint.protocol.tremol;
 public class ZFPReceiptInfo {
     
     protected int m_purchases;
-    protected float[] m_taxgrp;
+    protected ZFPAmount[] m_taxgrp;
     protected boolean m_noVoid;
     protected boolean m_VATIncl;
     protected boolean m_extended;
@@ -19,7 +19,7 @@ public class ZFPReceiptInfo {
     protected boolean m_payEnd;
     protected boolean m_powerDown;
     protected boolean m_invoice;
-    protected float m_change;
+    protected ZFPAmount m_change;
     protected boolean m_openReceipt;
 
     /** Creates a new instance of ZFPReceiptInfo */
@@ -33,11 +33,11 @@ public class ZFPReceiptInfo {
                 throw new ZFPException(0x106, lang);
 
             int groups = s.length - 9;
-            m_taxgrp = new float[groups];
+            m_taxgrp = new ZFPAmount[groups];
 
             m_purchases = Integer.parseInt(s[0]);
             for (int i = 1; i <= groups; i++)
-                m_taxgrp[i - 1] = Float.parseFloat(s[i]);
+                m_taxgrp[i - 1] = ZFPAmount.parse(s[i]);
 
             m_noVoid = s[groups + 1].charAt(0) == '1' ? true : false;
             m_VATIncl = s[groups + 2].charAt(0) == '1' ? true : false;
@@ -47,14 +47,14 @@ public class ZFPReceiptInfo {
             m_powerDown = s[groups + 6].charAt(0) == '1' ? true : false;
             m_invoice = s[groups + 7].charAt(0) == '1' ? true : false;
 
-            m_change = Float.parseFloat(s[groups + 8]);
+            m_change = ZFPAmount.parse(s[groups + 8]);
         }
         else {
-            m_change = Float.parseFloat(new String(output, 60, 11));
+            m_change = ZFPAmount.parse(output, 60, 11);
             
-            m_taxgrp = new float[3];
+            m_taxgrp = new ZFPAmount[3];
             for (int i = 0; i < 3; i++)
-                m_taxgrp[i] = 0.0f;
+                m_taxgrp[i] = ZFPAmount.ZERO;
             
             m_purchases = 0;
             m_noVoid = m_VATIncl = m_extended = m_payStart = m_payEnd = m_powerDown = m_invoice = false;
@@ -73,8 +73,16 @@ public class ZFPReceiptInfo {
      *  @return the tax sum accumulated to the tax group
      */
     public float getTaxGroup(int index) {
+        return getTaxGroupAmount(index).floatValue();
+    }
+
+    /** Gets the exact sum accumulated in certain tax group
+     *  @param index tax group number
+     *  @return the tax sum accumulated to the tax group
+     */
+    public ZFPAmount getTaxGroupAmount(int index) {
         if ((0 > index) || (m_taxgrp.length <= index))
-            return 0;
+            return ZFPAmount.ZERO;
         
         return m_taxgrp[index];
     }
@@ -143,6 +151,13 @@ public class ZFPReceiptInfo {
      *  @return change if any 
      */
     public float getChange() {
+        return m_change.floatValue();
+    }
+
+    /** Gets the exact change if any
+     *  @return change if any 
+     */
+    public ZFPAmount getChangeAmount() {
         return m_change;
     }
 }
@@ -0,0 +1,392 @@
+/*
+ * ZFPReceiptState.java
+ *
+ */
+
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+/** ZFPReceiptState is what {@link ZFPLib} knows about the open receipt without asking Zeka FP.
+ *  It mirrors {@link ZFPReceiptInfo}: every frame the printer accepted is applied to it,
+ *  opening, selling, sub total, payment and closing, so it is current after each command.
+ *  <p>
+ *  After a command failed or the printer reported a power down the state is no longer
+ *  synchronized, {@link ZFPLib#getReceiptState()} then reads the receipt info (0x72) once.
+ *  The amounts of articles sold from the printer database are not known here, the tax groups
+ *  and the total are not exact after such a sale until the next synchronization.
+ *  <p>
+ *  The sales are rounded per tax group the way the printer does, to the decimals of its decimal
+ *  point, so {@link ZFPLib#getSubTotal()} can give the sub total without asking Zeka FP.
+ *  A difference found later against the printer counts as a drift and drops the synchronization.
+ *  The state belongs to one ZFPLib and is not thread safe.
+ */
+public class ZFPReceiptState {
+
+    protected static final int GROUPS = 8;
+
+    protected boolean m_synchronized;
+    protected boolean m_exact;
+    protected boolean m_open;
+    protected boolean m_fiscal;
+    protected boolean m_invoice;
+    protected int m_purchases;
+    protected int m_operator;
+    protected final ZFPAmount[] m_taxgrp;
+    protected ZFPAmount m_total;
+    protected ZFPAmount m_subTotal;
+    protected ZFPAmount m_paid;
+    protected boolean m_paidKnown;
+    protected ZFPAmount m_change;
+    protected boolean m_payStart;
+    protected boolean m_payEnd;
+    protected int m_decimalPoint;
+    protected boolean m_localSubTotal;
+    protected int m_drifts;
+
+    /** Creates a new instance of ZFPReceiptState, it is not synchronized yet */
+    public ZFPReceiptState() {
+        m_taxgrp = new ZFPAmount[GROUPS];
+        m_change = ZFPAmount.ZERO;
+        m_decimalPoint = -1;
+        clear();
+    }
+
+    /** Tells if the state follows the printer, false before the first receipt info and after errors */
+    public boolean isSynchronized() {
+        return m_synchronized;
+    }
+
+    /** Tells if the tax groups and the total are exact, false after a sale from the printer database */
+    public boolean isExact() {
+        return m_exact;
+    }
+
+    public boolean isOpenReceipt() {
+        return m_open;
+    }
+
+    /** Tells if the open receipt is a client receipt, false for a non client receipt */
+    public boolean isFiscal() {
+        return m_fiscal;
+    }
+
+    public boolean isInvoice() {
+        return m_invoice;
+    }
+
+    /** Gets the operator of the open receipt, known only when its opening was acknowledged here
+     *  @return the operator number, 0 when it is not known
+     */
+    public int getOperator() {
+        return m_operator;
+    }
+
+    /** Gets the number of sales of the open receipt */
+    public int getPurchaces() {
+        return m_purchases;
+    }
+
+    /** Gets the sum accumulated in a tax group
+     *  @param index tax group number
+     */
+    public ZFPAmount getTaxGroupAmount(int index) {
+        if ((0 > index) || (GROUPS <= index))
+            return ZFPAmount.ZERO;
+        return m_taxgrp[index];
+    }
+
+    /** Gets the sum of the sales including the sub total discounts */
+    public ZFPAmount getTotalAmount() {
+        return m_total;
+    }
+
+    /** Gets the last sub total returned by Zeka FP, null when there was none in this receipt */
+    public ZFPAmount getSubTotalAmount() {
+        return m_subTotal;
+    }
+
+    /** Gets the sum paid so far, not exact after a synchronization in the middle of the payment */
+    public ZFPAmount getPaidAmount() {
+        return m_paid;
+    }
+
+    /** Gets the change of the open or the last closed receipt */
+    public ZFPAmount getChangeAmount() {
+        return m_change;
+    }
+
+    public boolean isPaymentStarted() {
+        return m_payStart;
+    }
+
+    public boolean isPaymentFinished() {
+        return m_payEnd;
+    }
+
+    /** Tells if the decimal point of the printer is known, the sums are rounded to 2 decimals until then */
+    public boolean hasDecimalPoint() {
+        return 0 <= m_decimalPoint;
+    }
+
+    /** Gets the number of decimals the sums are rounded to */
+    public int getScale() {
+        return (0 == m_decimalPoint) ? 0 : 2;
+    }
+
+    /** Sets the decimal point read from or written to Zeka FP
+     *  @param point the decimal point position (0 or 2)
+     */
+    public void setDecimalPoint(int point) {
+        int scale = getScale();
+        m_decimalPoint = point;
+        // the sales so far were rounded to other decimals
+        if ((scale != getScale()) && (0 != m_purchases))
+            m_exact = false;
+    }
+
+    /** Tells if the open receipt was paid with a sub total computed here */
+    public boolean isLocalSubTotal() {
+        return m_localSubTotal;
+    }
+
+    /** Gets the number of times the printer disagreed with the sums computed here */
+    public int getDriftCount() {
+        return m_drifts;
+    }
+
+    /** Notes a difference to the printer, the next use reads the receipt info and the decimal point */
+    public void drift() {
+        m_drifts++;
+        m_synchronized = false;
+        m_decimalPoint = -1;
+    }
+
+    /** Makes the next {@link ZFPLib#getReceiptState()} read the receipt info */
+    public void invalidate() {
+        m_synchronized = false;
+    }
+
+    /** Drops the synchronization when a receipt command failed, the printer may have done it or not
+     *  @param cmd the command byte
+     */
+    public void failed(byte cmd) {
+        if (isReceiptCommand(cmd))
+            m_synchronized = false;
+    }
+
+    /** Takes the receipt info read from Zeka FP */
+    public void sync(ZFPReceiptInfo info) {
+        clear();
+        m_open = info.isOpenReceipt();
+        m_fiscal = m_open;
+        m_invoice = info.isInvoice();
+        m_purchases = info.getPurchaces();
+        for (int i = 0; i < GROUPS; i++) {
+            m_taxgrp[i] = info.getTaxGroupAmount(i);
+            m_total = m_total.add(m_taxgrp[i]);
+        }
+        m_payStart = info.isPaymentStarted();
+        m_payEnd = info.isPaymentFinished();
+        m_change = info.getChangeAmount();
+        // the paid sum is not reported, it is known only before and after the payment
+        if (m_payEnd)
+            m_paid = m_total.add(m_change);
+        m_paidKnown = !m_payStart || m_payEnd;
+        m_synchronized = true;
+    }
+
+    /** Applies a frame Zeka FP has accepted
+     *  @param frame buffer holding the frame
+     *  @param off offset of the frame
+     *  @param len length of the frame
+     *  @param response the response frame
+     *  @param responseLen length of the response
+     */
+    public void apply(byte[] frame, int off, int len, byte[] response, int responseLen) {
+        int data = off + 4;
+        int end = off + len - 3;
+        try {
+            switch (frame[off + 3]) {
+                case 0x2E: // open non client receipt
+                    open(false, false);
+                    break;
+                case 0x30: // open client receipt or invoice, the invoice has 1 as its fifth field
+                    open(true, '1' == field(frame, data, end, 4));
+                    m_operator = Math.max(Character.digit(frame[data], 10), 0);
+                    break;
+                case 0x31: // name;taxgrp;price*quantity[,percent%]
+                    sellFree(frame, data, end);
+                    break;
+                case 0x32: // the price is in the printer database
+                    m_purchases++;
+                    m_exact = false;
+                    break;
+                case 0x33: // print;show[,percent%|:amount], the response is the sub total
+                    m_subTotal = ZFPAmount.parse(response, 4, responseLen - 7);
+                    if (m_subTotal.compareTo(m_total) != 0) {
+                        // the discount is spread over the tax groups by the printer
+                        if (hasAdjustment(frame, data, end))
+                            m_exact = false;
+                        m_total = m_subTotal;
+                    }
+                    break;
+                case 0x35: // type;noRest;sum
+                    payment(frame, data, end);
+                    break;
+                case 0x43: // password;point
+                    setDecimalPoint(Character.digit(frame[end - 1], 10));
+                    break;
+                case 0x63: // the response is the point
+                    setDecimalPoint(Character.digit(response[4], 10));
+                    break;
+                case 0x2F: // close non client receipt
+                case 0x38: // close client receipt
+                    close();
+                    break;
+            }
+        } catch (NumberFormatException | ArithmeticException e) {
+            // accepted by the printer but not understood here
+            m_synchronized = false;
+        }
+    }
+
+    /** Gets the amount of a sale the way Zeka FP rounds it
+     *  @param price unit price
+     *  @param quantity quantity
+     *  @param percent discount (negative) or addition in percent, null or zero for none
+     *  @param scale decimals of the printer, see {@link #getScale()}
+     *  @return the amount rounded half up to the decimals
+     */
+    public static ZFPAmount itemAmount(ZFPAmount price, ZFPAmount quantity, ZFPAmount percent, int scale) {
+        ZFPAmount sum = price.multiply(quantity, scale);
+        if ((null != percent) && (0 != percent.signum()))
+            sum = sum.add(sum.percent(percent, scale));
+        return sum;
+    }
+
+    /** Tells if a command opens, changes or closes a receipt */
+    public static boolean isReceiptCommand(byte cmd) {
+        return (0x2E <= cmd) && (0x38 >= cmd);
+    }
+
+    /** Gets the index of a tax group character, -1 when it is unknown */
+    public static int taxGroup(byte b) {
+        if (('0' <= b) && ('0' + GROUPS > b))
+            return b - '0';
+        if (('A' <= b) && ('A' + GROUPS > b))
+            return b - 'A';
+        return -1;
+    }
+
+    protected void setLocalSubTotal() {
+        m_localSubTotal = true;
+    }
+
+    protected void open(boolean fiscal, boolean invoice) {
+        clear();
+        m_open = true;
+        m_fiscal = fiscal;
+        m_invoice = invoice;
+        m_change = ZFPAmount.ZERO;
+        // whatever was before, the printer has a new empty receipt now
+        m_synchronized = true;
+    }
+
+    protected void close() {
+        ZFPAmount change = m_change;
+        clear();
+        m_change = change;
+        m_synchronized = true;
+    }
+
+    protected void clear() {
+        m_open = m_fiscal = m_invoice = m_payStart = m_payEnd = false;
+        m_exact = true;
+        m_purchases = 0;
+        m_operator = 0;
+        for (int i = 0; i < GROUPS; i++)
+            m_taxgrp[i] = ZFPAmount.ZERO;
+        m_total = ZFPAmount.ZERO;
+        m_paid = ZFPAmount.ZERO;
+        m_paidKnown = true;
+        m_subTotal = null;
+        m_localSubTotal = false;
+    }
+
+    protected void sellFree(byte[] b, int off, int end) {
+        // the name may hold ';', the tax group is the field before the last one
+        int sep = lastIndexOf(b, (byte) ';', off, end);
+        int group = (off + 2 <= sep) ? taxGroup(b[sep - 1]) : -1;
+        m_purchases++;
+        ZFPAmount sum = (0 > group) ? null : saleAmount(b, sep + 1, end, getScale());
+        if (null == sum) {
+            m_exact = false;
+            return;
+        }
+
+        m_taxgrp[group] = m_taxgrp[group].add(sum);
+        m_total = m_total.add(sum);
+    }
+
+    protected void payment(byte[] b, int off, int end) {
+        int sep = lastIndexOf(b, (byte) ';', off, end);
+        m_paid = m_paid.add(ZFPAmount.parse(b, sep + 1, end - sep - 1));
+        m_payStart = true;
+        if (!m_paidKnown) {
+            // the payments before the last synchronization are missing
+            m_synchronized = false;
+            return;
+        }
+        if (0 <= m_paid.compareTo(m_total)) {
+            m_payEnd = true;
+            m_change = m_paid.subtract(m_total);
+        }
+    }
+
+    protected static boolean hasAdjustment(byte[] b, int off, int end) {
+        return (0 <= indexOf(b, (byte) ',', off, end)) || (0 <= indexOf(b, (byte) ':', off, end));
+    }
+
+    // first character of a ';' separated field, 0 when there are fewer fields
+    protected static char field(byte[] b, int off, int end, int index) {
+        for (int i = off; i < end; i++) {
+            if (0 == index)
+                return (char) b[i];
+            if ((byte) ';' == b[i])
+                index--;
+        }
+        return 0;
+    }
+
+    /** Gets the amount of a sale from the end of its data, price*quantity[,percent%]
+     *  @return the amount, null when there is no quantity
+     *  @throws NumberFormatException if an amount cannot be parsed
+     */
+    protected static ZFPAmount saleAmount(byte[] b, int off, int end, int scale) {
+        int star = indexOf(b, (byte) '*', off, end);
+        if (0 > star)
+            return null;
+        ZFPAmount price = ZFPAmount.parse(b, off, star - off);
+        int comma = indexOf(b, (byte) ',', star + 1, end);
+        ZFPAmount quantity = ZFPAmount.parse(b, star + 1, ((0 > comma) ? end : comma) - star - 1);
+        ZFPAmount percent = null;
+        if (0 <= comma) {
+            int pend = ((byte) '%' == b[end - 1]) ? end - 1 : end;
+            percent = ZFPAmount.parse(b, comma + 1, pend - comma - 1);
+        }
+        return itemAmount(price, quantity, percent, scale);
+    }
+
+    protected static int indexOf(byte[] b, byte c, int from, int to) {
+        for (int i = from; i < to; i++)
+            if (c == b[i])
+                return i;
+        return -1;
+    }
+
+    protected static int lastIndexOf(byte[] b, byte c, int from, int to) {
+        for (int i = to - 1; i >= from; i--)
+            if (c == b[i])
+                return i;
+        return -1;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * ZFPReceiver.java
+ *
+ */
+
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/** ZFPReceiver reads the bytes coming from Zeka FP out of an <code>InputStream</code>
+ *  and pushes them into a {@link ZFPFrameDecoder}. A single daemon thread blocks on the
+ *  transport and reads whatever is available in bulk. Transports with a receive callback
+ *  feed the decoder directly and need no receiver.
+ */
+public class ZFPReceiver {
+
+    protected static final int CHUNK_SIZE = 256;
+
+    protected final InputStream m_input;
+    protected final ZFPFrameDecoder m_decoder;
+    protected volatile boolean m_running;
+    protected Thread m_pump;
+
+    /** Creates a new instance of ZFPReceiver and starts reading from the stream */
+    public ZFPReceiver(InputStream input, ZFPFrameDecoder decoder) {
+        m_input = input;
+        m_decoder = decoder;
+        m_running = true;
+        m_pump = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pump();
+            }
+        }, "ZFPReceiver");
+        m_pump.setDaemon(true);
+        m_pump.start();
+    }
+
+    /** Stops the reading thread. Bytes still in the transport are left there.
+     *  The thread is interrupted out of its read, so the transport must give up a blocking read
+     *  with an <code>InterruptedIOException</code>, as <code>SerialInputStream</code> and the
+     *  simulator do; otherwise the thread would take the next byte away from a new receiver on
+     *  the same stream.
+     */
+    public void close() {
+        m_running = false;
+        m_pump.interrupt();
+    }
+
+    protected void pump() {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        try {
+            while (m_running && !Thread.currentThread().isInterrupted()) {
+                // block for the first byte, then take everything already there
+                int b = m_input.read();
+                if (!m_running)
+                    break;
+                if (0 > b)
+                    throw new IOException("end of stream");
+                chunk[0] = (byte) b;
+                int len = 1;
+                int avail = m_input.available();
+                if (0 < avail)
+                    len += m_input.read(chunk, 1, Math.min(avail, CHUNK_SIZE - 1));
+                m_decoder.feed(chunk, 0, len);
+            }
+        } catch (InterruptedIOException e) {
+            // asked to stop, the transport itself is fine
+        } catch (IOException e) {
+            if (m_running)
+                m_decoder.fail(e);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * ZFPRetryPolicy.java
+ *
+ */
+
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+/** ZFPRetryPolicy decides when {@link ZFPLib} sends a frame again, with the same NBL,
+ *  instead of throwing the error to the caller.
+ *  <p>
+ *  NACK and RETRY mean the printer did not take the frame, so every command is resent.
+ *  A timeout or a broken response may come after the command has been executed, so only
+ *  the idempotent commands (status and information reads by default) are resent then.
+ *  Errors reported by the printer itself are never retried.
+ *  The delay before the n-th resend is <code>baseDelay * 2^(n-1)</code>, at most <code>maxDelay</code>.
+ */
+public class ZFPRetryPolicy {
+
+    /** Policy which never retries */
+    public static final ZFPRetryPolicy NONE = new ZFPRetryPolicy(0, 0, 0);
+
+    protected final int m_maxRetries;
+    protected final long m_baseDelay;
+    protected final long m_maxDelay;
+    protected final boolean[] m_idempotent;
+
+    /** Creates the default policy, 3 resends starting at 20 ms up to 500 ms */
+    public ZFPRetryPolicy() {
+        this(3, 20, 500);
+    }
+
+    /** Creates a new instance of ZFPRetryPolicy
+     *  @param maxRetries maximum number of resends of one frame
+     *  @param baseDelay delay before the first resend in milliseconds
+     *  @param maxDelay maximum delay before a resend in milliseconds
+     */
+    public ZFPRetryPolicy(int maxRetries, long baseDelay, long maxDelay) {
+        m_maxRetries = Math.max(maxRetries, 0);
+        m_baseDelay = Math.max(baseDelay, 0);
+        m_maxDelay = Math.max(maxDelay, m_baseDelay);
+        m_idempotent = new boolean[256];
+
+        setIdempotent((byte) 0x20, true); // status
+        setIdempotent((byte) 0x21, true); // version
+        for (int cmd = 0x24; cmd <= 0x28; cmd++)
+            setIdempotent((byte) cmd, true); // display
+        for (int cmd = 0x60; cmd <= 0x6B; cmd++)
+            setIdempotent((byte) cmd, true); // information
+        setIdempotent((byte) 0x6D, true); // daily sums
+        setIdempotent((byte) 0x72, true); // current receipt info
+        setIdempotent((byte) 0x74, true); // free fiscal space
+    }
+
+    /** Marks a command as safe or not safe to be executed twice
+     *  @param cmd the command byte
+     *  @param idempotent true if the command may be resent after a lost response
+     */
+    public void setIdempotent(byte cmd, boolean idempotent) {
+        m_idempotent[cmd & 0xFF] = idempotent;
+    }
+
+    public boolean isIdempotent(byte cmd) {
+        return m_idempotent[cmd & 0xFF];
+    }
+
+    public int getMaxRetries() {
+        return m_maxRetries;
+    }
+
+    /** Decides whether a failed frame is sent again
+     *  @param cmd the command byte of the frame
+     *  @param error the error code of the failure
+     *  @param retries number of resends of the frame so far
+     *  @return true if the frame should be sent again
+     */
+    public boolean shouldRetry(byte cmd, int error, int retries) {
+        if (retries >= m_maxRetries)
+            return false;
+
+        switch (error) {
+            case 0x103: // NACK or RETRY
+                return true;
+            case 0x102: // timeout
+            case 0x104: // CRC error
+            case 0x105: // bad response
+            case 0x10B: // bad NBL
+                return isIdempotent(cmd);
+        }
+        return false;
+    }
+
+    /** Gets the delay before a resend
+     *  @param retry number of the resend, starting at 1
+     *  @return delay in milliseconds
+     */
+    public long getDelay(int retry) {
+        long delay = m_baseDelay;
+        for (int i = 1; (i < retry) && (delay < m_maxDelay); i++)
+            delay <<= 1;
+        return Math.min(delay, m_maxDelay);
+    }
+}
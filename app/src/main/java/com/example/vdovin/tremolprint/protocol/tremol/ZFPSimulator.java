@@ -0,0 +1,613 @@
+/*
+ * ZFPSimulator.java
+ *
+ */
+
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Calendar;
+import java.util.concurrent.locks.LockSupport;
+
+/** ZFPSimulator is a Zeka FP that lives in the JVM. It answers the pings, checks the
+ *  frames (length, CRC, block number) and keeps the state of the client receipt, so
+ *  {@link ZFPLib} can be used without a printer:
+ *  <pre>
+ *  ZFPSimulator sim = new ZFPSimulator(19200);
+ *  ZFPLib zfp = new ZFPLib(sim.getInputStream(), sim.getOutputStream());
+ *  </pre>
+ *  The speed of the serial line is simulated by delaying every byte by the time it
+ *  would take on the wire. Bytes the host does not read are dropped when the
+ *  receive buffer is full, like on a real UART.
+ */
+public class ZFPSimulator {
+
+    protected static final int BUFFER_SIZE = 4096;
+    protected static final int GROUPS = 3;
+    protected static final int FRAME_SIZE = 256;
+
+    protected static final int STATE_CLOSED = 0x00;
+    protected static final int STATE_OPEN = 0x40;
+    protected static final int STATE_PAYING = 0x50;
+    protected static final int STATE_PAID = 0x70;
+
+    protected static final int ERR_ILLEGAL = 0x02;
+    protected static final int ERR_SYNTAX = 0x04;
+    protected static final int ERR_ZERO = 0x06;
+    protected static final int ERR_SUBTOTAL = 0x08;
+
+    protected static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+
+    // printer -> host
+    protected final byte[] m_out;
+    protected final long[] m_outTime;
+    protected int m_head;
+    protected int m_count;
+    protected long m_byteTime;
+    protected long m_rxDone;
+    protected long m_lineFree;
+    protected boolean m_closed;
+
+    // host -> printer
+    protected final byte[] m_frame;
+    protected int m_frameLen;
+    protected int m_expected;
+    protected int m_lastNbl;
+    protected final ZFPFrameEncoder m_reply;
+    protected int m_replyLen;
+    protected final byte[] m_raw;
+
+    // printer state
+    protected final byte[] m_status;
+    protected boolean m_open;
+    protected boolean m_payStart;
+    protected boolean m_payEnd;
+    protected int m_purchases;
+    protected final ZFPAmount[] m_taxgrp;
+    protected final ZFPAmount[] m_daily;
+    protected ZFPAmount m_total;
+    protected ZFPAmount m_paid;
+    protected ZFPAmount m_change;
+    protected int m_bonNumber;
+    protected long m_frames;
+
+    protected final InputStream m_input;
+    protected final OutputStream m_output;
+
+    /** Creates a new instance of ZFPSimulator without any line delay */
+    public ZFPSimulator() {
+        this(0);
+    }
+
+    /** Creates a new instance of ZFPSimulator
+     *  @param baudRate simulated speed of the serial line, 0 for no delay
+     */
+    public ZFPSimulator(int baudRate) {
+        m_out = new byte[BUFFER_SIZE];
+        m_outTime = new long[BUFFER_SIZE];
+        m_frame = new byte[FRAME_SIZE];
+        m_reply = new ZFPFrameEncoder();
+        m_raw = new byte[8];
+        m_lastNbl = -1;
+
+        m_status = new byte[5];
+        m_status[3] = 0x70; // fiscalized, has numbers and decimal point
+        m_taxgrp = new ZFPAmount[GROUPS];
+        m_daily = new ZFPAmount[GROUPS];
+        for (int i = 0; i < GROUPS; i++)
+            m_daily[i] = ZFPAmount.ZERO;
+        clearReceipt();
+        m_change = ZFPAmount.ZERO;
+
+        setBaudRate(baudRate);
+        m_input = new SimInputStream();
+        m_output = new SimOutputStream();
+    }
+
+    /** Gets the stream of the bytes sent by the printer, to be passed to {@link ZFPLib} */
+    public InputStream getInputStream() {
+        return m_input;
+    }
+
+    /** Gets the stream of the bytes received by the printer, to be passed to {@link ZFPLib} */
+    public OutputStream getOutputStream() {
+        return m_output;
+    }
+
+    /** Sets the simulated speed of the serial line (10 bits per byte)
+     *  @param baudRate the baud rate, 0 for no delay
+     */
+    public synchronized void setBaudRate(int baudRate) {
+        m_byteTime = (0 < baudRate) ? 10L * 1000000000L / baudRate : 0;
+    }
+
+    /** Sets the delay of every byte on the line
+     *  @param nanos time in nanoseconds, 0 for no delay
+     */
+    public synchronized void setByteDelay(long nanos) {
+        m_byteTime = Math.max(nanos, 0);
+    }
+
+    /** Sets or clears status flags reported by the status command, e.g. paper out is byte 1, bit 0x01
+     *  @param index status byte (0 to 4)
+     *  @param bits the flags
+     *  @param on set when true, clear when false
+     *  @see ZFPStatus
+     */
+    public synchronized void setStatusBits(int index, int bits, boolean on) {
+        if (on)
+            m_status[index] |= bits;
+        else
+            m_status[index] &= ~bits;
+    }
+
+    /** Gets the number of valid frames processed
+     *  @return number of frames
+     */
+    public synchronized long getFrameCount() {
+        return m_frames;
+    }
+
+    /** Gets the number of closed client receipts
+     *  @return number of receipts
+     */
+    public synchronized int getBonNumber() {
+        return m_bonNumber;
+    }
+
+    /** Gets the sum of the receipt being printed
+     *  @return the sum, zero when no receipt is open
+     */
+    public synchronized ZFPAmount getTotal() {
+        return m_total;
+    }
+
+    /** Disconnects the printer, reading from its input stream returns end of stream */
+    public synchronized void close() {
+        m_closed = true;
+        notifyAll();
+    }
+
+    protected synchronized void receive(byte b) {
+        if (m_closed)
+            return;
+        m_rxDone = Math.max(System.nanoTime(), m_rxDone) + m_byteTime;
+
+        if (0 == m_frameLen) {
+            switch (b) {
+                case 0x04: // ping
+                case 0x05: // busy ping
+                    send(b);
+                    break;
+
+                case 0x02: // STX
+                    m_frame[m_frameLen++] = b;
+                    break;
+
+                default: // antiecho or noise
+                    break;
+            }
+            return;
+        }
+
+        m_frame[m_frameLen++] = b;
+        if (2 == m_frameLen) {
+            m_expected = (b & 0xFF) - 0x23 + 7;
+            if ((7 > m_expected) || (FRAME_SIZE < m_expected)) {
+                m_frameLen = 0;
+                send((byte) 0x15);
+            }
+        } else if (m_expected == m_frameLen) {
+            m_frameLen = 0;
+            if ((byte) 0x0A == b)
+                frame(m_expected);
+            else
+                send((byte) 0x15);
+        }
+    }
+
+    protected void frame(int len) {
+        byte crc = 0;
+        for (int i = 1; i < len - 3; i++)
+            crc ^= m_frame[i];
+        // ZFPLib sends the high digit sign extended when the CRC is above 0x7F
+        byte high = m_frame[len - 3];
+        if (((high != (byte) (((crc >> 4) & 0x0F) | 0x30)) && (high != (byte) ((crc >> 4) | 0x30))) ||
+                (m_frame[len - 2] != (byte) ((crc & 0x0F) | 0x30))) {
+            send((byte) 0x15);
+            return;
+        }
+
+        int nbl = m_frame[2] & 0xFF;
+        if (nbl != m_lastNbl) {
+            // a repeated block number is a retransmission, it gets the same answer
+            m_lastNbl = nbl;
+            m_frames++;
+            m_reply.reset();
+            m_replyLen = execute(m_frame[3], 4, len - 3);
+        }
+        send(m_reply.getBuffer(), m_replyLen);
+    }
+
+    protected int execute(byte cmd, int off, int end) {
+        switch (cmd) {
+            case 0x20: // status
+                begin(cmd);
+                for (int i = 0; i < 5; i++)
+                    m_raw[i] = (byte) (0x80 | m_status[i]);
+                if (m_open)
+                    m_raw[2] |= 0x02;
+                m_reply.append(m_raw, 0, 5);
+                return end();
+
+            case 0x21: // version
+                begin(cmd);
+                m_reply.append("ZFP-SIM 1.0");
+                return end();
+
+            case 0x30: // open client receipt
+                if (m_open)
+                    return ack(state() | ERR_ILLEGAL);
+                clearReceipt();
+                m_open = true;
+                return ack(0);
+
+            case 0x31: // sell free
+                return sell(off, end);
+
+            case 0x32: // sell from database, every article costs 1.00 in the first tax group
+                if (!m_open || m_payStart)
+                    return ack(state() | ERR_ILLEGAL);
+                return register(0, ZFPAmount.valueOf(100, 2), off + 8, end);
+
+            case 0x33: // sub total
+                return subTotal(cmd, off, end);
+
+            case 0x35: // payment
+                return payment(off, end);
+
+            case 0x38: // close client receipt
+                if (!m_open)
+                    return ack(ERR_ILLEGAL);
+                if (!m_payEnd)
+                    return ack(state() | ERR_SUBTOTAL);
+                for (int i = 0; i < GROUPS; i++)
+                    m_daily[i] = m_daily[i].add(m_taxgrp[i]);
+                m_bonNumber++;
+                clearReceipt();
+                return ack(0);
+
+            case 0x60: // factory and fiscal numbers
+                begin(cmd);
+                m_reply.append("SIM00001;SIM00001");
+                return end();
+
+            case 0x61: // tax number
+                begin(cmd);
+                m_reply.append("0000000000000");
+                return end();
+
+            case 0x62: // tax percents
+                begin(cmd);
+                m_reply.append("20.00%;09.00%;00.00%;");
+                return end();
+
+            case 0x63: // decimal point
+                begin(cmd);
+                m_reply.append('1');
+                return end();
+
+            case 0x68: // date and time
+                Calendar cal = Calendar.getInstance();
+                begin(cmd);
+                m_reply.unsigned(cal.get(Calendar.DAY_OF_MONTH), 2).append('-')
+                        .unsigned(cal.get(Calendar.MONTH), 2).append('-')
+                        .unsigned(cal.get(Calendar.YEAR), 2).append(' ')
+                        .unsigned(cal.get(Calendar.HOUR_OF_DAY), 2).append(':')
+                        .unsigned(cal.get(Calendar.MINUTE), 2);
+                return end();
+
+            case 0x6D: // daily sums
+                begin(cmd);
+                for (int i = 0; i < GROUPS; i++) {
+                    if (0 < i)
+                        m_reply.append(';');
+                    m_reply.fixed(m_daily[i], 2, 0, false, '.');
+                }
+                return end();
+
+            case 0x72: // current receipt info
+                return receiptInfo(cmd);
+
+            default: // display, reports, settings... are accepted
+                return ack(0);
+        }
+    }
+
+    // name(36);taxgrp;price*quantity[,percent%]
+    protected int sell(int off, int end) {
+        if (!m_open || m_payStart)
+            return ack(state() | ERR_ILLEGAL);
+
+        int sep = lastIndexOf((byte) ';', off, end);
+        if ((off + 2 > sep) || ((byte) ';' != m_frame[sep - 2]))
+            return ack(state() | ERR_SYNTAX);
+        int group = taxGroup(m_frame[sep - 1]);
+        int star = indexOf((byte) '*', sep + 1, end);
+        if ((0 > group) || (0 > star))
+            return ack(state() | ERR_SYNTAX);
+
+        try {
+            ZFPAmount price = ZFPAmount.parse(m_frame, sep + 1, star - sep - 1);
+            return register(group, price, star + 1, end);
+        } catch (NumberFormatException e) {
+            return ack(state() | ERR_SYNTAX);
+        }
+    }
+
+    // quantity[,percent%]
+    protected int register(int group, ZFPAmount price, int off, int end) {
+        try {
+            int comma = indexOf((byte) ',', off, end);
+            ZFPAmount quantity = ZFPAmount.parse(m_frame, off, ((0 > comma) ? end : comma) - off);
+            ZFPAmount sum = price.multiply(quantity, 2);
+            if (0 <= comma)
+                sum = sum.add(sum.percent(percent(comma + 1, end), 2));
+            if (0 == quantity.signum())
+                return ack(state() | ERR_ZERO);
+
+            m_taxgrp[group] = m_taxgrp[group].add(sum);
+            m_total = m_total.add(sum);
+            m_purchases++;
+            return ack(0);
+        } catch (NumberFormatException e) {
+            return ack(state() | ERR_SYNTAX);
+        }
+    }
+
+    // print;show[,percent%|:amount]
+    protected int subTotal(byte cmd, int off, int end) {
+        if (!m_open)
+            return ack(ERR_ILLEGAL);
+
+        try {
+            int comma = indexOf((byte) ',', off, end);
+            int colon = indexOf((byte) ':', off, end);
+            ZFPAmount change = ZFPAmount.ZERO;
+            if (0 <= comma)
+                change = m_total.percent(percent(comma + 1, end), 2);
+            else if (0 <= colon)
+                change = ZFPAmount.parse(m_frame, colon + 1, end - colon - 1);
+            m_total = m_total.add(change).setScale(2);
+        } catch (NumberFormatException e) {
+            return ack(state() | ERR_SYNTAX);
+        }
+
+        begin(cmd);
+        m_reply.fixed(m_total, 2, 10, false, '.');
+        return end();
+    }
+
+    // type;noRest;sum
+    protected int payment(int off, int end) {
+        if (!m_open)
+            return ack(ERR_ILLEGAL);
+        if (0 == m_purchases)
+            return ack(state() | ERR_ZERO);
+        if (m_payEnd)
+            return ack(state() | ERR_ILLEGAL);
+
+        int sep = lastIndexOf((byte) ';', off, end);
+        if (0 > sep)
+            return ack(state() | ERR_SYNTAX);
+        try {
+            m_paid = m_paid.add(ZFPAmount.parse(m_frame, sep + 1, end - sep - 1));
+        } catch (NumberFormatException e) {
+            return ack(state() | ERR_SYNTAX);
+        }
+
+        m_payStart = true;
+        if (0 <= m_paid.compareTo(m_total)) {
+            m_payEnd = true;
+            m_change = m_paid.subtract(m_total);
+        }
+        return ack(0);
+    }
+
+    // laid out the way ZFPReceiptInfo reads it
+    protected int receiptInfo(byte cmd) {
+        begin(cmd);
+        if (m_open) {
+            m_reply.append("1;");
+            m_reply.unsigned(m_purchases, 1);
+            for (int i = 0; i < GROUPS; i++) {
+                m_reply.append(';');
+                m_reply.fixed(m_taxgrp[i], 2, 0, false, '.');
+            }
+            m_reply.append(";0;0;0;");
+            m_reply.append(m_payStart).append(';');
+            m_reply.append(m_payEnd).append(";0;0;");
+            m_reply.fixed(m_change, 2, 0, false, '.');
+        } else {
+            m_reply.append("0;");
+            m_reply.text("", 54);
+            m_reply.fixed(m_change, 2, 11, false, '.');
+        }
+        return end();
+    }
+
+    protected ZFPAmount percent(int off, int end) {
+        int len = end - off;
+        if ((0 < len) && ((byte) '%' == m_frame[end - 1]))
+            len--;
+        return ZFPAmount.parse(m_frame, off, len);
+    }
+
+    protected static int taxGroup(byte b) {
+        if (('0' <= b) && ('0' + GROUPS > b))
+            return b - '0';
+        if (('A' <= b) && ('A' + GROUPS > b))
+            return b - 'A';
+        return -1;
+    }
+
+    protected int state() {
+        if (!m_open)
+            return STATE_CLOSED;
+        if (m_payEnd)
+            return STATE_PAID;
+        return m_payStart ? STATE_PAYING : STATE_OPEN;
+    }
+
+    protected void clearReceipt() {
+        m_open = m_payStart = m_payEnd = false;
+        m_purchases = 0;
+        for (int i = 0; i < GROUPS; i++)
+            m_taxgrp[i] = ZFPAmount.ZERO;
+        m_total = ZFPAmount.ZERO;
+        m_paid = ZFPAmount.ZERO;
+    }
+
+    protected int indexOf(byte b, int from, int to) {
+        for (int i = from; i < to; i++)
+            if (b == m_frame[i])
+                return i;
+        return -1;
+    }
+
+    protected int lastIndexOf(byte b, int from, int to) {
+        for (int i = to - 1; i >= from; i--)
+            if (b == m_frame[i])
+                return i;
+        return -1;
+    }
+
+    protected void begin(byte cmd) {
+        m_reply.begin(cmd);
+    }
+
+    protected int end() {
+        int len = m_reply.end();
+        m_reply.seal(0, len, m_lastNbl);
+        byte[] buf = m_reply.getBuffer();
+        buf[len - 3] = (byte) ((buf[len - 3] & 0x0F) | 0x30); // the printer never sign extends
+        return len;
+    }
+
+    // ACK with the error code as two hex digits
+    protected int ack(int error) {
+        byte[] b = m_raw;
+        b[0] = (byte) 0x06;
+        b[1] = (byte) 0x24;
+        b[2] = HEX[(error >> 4) & 0x0F];
+        b[3] = HEX[error & 0x0F];
+        byte crc = (byte) (b[1] ^ b[2] ^ b[3]);
+        b[4] = (byte) (((crc >> 4) & 0x0F) | 0x30);
+        b[5] = (byte) ((crc & 0x0F) | 0x30);
+        b[6] = (byte) 0x0A;
+        m_reply.append(b, 0, 7);
+        return 7;
+    }
+
+    protected void send(byte b) {
+        m_frame[0] = b;
+        send(m_frame, 1);
+    }
+
+    protected void send(byte[] data, int len) {
+        long time = Math.max(m_rxDone, m_lineFree);
+        for (int i = 0; (i < len) && (BUFFER_SIZE > m_count); i++) {
+            int tail = (m_head + m_count) % BUFFER_SIZE;
+            time += m_byteTime;
+            m_out[tail] = data[i];
+            m_outTime[tail] = time;
+            m_count++;
+        }
+        m_lineFree = time;
+        notifyAll();
+    }
+
+    /** Waits for the next byte on the host side
+     *  @return 0 when a byte is there, -1 at the end of stream or the nanoseconds to park
+     */
+    protected synchronized long ready() throws IOException {
+        while (0 == m_count) {
+            if (m_closed)
+                return -1;
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("read interrupted");
+            }
+        }
+        return Math.max(m_outTime[m_head] - System.nanoTime(), 0);
+    }
+
+    protected synchronized int take(byte[] dst, int off, int len) {
+        long now = System.nanoTime();
+        int n = 0;
+        while ((n < len) && (0 < m_count) && (m_outTime[m_head] <= now)) {
+            dst[off + n++] = m_out[m_head];
+            m_head = (m_head + 1) % BUFFER_SIZE;
+            m_count--;
+        }
+        return n;
+    }
+
+    protected synchronized int available() {
+        long now = System.nanoTime();
+        int n = 0;
+        while ((n < m_count) && (m_outTime[(m_head + n) % BUFFER_SIZE] <= now))
+            n++;
+        return n;
+    }
+
+    protected class SimInputStream extends InputStream {
+
+        protected final byte[] m_one = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            return (0 > read(m_one, 0, 1)) ? -1 : (m_one[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (0 == len)
+                return 0;
+            while (true) {
+                long wait = ready();
+                if (0 > wait)
+                    return -1;
+                if (0 < wait)
+                    LockSupport.parkNanos(wait);
+                int n = take(b, off, len);
+                if (0 < n)
+                    return n;
+            }
+        }
+
+        @Override
+        public int available() {
+            return ZFPSimulator.this.available();
+        }
+    }
+
+    protected class SimOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) {
+            receive((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            for (int i = 0; i < len; i++)
+                receive(b[off + i]);
+        }
+    }
+}
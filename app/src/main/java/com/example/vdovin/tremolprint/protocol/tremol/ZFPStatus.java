@@ -30,6 +30,17 @@ public class ZFPStatus {
         }
     }
     
+    /** Gets all status bits at once, e.g. to find the flags which changed
+     *  @return bit <code>8 * n + b</code> is bit b of status byte n
+     */
+    public long getFlags()
+    {
+        long flags = 0;
+        for (int i = 0; i < m_status.length; i++)
+            flags |= (long) (m_status[i] & 0xFF) << (8 * i);
+        return flags;
+    }
+
     /** Gets Tax Memory read status
      *  @return Read Only when true
      */
@@ -0,0 +1,162 @@
+/*
+ * ZFPStatusMonitor.java
+ *
+ */
+
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/** ZFPStatusMonitor keeps the latest {@link ZFPStatus} of Zeka FP, so callers can check it
+ *  without a round trip. {@link ZFPAsync} refreshes it when no command is waiting and the
+ *  snapshot is older than the interval, and after every failed command.
+ *  <p>
+ *  When a watched flag changes (paper out, overheating, power down, wrong RAM and the other
+ *  alarms by default) the listeners are called on the printer thread, they must not block.
+ *  A RuntimeException thrown by a listener is ignored.
+ */
+public class ZFPStatusMonitor {
+
+    /** Receives the changes of the watched flags */
+    public interface Listener {
+        /** @param previous the status before, null for the first status
+         *  @param current the new status
+         *  @param changed the watched flags which changed, see {@link ZFPStatus#getFlags()}
+         */
+        void onStatusChanged(ZFPStatus previous, ZFPStatus current, long changed);
+    }
+
+    public static final long READ_ONLY_FM = 1L << 0;
+    public static final long POWER_DOWN = 1L << 1;
+    public static final long OVERHEAT = 1L << 2;
+    public static final long WRONG_RAM = 1L << 5;
+    public static final long CLOCK_ERROR = 1L << 6;
+    public static final long PAPER_OUT = 1L << 8;
+    public static final long OPEN_FISCAL_BON = 1L << 17;
+    public static final long FULL_FISCAL_MEMORY = 1L << 26;
+    public static final long FISCAL_MEMORY_NEAR_FULL = 1L << 27;
+    /** The flags watched by default */
+    public static final long ALARMS = READ_ONLY_FM | POWER_DOWN | OVERHEAT | WRONG_RAM | CLOCK_ERROR
+            | PAPER_OUT | FULL_FISCAL_MEMORY | FISCAL_MEMORY_NEAR_FULL;
+
+    /** Default time between two refreshes in milliseconds */
+    public static final long DEFAULT_INTERVAL = 5000;
+
+    protected final CopyOnWriteArrayList<Listener> m_listeners;
+    protected volatile ZFPStatus m_status;
+    protected volatile long m_time;
+    protected volatile long m_interval;
+    protected volatile long m_watched;
+    protected volatile boolean m_stale;
+    protected volatile ZFPException m_error;
+    protected long m_lastRefresh;
+
+    /** Creates a new instance of ZFPStatusMonitor, there is no status until the first refresh */
+    public ZFPStatusMonitor() {
+        m_listeners = new CopyOnWriteArrayList<Listener>();
+        m_interval = DEFAULT_INTERVAL;
+        m_watched = ALARMS;
+        m_stale = true;
+    }
+
+    public void addListener(Listener listener) {
+        m_listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        m_listeners.remove(listener);
+    }
+
+    /** Sets the flags which are reported to the listeners
+     *  @param flags a combination of the flag constants or any bits of {@link ZFPStatus#getFlags()}
+     */
+    public void setWatchedFlags(long flags) {
+        m_watched = flags;
+    }
+
+    /** Sets the time between two refreshes
+     *  @param interval interval in milliseconds, 0 stops the background refreshes
+     */
+    public void setInterval(long interval) {
+        m_interval = Math.max(interval, 0);
+    }
+
+    public long getInterval() {
+        return m_interval;
+    }
+
+    /** Gets the latest status without any communication
+     *  @return the status, null before the first refresh
+     */
+    public ZFPStatus getStatus() {
+        return m_status;
+    }
+
+    /** Gets the age of the latest status
+     *  @return milliseconds since it was read, -1 when there is none
+     */
+    public long getAge() {
+        return (null == m_status) ? -1 : (System.nanoTime() - m_time) / 1000000L;
+    }
+
+    /** Gets the error of the last refresh
+     *  @return the error, null when the last refresh succeeded
+     */
+    public ZFPException getLastError() {
+        return m_error;
+    }
+
+    /** Makes the next idle gap refresh the status, e.g. after a failed command */
+    public void invalidate() {
+        m_stale = true;
+    }
+
+    /** Gets the time until the next refresh is due
+     *  @param now the current time in terms of <code>System.nanoTime()</code>
+     *  @return nanoseconds to wait, 0 when the refresh is due, -1 when the refreshes are off
+     */
+    public long getRefreshDelay(long now) {
+        long interval = m_interval;
+        if (0 == interval)
+            return m_stale ? 0 : -1;
+        if (m_stale)
+            return 0;
+        long left = m_lastRefresh + interval * 1000000L - now;
+        return (0 < left) ? left : 0;
+    }
+
+    /** Reads the status from Zeka FP
+     *  @param zfp the printer, the call must not overlap other commands on it
+     *  @throws ZFPException in case of communication error, the previous status is kept
+     */
+    public void refresh(ZFPLib zfp) throws ZFPException {
+        m_lastRefresh = System.nanoTime();
+        m_stale = false;
+        try {
+            update(zfp.getStatus());
+        } catch (ZFPException e) {
+            m_error = e;
+            throw e;
+        }
+    }
+
+    /** Takes a status read by somebody else and reports the changed flags
+     *  @param status the status just read
+     */
+    public void update(ZFPStatus status) {
+        ZFPStatus previous = m_status;
+        m_status = status;
+        m_time = System.nanoTime();
+        m_error = null;
+
+        long changed = ((null == previous) ? status.getFlags() : previous.getFlags() ^ status.getFlags()) & m_watched;
+        if (0 != changed)
+            for (Listener listener : m_listeners) {
+                try {
+                    listener.onStatusChanged(previous, status, changed);
+                } catch (RuntimeException e) {
+                    // a broken listener must not kill the printer thread or keep the others uninformed
+                }
+            }
+    }
+}
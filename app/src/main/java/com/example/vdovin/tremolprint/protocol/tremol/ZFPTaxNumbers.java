@@ -12,15 +12,19 @@ package com.example.vdovin.tremolprint.protocol.tremol;
 public class ZFPTaxNumbers {
 
     protected float[] m_taxgrp;
+    protected ZFPAmount[] m_amounts;
     
     /** Creates a new instance of ZFPTaxNumbers */
     public ZFPTaxNumbers(byte[] output, int outputLen, int lang, String delimiter) throws ZFPException 
     {
         String[] s = new String(output, 4, outputLen - 7).split(delimiter);
         m_taxgrp = new float[s.length];
+        m_amounts = new ZFPAmount[s.length];
         try {
-            for (int i = 0; i < s.length; i++)
-                m_taxgrp[i] = Float.parseFloat(s[i]);
+            for (int i = 0; i < s.length; i++) {
+                m_amounts[i] = ZFPAmount.parse(s[i]);
+                m_taxgrp[i] = m_amounts[i].floatValue();
+            }
         } catch (Exception e) {
             throw new ZFPException(0x106, lang);
         }
@@ -42,5 +46,22 @@ public class ZFPTaxNumbers {
     {
         return m_taxgrp;
     }
+
+    /** Gets the exact value of certain tax group
+     *  @param index number tax group
+     *  @return the value of the selected tax group
+     */
+    public ZFPAmount getTaxGrpAmount(int index)
+    {
+        return m_amounts[index];
+    }
+
+    /** Gets the exact values of all tax groups
+     *  @return array with the values of all tax groups
+     */
+    public ZFPAmount[] getTaxGroupAmounts()
+    {
+        return m_amounts;
+    }
     
 }
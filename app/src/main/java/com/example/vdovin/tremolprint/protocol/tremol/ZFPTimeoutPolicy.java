@@ -0,0 +1,133 @@
+/*
+ * ZFPTimeoutPolicy.java
+ *
+ */
+
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+/** ZFPTimeoutPolicy gives {@link ZFPLib} the response timeout of each command byte.
+ *  Every command starts from the default of its class: pings and reads are fast,
+ *  printing commands take the usual 3 seconds and reports may take a minute.
+ *  The observed response times are kept in a small histogram per command, once there are
+ *  enough of them the timeout is twice the upper bound of the slowest bucket.
+ *  Only the fast commands may get a timeout shorter than their default, a command which
+ *  changes the printer state is never cut short by what has been learned.
+ *  A timeout counts as a response at the timeout, so the next one is longer.
+ *  Old samples are halved now and then, so the histogram follows the printer.
+ *  The policy belongs to one ZFPLib and is not thread safe.
+ */
+public class ZFPTimeoutPolicy {
+
+    /** Timeout of the fast commands in milliseconds */
+    public static final long FAST_TIMEOUT = 1000;
+    /** Timeout of the other commands in milliseconds */
+    public static final long DEFAULT_TIMEOUT = 3000;
+    /** Timeout of the reports in milliseconds */
+    public static final long REPORT_TIMEOUT = 60000;
+    /** The learned timeouts of the fast commands are never shorter */
+    public static final long MIN_TIMEOUT = 200;
+    /** The learned timeouts are never longer */
+    public static final long MAX_TIMEOUT = 120000;
+
+    // bucket i holds the response times from 2^i to 2^(i+1) - 1 milliseconds
+    protected static final int BUCKETS = 18;
+    protected static final int MIN_SAMPLES = 8;
+    protected static final int WINDOW = 64;
+
+    protected final long[] m_defaults;
+    protected final long[] m_floors;
+    protected final int[][] m_histograms;
+    protected final int[] m_samples;
+    protected boolean m_adaptive;
+
+    /** Creates a new instance of ZFPTimeoutPolicy with the default timeouts */
+    public ZFPTimeoutPolicy() {
+        m_defaults = new long[256];
+        m_floors = new long[256];
+        m_histograms = new int[256][];
+        m_samples = new int[256];
+        m_adaptive = true;
+
+        for (int cmd = 0; cmd < 256; cmd++)
+            m_defaults[cmd] = DEFAULT_TIMEOUT;
+        m_defaults[0x04] = FAST_TIMEOUT; // pings
+        m_defaults[0x05] = FAST_TIMEOUT;
+        m_defaults[0x20] = FAST_TIMEOUT; // status
+        m_defaults[0x21] = FAST_TIMEOUT; // version
+        for (int cmd = 0x24; cmd <= 0x28; cmd++)
+            m_defaults[cmd] = FAST_TIMEOUT; // display
+        for (int cmd = 0x60; cmd <= 0x6B; cmd++)
+            m_defaults[cmd] = FAST_TIMEOUT; // information
+        m_defaults[0x6D] = FAST_TIMEOUT; // daily sums
+        m_defaults[0x72] = FAST_TIMEOUT; // current receipt info
+        m_defaults[0x74] = FAST_TIMEOUT; // free fiscal space
+        for (int cmd = 0x77; cmd <= 0x7F; cmd++)
+            m_defaults[cmd] = REPORT_TIMEOUT; // reports
+
+        for (int cmd = 0; cmd < 256; cmd++)
+            m_floors[cmd] = (FAST_TIMEOUT == m_defaults[cmd]) ? MIN_TIMEOUT : m_defaults[cmd];
+    }
+
+    /** Sets the timeout of a command and forgets what has been learned about it
+     *  @param cmd the command byte
+     *  @param timeout timeout in milliseconds
+     */
+    public void setTimeout(byte cmd, long timeout) {
+        m_defaults[cmd & 0xFF] = timeout;
+        m_floors[cmd & 0xFF] = Math.min(m_floors[cmd & 0xFF], timeout);
+        m_histograms[cmd & 0xFF] = null;
+        m_samples[cmd & 0xFF] = 0;
+    }
+
+    /** Turns the learning on or off, the default timeouts are used while it is off */
+    public void setAdaptive(boolean adaptive) {
+        m_adaptive = adaptive;
+    }
+
+    public boolean isAdaptive() {
+        return m_adaptive;
+    }
+
+    /** Gets the timeout of a command
+     *  @param cmd the command byte
+     *  @return timeout in milliseconds
+     */
+    public long getTimeout(byte cmd) {
+        int i = cmd & 0xFF;
+        if (!m_adaptive || (MIN_SAMPLES > m_samples[i]))
+            return m_defaults[i];
+
+        int[] histogram = m_histograms[i];
+        int bucket = BUCKETS - 1;
+        while ((0 < bucket) && (0 == histogram[bucket]))
+            bucket--;
+        long timeout = (2L << bucket) * 2;
+        return Math.max(m_floors[i], Math.min(MAX_TIMEOUT, timeout));
+    }
+
+    /** Records the time a command waited for its response
+     *  @param cmd the command byte
+     *  @param nanos response time in nanoseconds, the timeout when there was no response
+     */
+    public void record(byte cmd, long nanos) {
+        int i = cmd & 0xFF;
+        int[] histogram = m_histograms[i];
+        if (null == histogram) {
+            histogram = new int[BUCKETS];
+            m_histograms[i] = histogram;
+        }
+
+        long millis = Math.max(nanos / 1000000L, 1);
+        int bucket = Math.min(63 - Long.numberOfLeadingZeros(millis), BUCKETS - 1);
+        histogram[bucket]++;
+
+        if (WINDOW == ++m_samples[i]) {
+            int samples = 0;
+            for (int j = 0; j < BUCKETS; j++) {
+                histogram[j] >>= 1;
+                samples += histogram[j];
+            }
+            m_samples[i] = samples;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * ZFPTraceFormatter.java
+ *
+ */
+
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/** ZFPTraceFormatter turns the recorded bytes of a Zeka FP connection into readable lines.
+ *  The bytes of each direction go through their own {@link ZFPFrameDecoder}, every frame or
+ *  single byte answer it completes is written as one line with the time of the chunk
+ *  which completed it, e.g.
+ *  <pre>
+ *     1.204311 TX STX nbl=0x21 cmd=0x30 "1;0;0;0;0" crc ok
+ *     1.209876 RX ACK error=00
+ *  </pre>
+ *  It is meant for traces read back offline, it is not thread safe.
+ */
+public class ZFPTraceFormatter {
+
+    protected final Writer m_out;
+    protected final ZFPFrameDecoder m_tx;
+    protected final ZFPFrameDecoder m_rx;
+    protected final byte[] m_frame;
+
+    /** Creates a new instance of ZFPTraceFormatter
+     *  @param out receives the lines
+     */
+    public ZFPTraceFormatter(Writer out) {
+        m_out = out;
+        m_tx = new ZFPFrameDecoder();
+        m_rx = new ZFPFrameDecoder();
+        m_frame = new byte[ZFPFrameDecoder.FRAME_SIZE];
+    }
+
+    /** Decodes a recorded chunk
+     *  @param tx true for bytes sent to the printer, false for received bytes
+     *  @param nanos time of the chunk in nanoseconds
+     *  @param data the bytes
+     *  @param off offset of the first byte
+     *  @param len number of bytes
+     *  @throws IOException when writing fails
+     */
+    public void format(boolean tx, long nanos, byte[] data, int off, int len) throws IOException {
+        ZFPFrameDecoder decoder = tx ? m_tx : m_rx;
+        decoder.feed(data, off, len);
+        int kind;
+        // the deadline has passed already, so only the completed results are taken
+        while (ZFPFrameDecoder.NONE != (kind = decoder.next(m_frame, 0))) {
+            m_out.write(time(nanos));
+            m_out.write(tx ? " TX " : " RX ");
+            m_out.write(describe(kind, m_frame, decoder.getLength()));
+            m_out.write('\n');
+        }
+    }
+
+    /** Describes one result of a {@link ZFPFrameDecoder}
+     *  @param kind the result kind
+     *  @param b the frame or the single byte
+     *  @param len its length
+     *  @return the description without a line end
+     */
+    public static String describe(int kind, byte[] b, int len) {
+        StringBuilder s = new StringBuilder();
+        switch (kind) {
+            case ZFPFrameDecoder.FRAME:
+            case ZFPFrameDecoder.BAD_CRC:
+                if ((byte) 0x06 == b[0]) {
+                    s.append("ACK error=").append((char) b[2]).append((char) b[3]);
+                } else {
+                    s.append("STX nbl=").append(hex(b[2])).append(" cmd=").append(hex(b[3]));
+                    if (7 < len)
+                        s.append(' ').append(quote(b, 4, len - 7));
+                }
+                s.append((ZFPFrameDecoder.FRAME == kind) ? " crc ok" : " bad crc");
+                break;
+            case ZFPFrameDecoder.BAD_FRAME:
+                s.append("bad frame ").append(quote(b, 0, len));
+                break;
+            case ZFPFrameDecoder.NACK:
+                s.append("NACK");
+                break;
+            case ZFPFrameDecoder.RETRY:
+                s.append("RETRY");
+                break;
+            case ZFPFrameDecoder.ANTIECHO:
+                s.append("antiecho");
+                break;
+            case ZFPFrameDecoder.PING:
+                s.append("ping ").append(hex(b[0]));
+                break;
+        }
+        return s.toString();
+    }
+
+    protected static String hex(byte b) {
+        String s = Integer.toHexString(b & 0xFF).toUpperCase();
+        return (1 == s.length()) ? "0x0" + s : "0x" + s;
+    }
+
+    // printable ASCII as it is, everything else as \xNN
+    protected static String quote(byte[] b, int off, int len) {
+        StringBuilder s = new StringBuilder(len + 2);
+        s.append('"');
+        for (int i = off; i < off + len; i++) {
+            if ((0x20 <= b[i]) && (0x7F > b[i]) && ('"' != b[i]) && ('\\' != b[i]))
+                s.append((char) b[i]);
+            else
+                s.append("\\x").append(hex(b[i]).substring(2));
+        }
+        return s.append('"').toString();
+    }
+
+    // seconds with microseconds
+    protected static String time(long nanos) {
+        long micros = nanos / 1000L;
+        StringBuilder s = new StringBuilder();
+        s.append(micros / 1000000L).append('.');
+        String frac = Long.toString(micros % 1000000L);
+        for (int i = frac.length(); i < 6; i++)
+            s.append('0');
+        s.append(frac);
+        while (12 > s.length())
+            s.insert(0, ' ');
+        return s.toString();
+    }
+}
@@ -9,20 +9,26 @@ import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
 import android.view.View;
 import android.widget.Button;
 import android.widget.Toast;
 
 import com.example.vdovin.tremolprint.R;
+import com.example.vdovin.tremolprint.protocol.tremol.ZFPAsync;
 import com.example.vdovin.tremolprint.protocol.tremol.ZFPException;
+import com.example.vdovin.tremolprint.protocol.tremol.ZFPJournal;
 import com.example.vdovin.tremolprint.protocol.tremol.ZFPLib;
+import com.example.vdovin.tremolprint.protocol.tremol.ZFPReceipt;
 
-import java.io.InputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Set;
 
 public class UsbActivity extends AppCompatActivity implements View.OnClickListener {
 
+    private static final String TAG = UsbActivity.class.getSimpleName();
+
     /*
      * Notifications from UsbService will be received here.
      */
@@ -61,7 +67,7 @@ public class UsbActivity extends AppCompatActivity implements View.OnClickListen
             usbService = null;
         }
     };
-    private ZFPLib tremolPrint;
+    private ZFPAsync tremolPrint;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -117,18 +123,80 @@ public class UsbActivity extends AppCompatActivity implements View.OnClickListen
     @Override
     public void onClick(View v) {
 
-        InputStream inputStream = usbService.getSerialInputStream();
-        OutputStream outputStream = usbService.getSerialOutputStream();
+        // the service feeds the received bytes into one decoder, so create ZFPLib only once
+        if (tremolPrint == null) {
+            OutputStream outputStream = usbService.getSerialOutputStream();
+
+            ZFPLib zfp = new ZFPLib(usbService.getFrameDecoder(), outputStream);
+            zfp.setInfoCache(usbService.getInfoCache());
+            zfp.setJournal(usbService.getJournal());
+            // a receipt left by an earlier run or cut by a power down is recovered on the printer thread
+            zfp.setAutoRecover(true);
+            tremolPrint = new ZFPAsync(zfp);
+        }
+
+        // a click after a receipt which failed in front of the operator completes that one instead of printing another
+        ZFPJournal journal = usbService.getJournal();
+        if (journal != null && journal.hasPending() && !journal.isOrphaned()) {
+            tremolPrint.recoverReceipt(new ZFPAsync.Callback<Integer>() {
+                @Override
+                public void onResult(final Integer result) {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Toast.makeText(getApplicationContext(), "Interrupted receipt recovered: " + result, Toast.LENGTH_SHORT).show();
+                        }
+                    });
+                }
 
-        tremolPrint = new ZFPLib(inputStream, outputStream);
+                @Override
+                public void onError(final Exception e) {
+                    Log.e(TAG, "Receipt not recovered", e);
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Toast.makeText(getApplicationContext(), "FiscalPrinterException: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+                        }
+                    });
+                }
+            });
+            return;
+        }
 
         try {
-            tremolPrint.openFiscalBon(1, "0", false, false);
-            tremolPrint.sellFree("Test article", '1', 2.34f, 1.0f, 0.0f);
-            tremolPrint.sellFree("Test article2", '1', 1.0f, 3.54f, 0.0f);
-            float sum = tremolPrint.calcIntermediateSum(false, false, false, 0.0f, '0');
-            tremolPrint.payment(sum, 0, false);
-            tremolPrint.closeFiscalBon();
+            ZFPReceipt receipt = new ZFPReceipt()
+                    .openFiscalBon(1, "0", false, false)
+                    .sellFree("Test article", '1', 2.34f, 1.0f, 0.0f)
+                    .sellFree("Test article2", '1', 1.0f, 3.54f, 0.0f);
+            // pay exactly what the articles sum up to
+            receipt.payment(receipt.getTotalAmount(), 0, false)
+                    .closeFiscalBon();
+            // printed on the printer thread, the UI thread is never blocked
+            tremolPrint.printReceipt(receipt, new ZFPAsync.Callback<ZFPReceipt>() {
+                @Override
+                public void onResult(ZFPReceipt result) {
+                }
+
+                @Override
+                public void onError(final Exception e) {
+                    Log.e(TAG, "Receipt failed", e);
+                    // keep the bytes which led to the error for offline decoding
+                    UsbService service = usbService;
+                    if (service != null) {
+                        try {
+                            service.dumpWireTrace();
+                        } catch (IOException io) {
+                            Log.e(TAG, "Wire trace not saved", io);
+                        }
+                    }
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Toast.makeText(getApplicationContext(), "FiscalPrinterException: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+                        }
+                    });
+                }
+            });
         } catch (ZFPException e) {
             e.printStackTrace();
         }
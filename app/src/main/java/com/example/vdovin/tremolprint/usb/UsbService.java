@@ -12,21 +12,37 @@ import android.hardware.usb.UsbManager;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
+import android.util.Log;
 
 import com.example.vdovin.tremolprint.protocol.tremol.ZFPException;
+import com.example.vdovin.tremolprint.protocol.tremol.ZFPFrameDecoder;
+import com.example.vdovin.tremolprint.protocol.tremol.ZFPInfoCache;
+import com.example.vdovin.tremolprint.protocol.tremol.ZFPJournal;
 import com.example.vdovin.tremolprint.protocol.tremol.ZFPLib;
 import com.example.vdovin.tremolprint.usb.library.serial.CDCSerialDevice;
-import com.example.vdovin.tremolprint.usb.library.serial.SerialInputStream;
 import com.example.vdovin.tremolprint.usb.library.serial.SerialOutputStream;
 import com.example.vdovin.tremolprint.usb.library.serial.UsbSerialDevice;
 import com.example.vdovin.tremolprint.usb.library.serial.UsbSerialInterface;
+import com.example.vdovin.tremolprint.usb.library.serial.WireTrace;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
 public class UsbService extends Service {
 
+    private static final String TAG = UsbService.class.getSimpleName();
+
     public static final String ACTION_USB_READY = "com.felhr.connectivityservices.USB_READY";
     public static final String ACTION_USB_ATTACHED = "android.hardware.usb.action.USB_DEVICE_ATTACHED";
     public static final String ACTION_USB_DETACHED = "android.hardware.usb.action.USB_DEVICE_DETACHED";
@@ -42,6 +58,9 @@ public class UsbService extends Service {
     public static final int DSR_CHANGE = 2;
     private static final String ACTION_USB_PERMISSION = "com.android.example.USB_PERMISSION";
     private static final int BAUD_RATE = 115200; // BaudRate. Change this value if you need
+    private static final String WIRE_TRACE_FILE = "wire.trace";
+    private static final String INFO_CACHE_FILE = "info.cache";
+    private static final String JOURNAL_FILE = "receipt.journal";
     public static boolean SERVICE_CONNECTED = false;
 
     private IBinder binder = new UsbBinder();
@@ -55,7 +74,13 @@ public class UsbService extends Service {
 
     private boolean serialPortConnected;
 
-    private SerialInputStream serialInputStream;
+    private ZFPFrameDecoder frameDecoder = new ZFPFrameDecoder();
+    // The last bytes exchanged with the printer, always recorded and dumped when something goes wrong
+    private WireTrace wireTrace = new WireTrace();
+    // Printer information kept across restarts, checked against the printer before it is used
+    private ZFPInfoCache infoCache = new ZFPInfoCache();
+    // Receipts written before they are printed, an interrupted one is recovered after a restart
+    private ZFPJournal journal;
     private SerialOutputStream serialOutputStream;
 
     /*
@@ -67,7 +92,6 @@ public class UsbService extends Service {
         @Override
         public void onReceivedData(byte[] arg0) {
             try {
-                System.out.println("byte" + arg0);
                 String data = new String(arg0, "UTF-8");
                 if (mHandler != null)
                     mHandler.obtainMessage(MESSAGE_FROM_SERIAL_PORT, data).sendToTarget();
@@ -77,6 +101,25 @@ public class UsbService extends Service {
         }
     };
 
+    /*
+     * Data for the fiscal printer goes straight from the USB thread into the frame decoder
+     */
+    private UsbSerialInterface.UsbBufferCallback decoderCallback = new UsbSerialInterface.UsbBufferCallback() {
+        @Override
+        public void onReceivedData(ByteBuffer data) {
+            frameDecoder.feed(data);
+            serialPort.releaseReadBuffer(data);
+        }
+    };
+
+    // Used on Android versions without the buffer callback
+    private UsbSerialInterface.UsbReadCallback decoderArrayCallback = new UsbSerialInterface.UsbReadCallback() {
+        @Override
+        public void onReceivedData(byte[] data) {
+            frameDecoder.feed(data, 0, data.length);
+        }
+    };
+
     /*
      * State changes in the CTS line will be received here
      */
@@ -144,6 +187,8 @@ public class UsbService extends Service {
         UsbService.SERVICE_CONNECTED = true;
         setFilter();
         usbManager = (UsbManager) getSystemService(Context.USB_SERVICE);
+        loadInfoCache();
+        openJournal();
         findSerialPortDevice();
     }
 
@@ -164,6 +209,9 @@ public class UsbService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        saveInfoCache();
+        if (journal != null)
+            journal.sync();
         UsbService.SERVICE_CONNECTED = false;
     }
 
@@ -179,6 +227,44 @@ public class UsbService extends Service {
         this.mHandler = mHandler;
     }
 
+    private void loadInfoCache() {
+        try {
+            InputStream in = new BufferedInputStream(new FileInputStream(new File(getFilesDir(), INFO_CACHE_FILE)));
+            try {
+                infoCache.readFrom(in);
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            // first start
+        } catch (IOException e) {
+            infoCache.clear();
+        }
+    }
+
+    private void saveInfoCache() {
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(new File(getFilesDir(), INFO_CACHE_FILE)));
+            try {
+                infoCache.writeTo(out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            // it is read from the printer again on the next start
+            Log.w(TAG, "Info cache not saved", e);
+        }
+    }
+
+    private void openJournal() {
+        try {
+            journal = new ZFPJournal(new File(getFilesDir(), JOURNAL_FILE));
+        } catch (IOException e) {
+            // the receipts are printed without a journal
+            Log.e(TAG, "Journal not opened", e);
+        }
+    }
+
     private void findSerialPortDevice() {
         // This snippet will try to open the first encountered usb device connected, excluding usb root hubs
         HashMap<String, UsbDevice> usbDevices = usbManager.getDeviceList();
@@ -252,10 +338,10 @@ public class UsbService extends Service {
                     serialPort.setParity(UsbSerialInterface.PARITY_NONE);
 
                     serialPort.setFlowControl(UsbSerialInterface.FLOW_CONTROL_OFF);
-                    serialPort.read(mCallback);
-
+                    serialPort.setWireTrace(wireTrace);
+                    if (serialPort.read(decoderCallback) != 0)
+                        serialPort.read(decoderArrayCallback);
 
-                    serialInputStream = new SerialInputStream(serialPort);
                     serialOutputStream = new SerialOutputStream(serialPort);
                     //
                     // Some Arduinos would need some sleep because firmware wait some time to know whether a new sketch is going 
@@ -284,11 +370,32 @@ public class UsbService extends Service {
         }
     }
 
-    public SerialInputStream getSerialInputStream() {
-        return serialInputStream;
+    public ZFPFrameDecoder getFrameDecoder() {
+        return frameDecoder;
     }
 
     public SerialOutputStream getSerialOutputStream() {
         return serialOutputStream;
     }
+
+    public ZFPInfoCache getInfoCache() {
+        return infoCache;
+    }
+
+    public ZFPJournal getJournal() {
+        return journal;
+    }
+
+    public WireTrace getWireTrace() {
+        return wireTrace;
+    }
+
+    /*
+     * Writes the recorded bytes to wire.trace in the files directory of the app, the previous dump is replaced
+     */
+    public File dumpWireTrace() throws IOException {
+        File file = new File(getFilesDir(), WIRE_TRACE_FILE);
+        wireTrace.dump(file);
+        return file;
+    }
 }
@@ -1,5 +1,6 @@
 package com.example.vdovin.tremolprint.usb.library.serial;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import android.hardware.usb.UsbConstants;
@@ -507,13 +508,40 @@ public class FTDISerialDevice extends UsbSerialDevice
             }
         }
 
+        /*
+         * Strips the FTDI headers inside the buffer. The data starts at offset 2 afterwards,
+         * the first packet stays in place and the following ones are moved behind it
+         */
+        public int adaptBuffer(ByteBuffer ftdiData, int length)
+        {
+            int j = Math.min(length, 64);
+            for(int p=64;p<=length-1;p+=64)
+            {
+                int end = Math.min(p + 64, length);
+                for(int i=p+2;i<=end-1;i++)
+                    ftdiData.put(j++, ftdiData.get(i));
+            }
+            return j - 2;
+        }
+
+        public void checkModemStatus(ByteBuffer data, int length)
+        {
+            if(length < 2) // Safeguard for short transfers
+                return;
+            checkModemStatus(data.get(0), data.get(1));
+        }
+
         public void checkModemStatus(byte[] data)
         {
-            if(data.length == 0) // Safeguard for zero length arrays
+            if(data.length < 2) // Safeguard for zero length arrays
                 return;
+            checkModemStatus(data[0], data[1]);
+        }
 
-            boolean cts = (data[0] & 0x10) == 0x10;
-            boolean dsr = (data[0] & 0x20) == 0x20;
+        private void checkModemStatus(byte modemStatus, byte lineStatus)
+        {
+            boolean cts = (modemStatus & 0x10) == 0x10;
+            boolean dsr = (modemStatus & 0x20) == 0x20;
 
             if(firstTime) // First modem status received
             {
@@ -546,7 +574,7 @@ public class FTDISerialDevice extends UsbSerialDevice
 
             if(parityCallback != null) // Parity error checking
             {
-                if((data[1] & 0x04) == 0x04)
+                if((lineStatus & 0x04) == 0x04)
                 {
                     parityCallback.onParityError();
                 }
@@ -554,7 +582,7 @@ public class FTDISerialDevice extends UsbSerialDevice
 
             if(frameCallback != null) // Frame error checking
             {
-                if((data[1] & 0x08) == 0x08)
+                if((lineStatus & 0x08) == 0x08)
                 {
                     frameCallback.onFramingError();
                 }
@@ -562,7 +590,7 @@ public class FTDISerialDevice extends UsbSerialDevice
 
             if(overrunCallback != null) // Overrun error checking
             {
-                if((data[1] & 0x02) == 0x02)
+                if((lineStatus & 0x02) == 0x02)
                 {
                     overrunCallback.onOverrunError();
                 }
@@ -570,7 +598,7 @@ public class FTDISerialDevice extends UsbSerialDevice
 
             if(breakCallback != null) // Break interrupt checking
             {
-                if((data[1] & 0x10) == 0x10)
+                if((lineStatus & 0x10) == 0x10)
                 {
                     breakCallback.onBreakInterrupt();
                 }
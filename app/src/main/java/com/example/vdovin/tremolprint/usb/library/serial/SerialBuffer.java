@@ -1,25 +1,42 @@
 package com.example.vdovin.tremolprint.usb.library.serial;
 
-import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 public class SerialBuffer
 {
     public static final int DEFAULT_READ_BUFFER_SIZE = 16 * 1024;
     public static final int DEFAULT_WRITE_BUFFER_SIZE = 16 * 1024;
-    private ByteBuffer readBuffer;
-    private SynchronizedBuffer writeBuffer;
+    public static final int DEFAULT_READ_REQUESTS = 4;
+    public static final int DEFAULT_LENT_READ_BUFFERS = 4;
+    private ArrayBlockingQueue<ByteBuffer> readBuffers;
+    private ByteBuffer[] readPool;
+    private ByteBuffer[] readViews; // Read-only view of each pooled buffer, lent to UsbBufferCallback
+    private AtomicLong readOverflow;
+    private WriteRing writeBuffer;
     private byte[] readBuffer_compatible; // Read buffer for android < 4.2
-    private boolean debugging = false;
+    private volatile WireTrace trace;
 
     public SerialBuffer(boolean version)
     {
-        writeBuffer = new SynchronizedBuffer();
+        writeBuffer = new WriteRing();
+        readOverflow = new AtomicLong();
         if(version)
         {
-            readBuffer = ByteBuffer.allocate(DEFAULT_READ_BUFFER_SIZE);
-
+            // One direct buffer per read request plus the ones lent to a UsbBufferCallback
+            int size = DEFAULT_READ_REQUESTS + DEFAULT_LENT_READ_BUFFERS;
+            readBuffers = new ArrayBlockingQueue<ByteBuffer>(size);
+            readPool = new ByteBuffer[size];
+            readViews = new ByteBuffer[size];
+            for(int i=0;i<=size-1;i++)
+            {
+                readPool[i] = ByteBuffer.allocateDirect(DEFAULT_READ_BUFFER_SIZE);
+                readViews[i] = readPool[i].asReadOnlyBuffer();
+                readBuffers.offer(readPool[i]);
+            }
         }else
         {
             readBuffer_compatible = new byte[DEFAULT_READ_BUFFER_SIZE];
@@ -27,68 +44,143 @@ public class SerialBuffer
     }
 
     /*
-     * Print debug messages
+     * Records the written bytes into the trace, null stops recording
      */
-    public void debug(boolean value)
+    public void setWireTrace(WireTrace trace)
     {
-        debugging = value;
+        this.trace = trace;
     }
 
-    public void putReadBuffer(ByteBuffer data)
+    public WireTrace getWireTrace()
     {
-        synchronized(this)
-        {
-            try
-            {
-                readBuffer.put(data);
-            }catch(BufferOverflowException e)
-            {
-                // TO-DO
-            }
-        }
+        return trace;
     }
 
-    public ByteBuffer getReadBuffer()
+    /*
+     * Takes a buffer for a read request, null if all of them are in use
+     */
+    public ByteBuffer takeReadBuffer()
     {
-        synchronized(this)
-        {
-            return readBuffer;
-        }
+        ByteBuffer buffer = readBuffers.poll();
+        if(buffer != null)
+            buffer.clear();
+        return buffer;
     }
 
+    public void returnReadBuffer(ByteBuffer buffer)
+    {
+        readBuffers.offer(buffer);
+    }
 
-    public byte[] getDataReceived()
+    /*
+     * Gives the read-only view of a pooled buffer limited to the given bytes.
+     * The buffer stays out of the pool until releaseReadBuffer() gets the view back
+     */
+    public ByteBuffer lendReadBuffer(ByteBuffer buffer, int offset, int length)
     {
-        synchronized(this)
-        {
-            byte[] dst = new byte[readBuffer.position()];
-            readBuffer.position(0);
-            readBuffer.get(dst, 0, dst.length);
-            if(debugging)
-                UsbSerialDebugger.printReadLogGet(dst, true);
-            return dst;
-        }
+        ByteBuffer view = readViews[indexOf(readPool, buffer)];
+        view.clear();
+        view.limit(offset + length);
+        view.position(offset);
+        return view;
+    }
+
+    public void releaseReadBuffer(ByteBuffer view)
+    {
+        int index = indexOf(readViews, view);
+        if(index >= 0)
+            returnReadBuffer(readPool[index]);
+    }
+
+    /*
+     * Copies the bytes a completed request put into the buffer
+     */
+    public byte[] getDataReceived(ByteBuffer buffer)
+    {
+        return getDataReceived(buffer, 0, buffer.position());
     }
 
-    public void clearReadBuffer()
+    private byte[] getDataReceived(ByteBuffer buffer, int offset, int length)
     {
-        synchronized(this)
+        byte[] dst = new byte[length];
+        buffer.position(offset);
+        buffer.get(dst, 0, length);
+        return dst;
+    }
+
+    // The pool is small, a scan by identity is enough
+    private static int indexOf(ByteBuffer[] buffers, ByteBuffer buffer)
+    {
+        for(int i=0;i<=buffers.length-1;i++)
         {
-            readBuffer.clear();
+            if(buffers[i] == buffer)
+                return i;
         }
+        return -1;
+    }
+
+    /*
+     * Counts received bytes which were dropped
+     */
+    public void addReadOverflow(int length)
+    {
+        readOverflow.addAndGet(length);
+    }
+
+    public long getReadOverflowCount()
+    {
+        return readOverflow.get();
     }
 
-    public byte[] getWriteBuffer()
+    /*
+     * Waits for data to write. The data is in getWriteArray() starting at getWriteOffset()
+     * and stays there until releaseWriteBuffer() is called.
+     * Returns the number of contiguous bytes, 0 if the write buffer has been reset
+     */
+    public int awaitWriteBuffer()
     {
-        return writeBuffer.get();
+        return writeBuffer.await();
     }
 
+    public byte[] getWriteArray()
+    {
+        return writeBuffer.buffer;
+    }
+
+    public int getWriteOffset()
+    {
+        return writeBuffer.offset();
+    }
+
+    public void releaseWriteBuffer(int length)
+    {
+        writeBuffer.release(length);
+    }
+
+    /*
+     * Blocks while the write buffer is full and the write thread is running
+     */
     public void putWriteBuffer(byte[]data)
     {
-        writeBuffer.put(data);
+        writeBuffer.put(data, 0, data.length);
     }
 
+    public void putWriteBuffer(byte[] data, int offset, int length)
+    {
+        writeBuffer.put(data, offset, length);
+    }
+
+    /*
+     * Called before the write thread is started
+     */
+    public void openWriteBuffer()
+    {
+        writeBuffer.open();
+    }
 
+    /*
+     * Called when the write thread is stopped, wakes it and any blocked writer
+     */
     public void resetWriteBuffer()
     {
         writeBuffer.reset();
@@ -105,59 +197,124 @@ public class SerialBuffer
         return tempBuff;
     }
 
-    private class SynchronizedBuffer
+    /*
+     * Single producer/single consumer ring. Writers are serialized by a lock so the ring itself only
+     * sees one producer, the consumer is the write thread. head and tail only grow, each is written
+     * by one side and read by the other.
+     */
+    private class WriteRing
     {
-        private byte[] buffer;
-        private int position;
+        private final byte[] buffer;
+        private final Object putLock;
+        private volatile long head; // next byte to send, written by the consumer
+        private volatile long tail; // next free byte, written by the producer
+        private volatile boolean closed;
+        private volatile boolean discard;
+        private volatile Thread waitingConsumer;
+        private volatile Thread waitingProducer;
 
-        public SynchronizedBuffer()
+        public WriteRing()
         {
             this.buffer = new byte[DEFAULT_WRITE_BUFFER_SIZE];
-            position = -1;
+            this.putLock = new Object();
+            closed = true;
         }
 
-        public synchronized void put(byte[] src)
+        public void put(byte[] src, int offset, int length)
         {
-            if(position == -1)
-                position = 0;
-            if(debugging)
-                UsbSerialDebugger.printLogPut(src, true);
-            if(position + src.length > DEFAULT_WRITE_BUFFER_SIZE - 1) //Checking bounds. Source data does not fit in buffer
+            synchronized(putLock)
             {
-                if(position < DEFAULT_WRITE_BUFFER_SIZE)
-                    System.arraycopy(src, 0, buffer, position, DEFAULT_WRITE_BUFFER_SIZE - position);
-                position = DEFAULT_WRITE_BUFFER_SIZE;
-                notify();
-            }else // Source data fits in buffer
+                WireTrace wireTrace = trace;
+                if(wireTrace != null)
+                    wireTrace.record(WireTrace.TX, src, offset, length);
+                long t = tail;
+                while(length > 0)
+                {
+                    int free = buffer.length - (int) (t - head);
+                    if(free == 0)
+                    {
+                        if(!awaitSpace(t))
+                            return; // Nobody drains the ring, the rest is dropped
+                        continue;
+                    }
+                    int index = (int) (t % buffer.length);
+                    int n = Math.min(length, Math.min(free, buffer.length - index));
+                    System.arraycopy(src, offset, buffer, index, n);
+                    offset += n;
+                    length -= n;
+                    t += n;
+                    tail = t;
+                    Thread consumer = waitingConsumer;
+                    if(consumer != null)
+                        LockSupport.unpark(consumer);
+                }
+            }
+        }
+
+        public int await()
+        {
+            long h = head;
+            while(tail == h)
             {
-                System.arraycopy(src, 0, buffer, position, src.length);
-                position += src.length;
-                notify();
+                if(closed)
+                    return 0;
+                waitingConsumer = Thread.currentThread();
+                if(tail == h && !closed)
+                    LockSupport.park(this);
+                waitingConsumer = null;
             }
+            int index = (int) (h % buffer.length);
+            int length = (int) Math.min(tail - h, buffer.length - index);
+            return length;
+        }
+
+        public int offset()
+        {
+            return (int) (head % buffer.length);
         }
 
-        public synchronized byte[] get()
+        public void release(int length)
         {
-            if(position == -1)
+            head += length;
+            Thread producer = waitingProducer;
+            if(producer != null)
+                LockSupport.unpark(producer);
+        }
+
+        public void open()
+        {
+            synchronized(putLock)
             {
-                try
-                {
-                    wait();
-                } catch (InterruptedException e)
-                {
-                    e.printStackTrace();
-                }
+                // Data left from before the reset is not sent, the old write thread has stopped
+                if(discard)
+                    head = tail;
+                discard = false;
+                closed = false;
             }
-            byte[] dst =  Arrays.copyOfRange(buffer, 0, position);
-            if(debugging)
-                UsbSerialDebugger.printLogGet(dst, true);
-            position = -1;
-            return dst;
         }
 
-        public synchronized void reset()
+        public void reset()
+        {
+            closed = true;
+            discard = true;
+            Thread consumer = waitingConsumer;
+            if(consumer != null)
+                LockSupport.unpark(consumer);
+            Thread producer = waitingProducer;
+            if(producer != null)
+                LockSupport.unpark(producer);
+        }
+
+        // Called with putLock held
+        private boolean awaitSpace(long t)
         {
-            position = -1;
+            if(closed)
+                return false;
+            waitingProducer = Thread.currentThread();
+            if(t - head == buffer.length && !closed)
+                LockSupport.park(this);
+            waitingProducer = null;
+            return !closed && !Thread.currentThread().isInterrupted();
         }
     }
 
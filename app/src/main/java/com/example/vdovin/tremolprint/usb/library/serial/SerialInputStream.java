@@ -2,65 +2,157 @@ package com.example.vdovin.tremolprint.usb.library.serial;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.io.InterruptedIOException;
 
+/**
+ * InputStream over the read callback of a serial device.
+ * Received bytes are kept in a byte ring buffer. onReceivedData never blocks the USB thread,
+ * bytes which do not fit are dropped and counted, see {@link #getOverflowCount()}.
+ * A reader interrupted while it waits gets an InterruptedIOException, nothing is consumed.
+ */
 public class SerialInputStream extends InputStream implements UsbSerialInterface.UsbReadCallback
 {
+    public static final int DEFAULT_CAPACITY = 16 * 1024;
+
     protected final UsbSerialInterface device;
-    protected ArrayBlockingQueue data = new ArrayBlockingQueue<Integer>(256);
+    protected final byte[] buffer;
+    protected int head;
+    protected int count;
+    protected long overflow;
     protected volatile boolean is_open;
 
     public SerialInputStream(UsbSerialInterface device)
+    {
+        this(device, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param device the serial device
+     * @param capacity size of the receive buffer in bytes
+     */
+    public SerialInputStream(UsbSerialInterface device, int capacity)
     {
         this.device = device;
+        this.buffer = new byte[capacity];
         is_open = true;
         device.read(this);
     }
 
     @Override
-    public int read()
+    public int read() throws IOException
     {
-        while (is_open)
+        synchronized (this)
         {
-            try
-            {
-                return (Integer)data.take();
-            } catch (InterruptedException e)
-            {
-                // ignore, will be retried by while loop
-            }
+            if (!await(0))
+                return -1;
+            int b = buffer[head] & 0xff;
+            consume(1);
+            return b;
         }
-        return -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0)
+            return 0;
+        int n = read(b, off, len, 0);
+        return (n == 0) ? -1 : n;
+    }
+
+    /**
+     * Reads at least one byte unless the timeout expires, then everything that is already buffered
+     * @param timeout timeout in milliseconds, 0 waits forever
+     * @return number of bytes read, 0 if the timeout expired or the stream is closed
+     * @throws InterruptedIOException if the thread is interrupted while it waits
+     */
+    public synchronized int read(byte[] b, int off, int len, long timeout) throws InterruptedIOException
+    {
+        if (len == 0 || !await(timeout))
+            return 0;
+
+        int n = Math.min(len, count);
+        int first = Math.min(n, buffer.length - head);
+        System.arraycopy(buffer, head, b, off, first);
+        System.arraycopy(buffer, 0, b, off + first, n - first);
+        consume(n);
+        return n;
     }
 
     public void close()
     {
         is_open = false;
-        try
-        {
-            data.put(-1);
-        } catch (InterruptedException e)
+        synchronized (this)
         {
-            e.printStackTrace();
+            notifyAll();
         }
     }
 
     public void onReceivedData(byte[] new_data)
     {
-        for (byte b : new_data)
+        synchronized (this)
+        {
+            int n = Math.min(new_data.length, buffer.length - count);
+            int tail = (head + count) % buffer.length;
+            int first = Math.min(n, buffer.length - tail);
+            System.arraycopy(new_data, 0, buffer, tail, first);
+            System.arraycopy(new_data, first, buffer, 0, n - first);
+            count += n;
+            overflow += new_data.length - n;
+            if (n > 0)
+                notifyAll();
+        }
+    }
+
+    @Override
+    public synchronized int available() throws IOException
+    {
+        return count;
+    }
+
+    /**
+     * Gets the number of received bytes dropped because the buffer was full
+     */
+    public synchronized long getOverflowCount()
+    {
+        return overflow;
+    }
+
+    // the buffered bytes are still delivered after close
+    private boolean await(long timeout) throws InterruptedIOException
+    {
+        long deadline = System.nanoTime() + timeout * 1000000L;
+        while (count == 0)
         {
+            if (!is_open)
+                return false;
             try
             {
-                data.put(((int)b) & 0xff);
+                if (timeout == 0)
+                {
+                    wait();
+                } else
+                {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0)
+                        return false;
+                    wait(left / 1000000L, (int) (left % 1000000L));
+                }
             } catch (InterruptedException e)
             {
-                // ignore, possibly losing bytes when buffer is full
+                // the reader is asked to stop, e.g. by ZFPReceiver.close(), nothing is consumed
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("read interrupted");
             }
         }
+        return true;
     }
 
-    @Override
-    public int available() throws IOException {
-        return data.size();
+    private void consume(int n)
+    {
+        head = (head + n) % buffer.length;
+        count -= n;
+        if (count == 0)
+            head = 0;
     }
 }
@@ -2,24 +2,82 @@ package com.example.vdovin.tremolprint.usb.library.serial;
 
 import java.io.OutputStream;
 
+/**
+ * OutputStream over a serial device which coalesces small writes.
+ * The bytes are collected until {@link #flush()} or until the buffer is full and are then
+ * handed to the device in one write, i.e. one USB bulk transfer. Writers of framed protocols
+ * call flush() at the end of every frame.
+ */
 public class SerialOutputStream extends OutputStream
 {
+    public static final int DEFAULT_BUFFER_SIZE = 512;
+
     protected final UsbSerialInterface device;
+    protected final byte[] buffer;
+    protected int count;
 
     public SerialOutputStream(UsbSerialInterface device)
+    {
+        this(device, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param device the serial device
+     * @param bufferSize number of bytes collected at most before they are written to the device
+     */
+    public SerialOutputStream(UsbSerialInterface device, int bufferSize)
     {
         this.device = device;
+        this.buffer = new byte[bufferSize];
     }
 
     @Override
-    public void write(int b)
+    public synchronized void write(int b)
     {
-        device.write(new byte[] { (byte)b });
+        if (count == buffer.length)
+            flushBuffer();
+        buffer[count++] = (byte)b;
     }
 
     @Override
     public void write(byte[] b)
     {
-        device.write(b);
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len)
+    {
+        if (len > buffer.length - count)
+            flushBuffer();
+        if (len >= buffer.length)
+        {
+            // too big to be collected, goes out directly
+            device.write(b, off, len);
+            return;
+        }
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    @Override
+    public synchronized void flush()
+    {
+        flushBuffer();
+    }
+
+    @Override
+    public void close()
+    {
+        flush();
+    }
+
+    private void flushBuffer()
+    {
+        if (count > 0)
+        {
+            device.write(buffer, 0, count);
+            count = 0;
+        }
     }
 }
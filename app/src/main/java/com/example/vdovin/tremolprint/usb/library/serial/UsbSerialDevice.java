@@ -1,5 +1,6 @@
 package com.example.vdovin.tremolprint.usb.library.serial;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.hardware.usb.UsbConstants;
@@ -121,6 +122,13 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
             serialBuffer.putWriteBuffer(buffer);
     }
 
+    @Override
+    public void write(byte[] buffer, int offset, int length)
+    {
+        if(asyncMode)
+            serialBuffer.putWriteBuffer(buffer, offset, length);
+    }
+
     @Override
     public int read(UsbReadCallback mCallback)
     {
@@ -130,7 +138,7 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
         if(mr1Version)
         {
             workerThread.setCallback(mCallback);
-            workerThread.getUsbRequest().queue(serialBuffer.getReadBuffer(), SerialBuffer.DEFAULT_READ_BUFFER_SIZE);
+            workerThread.queueRequests();
         }else
         {
             readThread.setCallback(mCallback);
@@ -139,6 +147,28 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
         return 0;
     }
 
+    /*
+     * Delivers the received data as pooled buffers instead of new arrays.
+     * Only available on Android 4.2 and later, returns -1 otherwise
+     */
+    public int read(UsbBufferCallback mCallback)
+    {
+        if(!asyncMode || !mr1Version)
+            return -1;
+
+        workerThread.setBufferCallback(mCallback);
+        workerThread.queueRequests();
+        return 0;
+    }
+
+    /*
+     * Gives back a buffer received by a UsbBufferCallback so it can be reused
+     */
+    public void releaseReadBuffer(ByteBuffer data)
+    {
+        serialBuffer.releaseReadBuffer(data);
+    }
+
 
     @Override
     public abstract void close();
@@ -195,7 +225,28 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
     public void debug(boolean value)
     {
         if(serialBuffer != null)
-            serialBuffer.debug(value);
+            serialBuffer.setWireTrace(value ? new WireTrace() : null);
+    }
+
+    /*
+     * Records the bytes written and received from now on into the given trace, null stops recording
+     */
+    public void setWireTrace(WireTrace trace)
+    {
+        serialBuffer.setWireTrace(trace);
+    }
+
+    public WireTrace getWireTrace()
+    {
+        return serialBuffer.getWireTrace();
+    }
+
+    /*
+     * Number of received bytes which were dropped because no read callback took them
+     */
+    public long getReadOverflowCount()
+    {
+        return serialBuffer.getReadOverflowCount();
     }
 
     private boolean isFTDIDevice()
@@ -224,7 +275,9 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
         private UsbSerialDevice usbSerialDevice;
 
         private UsbReadCallback callback;
+        private UsbBufferCallback bufferCallback;
         private UsbRequest requestIN;
+        private UsbRequest[] requests; // requestIN and the extra requests rotating with it
         private AtomicBoolean working;
 
         public WorkerThread(UsbSerialDevice usbSerialDevice)
@@ -240,16 +293,26 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
             {
                 UsbRequest request = connection.requestWait();
                 if(request != null && request.getEndpoint().getType() == UsbConstants.USB_ENDPOINT_XFER_BULK
-                        && request.getEndpoint().getDirection() == UsbConstants.USB_DIR_IN)
+                        && request.getEndpoint().getDirection() == UsbConstants.USB_DIR_IN
+                        && request.getClientData() != null)
                 {
-                    byte[] data = serialBuffer.getDataReceived();
+                    ByteBuffer buffer = (ByteBuffer) request.getClientData();
+                    if(bufferCallback != null)
+                    {
+                        onReceivedData(request, buffer);
+                        continue;
+                    }
+                    byte[] data = serialBuffer.getDataReceived(buffer);
+
+                    // Queue the request again right away, the other requests keep the endpoint busy meanwhile
+                    buffer.clear();
+                    request.queue(buffer, SerialBuffer.DEFAULT_READ_BUFFER_SIZE);
 
                     // FTDI devices reserves two first bytes of an IN endpoint with info about
                     // modem and Line.
                     if(isFTDIDevice())
                     {
                         ((FTDISerialDevice) usbSerialDevice).ftdiUtilities.checkModemStatus(data); //Check the Modem status
-                        serialBuffer.clearReadBuffer();
 
                         if(data.length > 2)
                         {
@@ -258,24 +321,36 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
                         }
                     }else
                     {
-                        // Clear buffer, execute the callback
-                        serialBuffer.clearReadBuffer();
                         onReceivedData(data);
                     }
-                    // Queue a new request
-                    requestIN.queue(serialBuffer.getReadBuffer(), SerialBuffer.DEFAULT_READ_BUFFER_SIZE);
                 }
             }
+            releaseRequests();
         }
 
         public void setCallback(UsbReadCallback callback)
         {
             this.callback = callback;
+            this.bufferCallback = null;
+        }
+
+        public void setBufferCallback(UsbBufferCallback bufferCallback)
+        {
+            this.bufferCallback = bufferCallback;
+            this.callback = null;
         }
 
         public void setUsbRequest(UsbRequest request)
         {
             this.requestIN = request;
+            requests = new UsbRequest[SerialBuffer.DEFAULT_READ_REQUESTS];
+            requests[0] = request;
+            for(int i=1;i<=requests.length-1;i++)
+            {
+                UsbRequest extraRequest = new UsbRequest();
+                if(extraRequest.initialize(connection, request.getEndpoint()))
+                    requests[i] = extraRequest;
+            }
         }
 
         public UsbRequest getUsbRequest()
@@ -283,11 +358,96 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
             return requestIN;
         }
 
+        /*
+         * Queues every request which is not queued yet, each one with its own buffer
+         */
+        public void queueRequests()
+        {
+            for(UsbRequest request : requests)
+            {
+                if(request == null || request.getClientData() != null)
+                    continue;
+                ByteBuffer buffer = serialBuffer.takeReadBuffer();
+                if(buffer == null)
+                    return;
+                request.setClientData(buffer);
+                request.queue(buffer, SerialBuffer.DEFAULT_READ_BUFFER_SIZE);
+            }
+        }
+
+        private void releaseRequests()
+        {
+            if(requests == null)
+                return;
+            for(int i=0;i<=requests.length-1;i++)
+            {
+                UsbRequest request = requests[i];
+                if(request == null)
+                    continue;
+                request.cancel();
+                ByteBuffer buffer = (ByteBuffer) request.getClientData();
+                request.setClientData(null);
+                if(buffer != null)
+                    serialBuffer.returnReadBuffer(buffer);
+                if(i > 0) // requestIN belongs to the device
+                    request.close();
+            }
+        }
+
+        /*
+         * Lends the buffer of the completed request to the callback and queues the request again
+         * with another pooled buffer. When all of them are lent the data is dropped.
+         */
+        private void onReceivedData(UsbRequest request, ByteBuffer buffer)
+        {
+            int length = buffer.position();
+            FTDISerialDevice.FTDIUtilities ftdiUtilities = null;
+            if(isFTDIDevice())
+            {
+                ftdiUtilities = ((FTDISerialDevice) usbSerialDevice).ftdiUtilities;
+                ftdiUtilities.checkModemStatus(buffer, length); //Check the Modem status
+            }
+
+            ByteBuffer next = serialBuffer.takeReadBuffer();
+            if(next == null)
+            {
+                serialBuffer.addReadOverflow(length);
+                buffer.clear();
+                request.queue(buffer, SerialBuffer.DEFAULT_READ_BUFFER_SIZE);
+                return;
+            }
+            request.setClientData(next);
+            request.queue(next, SerialBuffer.DEFAULT_READ_BUFFER_SIZE);
+
+            int offset = 0;
+            if(ftdiUtilities != null)
+            {
+                // The status bytes are stripped inside the buffer
+                length = (length > 2) ? ftdiUtilities.adaptBuffer(buffer, length) : 0;
+                offset = 2;
+            }
+
+            if(length == 0)
+            {
+                serialBuffer.returnReadBuffer(buffer);
+                return;
+            }
+            ByteBuffer view = serialBuffer.lendReadBuffer(buffer, offset, length);
+            WireTrace trace = serialBuffer.getWireTrace();
+            if(trace != null)
+                trace.record(WireTrace.RX, view);
+            bufferCallback.onReceivedData(view);
+        }
+
         private void onReceivedData(byte[] data)
         {
-            System.out.println("Work Thread On Receive data " + data);
+            WireTrace trace = serialBuffer.getWireTrace();
+            if(trace != null)
+                trace.record(WireTrace.RX, data, 0, data.length);
             if(callback != null)
                 callback.onReceivedData(data);
+            else
+                serialBuffer.addReadOverflow(data.length);
         }
 
         public void stopWorkingThread()
@@ -309,10 +469,25 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
         @Override
         public void run()
         {
+            // bulkTransfer with an offset exists since Android 4.3, older versions get a copy
+            boolean offsetTransfer = android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.JELLY_BEAN_MR2;
+            byte[] data = offsetTransfer ? null : new byte[SerialBuffer.DEFAULT_WRITE_BUFFER_SIZE];
             while(working.get())
             {
-                byte[] data = serialBuffer.getWriteBuffer();
-                connection.bulkTransfer(outEndpoint, data, data.length, USB_TIMEOUT);
+                int length = serialBuffer.awaitWriteBuffer();
+                if(length == 0)
+                    continue;
+                byte[] buffer = serialBuffer.getWriteArray();
+                int offset = serialBuffer.getWriteOffset();
+                if(offsetTransfer)
+                {
+                    connection.bulkTransfer(outEndpoint, buffer, offset, length, USB_TIMEOUT);
+                }else
+                {
+                    System.arraycopy(buffer, offset, data, 0, length);
+                    connection.bulkTransfer(outEndpoint, data, length, USB_TIMEOUT);
+                }
+                serialBuffer.releaseWriteBuffer(length);
             }
         }
 
@@ -349,8 +524,6 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
         @Override
         public void run()
         {
-
-            System.out.println("Read Thread Started");
             byte[] dataReceived = null;
 
             while(working.get())
@@ -397,7 +570,9 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
 
         private void onReceivedData(byte[] data)
         {
-            System.out.println("On received data " + data);
+            WireTrace trace = serialBuffer.getWireTrace();
+            if(trace != null)
+                trace.record(WireTrace.RX, data, 0, data.length);
             if(callback != null)
                 callback.onReceivedData(data);
         }
@@ -470,6 +645,7 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
     {
         if(writeThread == null)
         {
+            serialBuffer.openWriteBuffer();
             writeThread = new WriteThread();
             writeThread.start();
             while(!writeThread.isAlive()){} // Busy waiting
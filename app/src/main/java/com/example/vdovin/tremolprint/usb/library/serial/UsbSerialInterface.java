@@ -1,5 +1,7 @@
 package com.example.vdovin.tremolprint.usb.library.serial;
 
+import java.nio.ByteBuffer;
+
 /**
  * Interface to handle a serial port
  * @author felhr (felhr85@gmail.com)
@@ -31,6 +33,7 @@ public interface UsbSerialInterface
     // Common Usb Serial Operations (I/O Asynchronous)
     boolean open();
     void write(byte[] buffer);
+    void write(byte[] buffer, int offset, int length); // the data is copied before it returns
     int read(UsbReadCallback mCallback);
     void close();
 
@@ -96,4 +99,11 @@ public interface UsbSerialInterface
         void onReceivedData(byte[] data);
     }
 
+    // Usb Read Callback without copies. The data is a read-only view of a pooled buffer,
+    // it must be handed back with UsbSerialDevice.releaseReadBuffer() once it has been consumed
+    interface UsbBufferCallback
+    {
+        void onReceivedData(ByteBuffer data);
+    }
+
 }
@@ -96,10 +96,25 @@ public abstract class UsbSpiDevice implements UsbSpiInterface
         @Override
         public void run()
         {
+            // bulkTransfer with an offset exists since Android 4.3, older versions get a copy
+            boolean offsetTransfer = android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.JELLY_BEAN_MR2;
+            byte[] data = offsetTransfer ? null : new byte[SerialBuffer.DEFAULT_WRITE_BUFFER_SIZE];
             while(working.get())
             {
-                byte[] data = serialBuffer.getWriteBuffer();
-                connection.bulkTransfer(outEndpoint, data, data.length, USB_TIMEOUT);
+                int length = serialBuffer.awaitWriteBuffer();
+                if(length == 0)
+                    continue;
+                byte[] buffer = serialBuffer.getWriteArray();
+                int offset = serialBuffer.getWriteOffset();
+                if(offsetTransfer)
+                {
+                    connection.bulkTransfer(outEndpoint, buffer, offset, length, USB_TIMEOUT);
+                }else
+                {
+                    System.arraycopy(buffer, offset, data, 0, length);
+                    connection.bulkTransfer(outEndpoint, data, length, USB_TIMEOUT);
+                }
+                serialBuffer.releaseWriteBuffer(length);
             }
         }
 
@@ -215,6 +230,7 @@ public abstract class UsbSpiDevice implements UsbSpiInterface
     {
         if(writeThread == null)
         {
+            serialBuffer.openWriteBuffer();
             writeThread = new WriteThread();
             writeThread.start();
             while(!writeThread.isAlive()){} // Busy waiting
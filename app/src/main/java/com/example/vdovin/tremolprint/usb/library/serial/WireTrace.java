@@ -0,0 +1,243 @@
+package com.example.vdovin.tremolprint.usb.library.serial;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary trace of the bytes sent to and received from a serial device.
+ * Every transfer is kept as a record with its direction, its time and its bytes in a fixed-size
+ * ring, the oldest records are overwritten. Recording copies the bytes and takes a short lock,
+ * nothing is formatted or allocated, so the trace can stay on in production.
+ * The ring is written to a file with {@link #dump(File)} and read back with {@link Reader}.
+ *
+ * File format, big endian: "WTR1", start time in milliseconds (8 bytes), then the records,
+ * each one direction (1 byte), length (2 bytes), time since the start in nanoseconds (8 bytes)
+ * and the bytes.
+ */
+public class WireTrace
+{
+    public static final int TX = 0;
+    public static final int RX = 1;
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private static final byte[] MAGIC = {'W', 'T', 'R', '1'};
+    private static final int HEADER_SIZE = 11;
+    private static final int MAX_RECORD = 4096; // Longer transfers are split
+
+    private final byte[] ring;
+    private final long startNanos;
+    private final long startMillis;
+    private int head; // Start of the oldest record
+    private int size;
+    private long dropped;
+
+    public WireTrace()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity size of the ring in bytes
+     */
+    public WireTrace(int capacity)
+    {
+        ring = new byte[Math.max(capacity, HEADER_SIZE + MAX_RECORD)];
+        startNanos = System.nanoTime();
+        startMillis = System.currentTimeMillis();
+    }
+
+    public void record(int direction, byte[] data, int offset, int length)
+    {
+        long time = System.nanoTime() - startNanos;
+        while(length > 0)
+        {
+            int n = Math.min(length, MAX_RECORD);
+            synchronized(this)
+            {
+                int tail = begin(direction, n, time);
+                for(int i=0;i<=n-1;i++)
+                    ring[(tail + i) % ring.length] = data[offset + i];
+            }
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /*
+     * Records the remaining bytes of the buffer, its position is left unchanged
+     */
+    public void record(int direction, ByteBuffer data)
+    {
+        long time = System.nanoTime() - startNanos;
+        int offset = data.position();
+        int length = data.remaining();
+        while(length > 0)
+        {
+            int n = Math.min(length, MAX_RECORD);
+            synchronized(this)
+            {
+                int tail = begin(direction, n, time);
+                for(int i=0;i<=n-1;i++)
+                    ring[(tail + i) % ring.length] = data.get(offset + i);
+            }
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /*
+     * Number of records overwritten since the trace was created
+     */
+    public synchronized long getDroppedCount()
+    {
+        return dropped;
+    }
+
+    public synchronized void clear()
+    {
+        head = 0;
+        size = 0;
+    }
+
+    /*
+     * Writes the trace in the file format. The records are copied first,
+     * recording goes on while the file is written
+     */
+    public void writeTo(OutputStream out) throws IOException
+    {
+        byte[] records;
+        synchronized(this)
+        {
+            records = new byte[size];
+            int first = Math.min(size, ring.length - head);
+            System.arraycopy(ring, head, records, 0, first);
+            System.arraycopy(ring, 0, records, first, size - first);
+        }
+        out.write(MAGIC);
+        for(int i=56;i>=0;i-=8)
+            out.write((int) (startMillis >> i));
+        out.write(records);
+        out.flush();
+    }
+
+    public void dump(File file) throws IOException
+    {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try
+        {
+            writeTo(out);
+        }finally
+        {
+            out.close();
+        }
+    }
+
+    // Makes room and writes the header, returns where the bytes go
+    private int begin(int direction, int length, long time)
+    {
+        int needed = HEADER_SIZE + length;
+        while(ring.length - size < needed)
+        {
+            int oldest = ((ring[(head + 1) % ring.length] & 0xff) << 8) | (ring[(head + 2) % ring.length] & 0xff);
+            head = (head + HEADER_SIZE + oldest) % ring.length;
+            size -= HEADER_SIZE + oldest;
+            dropped++;
+        }
+
+        int tail = (head + size) % ring.length;
+        ring[tail] = (byte) direction;
+        ring[(tail + 1) % ring.length] = (byte) (length >> 8);
+        ring[(tail + 2) % ring.length] = (byte) length;
+        for(int i=0;i<=7;i++)
+            ring[(tail + 3 + i) % ring.length] = (byte) (time >> (56 - 8 * i));
+        size += needed;
+        return (tail + HEADER_SIZE) % ring.length;
+    }
+
+    /**
+     * Reads a trace written by {@link WireTrace#writeTo(OutputStream)} record by record
+     */
+    public static class Reader
+    {
+        private final DataInputStream in;
+        private final long startMillis;
+        private int direction;
+        private long time;
+        private byte[] data = new byte[MAX_RECORD];
+        private int length;
+
+        public Reader(InputStream in) throws IOException
+        {
+            this.in = new DataInputStream(in);
+            byte[] magic = new byte[MAGIC.length];
+            this.in.readFully(magic);
+            for(int i=0;i<=MAGIC.length-1;i++)
+            {
+                if(magic[i] != MAGIC[i])
+                    throw new IOException("not a wire trace");
+            }
+            startMillis = this.in.readLong();
+        }
+
+        /*
+         * Moves to the next record, false at the end of the trace
+         */
+        public boolean next() throws IOException
+        {
+            int b = in.read();
+            if(b < 0)
+                return false;
+            try
+            {
+                direction = b;
+                length = in.readUnsignedShort();
+                time = in.readLong();
+                if(length > data.length)
+                    data = new byte[length];
+                in.readFully(data, 0, length);
+            }catch(EOFException e)
+            {
+                throw new IOException("truncated wire trace");
+            }
+            return true;
+        }
+
+        public long getStartMillis()
+        {
+            return startMillis;
+        }
+
+        public int getDirection()
+        {
+            return direction;
+        }
+
+        /*
+         * Time of the record in nanoseconds since the start of the trace
+         */
+        public long getTime()
+        {
+            return time;
+        }
+
+        /*
+         * Bytes of the record, valid until next() is called
+         */
+        public byte[] getData()
+        {
+            return data;
+        }
+
+        public int getLength()
+        {
+            return length;
+        }
+    }
+}
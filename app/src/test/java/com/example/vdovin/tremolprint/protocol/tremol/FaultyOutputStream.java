@@ -0,0 +1,51 @@
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Stream to the simulator which breaks frames: a frame with a wrong CRC is answered with NACK,
+ * a frame after the limit is not sent at all, like after a disconnect. The pings always pass.
+ */
+class FaultyOutputStream extends OutputStream {
+
+    private final OutputStream m_out;
+    private int m_corrupt;
+    private int m_limit = Integer.MAX_VALUE;
+
+    FaultyOutputStream(OutputStream out) {
+        m_out = out;
+    }
+
+    /** Breaks the CRC of the next frames */
+    void corrupt(int frames) {
+        m_corrupt = frames;
+    }
+
+    /** Fails the frames after the given number with an IOException */
+    void limit(int frames) {
+        m_limit = frames;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        m_out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if ((0 < len) && (0x02 == b[off])) {
+            if (0 >= m_limit)
+                throw new IOException("disconnected");
+            m_limit--;
+            if (0 < m_corrupt) {
+                m_corrupt--;
+                byte[] copy = b.clone();
+                copy[off + len - 2] ^= 0x01;
+                m_out.write(copy, off, len);
+                return;
+            }
+        }
+        m_out.write(b, off, len);
+    }
+}
@@ -0,0 +1,20 @@
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+import org.junit.After;
+
+/**
+ * Base of the tests which drive ZFPLib against ZFPSimulator. The frames pass through a
+ * FaultyOutputStream, so a test can break them; both ends are closed after each test.
+ */
+abstract class SimulatorFixture {
+
+    protected final ZFPSimulator m_sim = new ZFPSimulator();
+    protected final FaultyOutputStream m_output = new FaultyOutputStream(m_sim.getOutputStream());
+    protected final ZFPLib m_zfp = new ZFPLib(m_sim.getInputStream(), m_output);
+
+    @After
+    public void disconnect() {
+        m_zfp.close();
+        m_sim.close();
+    }
+}
@@ -0,0 +1,152 @@
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Rounding and range of ZFPAmount.
+ */
+public class ZFPAmountTest {
+
+    @Test
+    public void roundsHalfUp() {
+        assertEquals("2.35", ZFPAmount.parse("2.345").setScale(2).toString());
+        assertEquals("2.34", ZFPAmount.parse("2.3449").setScale(2).toString());
+        assertEquals("-2.35", ZFPAmount.parse("-2.345").setScale(2).toString());
+        assertEquals("3", ZFPAmount.parse("2.5").setScale(0).toString());
+        assertEquals("-3", ZFPAmount.parse("-2.5").setScale(0).toString());
+        assertEquals(-1, ZFPAmount.parse("-0.005").toUnits(2));
+    }
+
+    @Test
+    public void convertsFloatsLikeTheFrames() {
+        // 1.005f is 1.00499999523..., below the half like in the sellFree frame
+        assertEquals(ZFPAmount.parse("1.00"), ZFPAmount.valueOf(1.005f, 2));
+        assertEquals(ZFPLib.getFloatFormat(1.005f, 2), ZFPLib.getAmountFormat(ZFPAmount.valueOf(1.005f, 2), 2));
+        assertEquals(ZFPAmount.parse("1.01"), ZFPAmount.valueOf(1.005, 2));
+        assertEquals(ZFPAmount.parse("0.10"), ZFPAmount.valueOf(0.1f, 2));
+        assertEquals(ZFPAmount.parse("5.88"), ZFPAmount.valueOf(5.88f, 2));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void rejectsNaN() {
+        ZFPAmount.valueOf(Double.NaN, 2);
+    }
+
+    @Test
+    public void multipliesExactly() {
+        ZFPAmount price = ZFPAmount.parse("0.10");
+        ZFPAmount quantity = ZFPAmount.parse("3.000");
+        assertEquals(ZFPAmount.parse("0.30"), price.multiply(quantity, 2));
+        assertEquals(ZFPAmount.parse("0.33"), ZFPAmount.parse("1.10").multiply(ZFPAmount.parse("0.3"), 2));
+        assertEquals(ZFPAmount.parse("0.04"), ZFPAmount.parse("0.07").multiply(ZFPAmount.parse("0.5"), 2));
+    }
+
+    @Test
+    public void appliesPercent() {
+        ZFPAmount sum = ZFPAmount.parse("10.05");
+        assertEquals(ZFPAmount.parse("-1.01"), sum.percent(ZFPAmount.parse("-10.00"), 2));
+        assertEquals(ZFPAmount.parse("9.04"), sum.add(sum.percent(ZFPAmount.parse("-10.00"), 2)));
+    }
+
+    @Test
+    public void comparesAcrossScales() {
+        assertEquals(0, ZFPAmount.parse("1.50").compareTo(ZFPAmount.parse("1.5")));
+        assertEquals(ZFPAmount.parse("1.50").hashCode(), ZFPAmount.parse("1.5").hashCode());
+        assertTrue(0 > ZFPAmount.parse("-0.01").compareTo(ZFPAmount.ZERO));
+        assertTrue(0 < ZFPAmount.parse("1.001").compareTo(ZFPAmount.parse("1.0009")));
+    }
+
+    @Test
+    public void comparesWithoutOverflow() {
+        // rescaling Long.MAX_VALUE to 9 decimals would overflow
+        ZFPAmount big = ZFPAmount.valueOf(Long.MAX_VALUE);
+        ZFPAmount small = ZFPAmount.valueOf(1, ZFPAmount.MAX_SCALE);
+        assertTrue(0 < big.compareTo(small));
+        assertTrue(0 > small.compareTo(big));
+        assertTrue(0 > big.negate().compareTo(small));
+    }
+
+    @Test
+    public void parsesResponses() {
+        byte[] response = "  -12.340;".getBytes();
+        ZFPAmount amount = ZFPAmount.parse(response, 0, response.length - 1);
+        assertEquals(-12340, amount.getUnscaledValue());
+        assertEquals(3, amount.getScale());
+        assertEquals(ZFPAmount.parse("12,34"), amount.negate().setScale(2));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void rejectsTooManyDigits() {
+        ZFPAmount.parse("92233720368547758070");
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void rejectsLongMaxValuePlusOne() {
+        ZFPAmount.parse("9223372036854775808");
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void rejectsTooLargeDouble() {
+        ZFPAmount.valueOf(1e17, 2);
+    }
+
+    @Test
+    public void failsOnOverflow() {
+        ZFPAmount big = ZFPAmount.parse("92233720368547758.07");
+        assertEquals(Long.MAX_VALUE, big.getUnscaledValue());
+        try {
+            big.add(ZFPAmount.parse("0.01"));
+            fail("the sum overflowed");
+        } catch (ArithmeticException expected) {
+        }
+        try {
+            big.negate().subtract(ZFPAmount.parse("0.02"));
+            fail("the difference overflowed");
+        } catch (ArithmeticException expected) {
+        }
+        try {
+            big.multiply(ZFPAmount.parse("2.000"), 2);
+            fail("the product overflowed");
+        } catch (ArithmeticException expected) {
+        }
+        try {
+            big.percent(ZFPAmount.parse("10.00"), 2);
+            fail("the percent overflowed");
+        } catch (ArithmeticException expected) {
+        }
+        try {
+            big.setScale(3);
+            fail("the rescale overflowed");
+        } catch (ArithmeticException expected) {
+        }
+        assertEquals(ZFPAmount.valueOf(Long.MAX_VALUE).negate(), ZFPAmount.valueOf(Long.MAX_VALUE).multiply(ZFPAmount.valueOf(-1), 0));
+    }
+
+    @Test
+    public void roundsBeyondTheLongRange() {
+        // 19 and 20 decimals are rounded away without an index out of the powers of ten
+        ZFPAmount tiny = ZFPAmount.parse("0.000000001");
+        assertEquals(ZFPAmount.ZERO, tiny.multiply(tiny, 0));
+        assertEquals(ZFPAmount.ZERO, tiny.percent(ZFPAmount.parse("0.000000001"), 0));
+        assertEquals(1, ZFPAmount.rescale(5000000000000000000L, 19, 0));
+        assertEquals(-1, ZFPAmount.rescale(Long.MIN_VALUE, 19, 0));
+        assertEquals(0, ZFPAmount.rescale(4999999999999999999L, 19, 0));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void rejectsTooManyDecimals() {
+        ZFPAmount.parse("0.1234567890");
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void rejectsGarbage() {
+        ZFPAmount.parse("1.2.3");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsLargeScale() {
+        ZFPAmount.valueOf(1, ZFPAmount.MAX_SCALE + 1);
+    }
+}
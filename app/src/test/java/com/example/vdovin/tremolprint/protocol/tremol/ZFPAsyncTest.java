@@ -0,0 +1,150 @@
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * The command queue and the callbacks of ZFPAsync, against the simulator.
+ */
+public class ZFPAsyncTest extends SimulatorFixture {
+
+    private final ZFPAsync m_async = new ZFPAsync(m_zfp);
+
+    @After
+    public void stop() throws InterruptedException {
+        m_async.close();
+        m_async.m_worker.join(1000);
+    }
+
+    @Test
+    public void executesInOrder() throws Exception {
+        final List<Integer> order = new ArrayList<Integer>();
+        Future<?> last = null;
+        for (int i = 0; i < 10; i++) {
+            final int n = i;
+            last = m_async.submit(new ZFPAsync.Command<Integer>() {
+                @Override
+                public Integer execute(ZFPLib zfp) {
+                    order.add(n);
+                    return n;
+                }
+            });
+        }
+        last.get(1, TimeUnit.SECONDS);
+        assertEquals(10, order.size());
+        for (int i = 0; i < 10; i++)
+            assertEquals(i, (int) order.get(i));
+    }
+
+    @Test
+    public void printsReceipt() throws Exception {
+        Recorder<ZFPReceipt> callback = new Recorder<ZFPReceipt>();
+        ZFPReceipt receipt = new ZFPReceipt().openFiscalBon(1, "0000", false, false)
+                .sellFree("Bread", 'A', 1.10f, 1.0f, 0.0f)
+                .payment(ZFPAmount.parse("1.10"), 0, false)
+                .closeFiscalBon();
+        assertSame(receipt, m_async.printReceipt(receipt, callback).get(1, TimeUnit.SECONDS));
+        assertTrue(callback.m_done.await(1, TimeUnit.SECONDS));
+        assertSame(receipt, callback.m_result);
+        assertNull(callback.m_error);
+        assertEquals(1, m_sim.getBonNumber());
+    }
+
+    @Test
+    public void reportsFailure() throws Exception {
+        Recorder<ZFPReceipt> callback = new Recorder<ZFPReceipt>();
+        // a receipt without a payment is rejected before anything is sent
+        ZFPReceipt receipt = new ZFPReceipt().openFiscalBon(1, "0000", false, false).closeFiscalBon();
+        Future<ZFPReceipt> result = m_async.printReceipt(receipt, callback);
+        try {
+            result.get(1, TimeUnit.SECONDS);
+            fail("the receipt was printed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ZFPException);
+        }
+        assertTrue(callback.m_done.await(1, TimeUnit.SECONDS));
+        assertTrue(callback.m_error instanceof ZFPException);
+    }
+
+    @Test
+    public void survivesThrowingCallback() throws Exception {
+        m_async.getStatus(new ZFPAsync.Callback<ZFPStatus>() {
+            @Override
+            public void onResult(ZFPStatus result) {
+                throw new IllegalStateException("callback");
+            }
+
+            @Override
+            public void onError(Exception e) {
+                throw new IllegalStateException("callback");
+            }
+        }).get(1, TimeUnit.SECONDS);
+        assertNotNull(m_async.getStatus(null).get(1, TimeUnit.SECONDS));
+        assertTrue(m_async.m_worker.isAlive());
+    }
+
+    @Test
+    public void closeCancelsQueuedCommands() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Future<Boolean> running = m_async.submit(new ZFPAsync.Command<Boolean>() {
+            @Override
+            public Boolean execute(ZFPLib zfp) {
+                started.countDown();
+                try {
+                    return release.await(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+        });
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        Recorder<ZFPStatus> callback = new Recorder<ZFPStatus>();
+        Future<ZFPStatus> queued = m_async.getStatus(callback);
+        m_async.close();
+        release.countDown();
+
+        // the current command ends, the queued one is cancelled
+        assertTrue(running.get(1, TimeUnit.SECONDS));
+        assertTrue(callback.m_done.await(1, TimeUnit.SECONDS));
+        assertTrue(callback.m_error instanceof CancellationException);
+        assertTrue(queued.isCancelled());
+        m_async.m_worker.join(1000);
+        assertFalse(m_async.m_worker.isAlive());
+        assertTrue(m_async.getStatus(null).isCancelled());
+    }
+
+    @Test
+    public void dropsNothingWithoutJournal() throws Exception {
+        assertFalse(m_async.dropReceipt(null).get(1, TimeUnit.SECONDS));
+        assertEquals(ZFPJournal.NONE, (int) m_async.recoverReceipt(null).get(1, TimeUnit.SECONDS));
+    }
+
+    static class Recorder<T> implements ZFPAsync.Callback<T> {
+        final CountDownLatch m_done = new CountDownLatch(1);
+        volatile T m_result;
+        volatile Exception m_error;
+
+        @Override
+        public void onResult(T result) {
+            m_result = result;
+            m_done.countDown();
+        }
+
+        @Override
+        public void onError(Exception e) {
+            m_error = e;
+            m_done.countDown();
+        }
+    }
+}
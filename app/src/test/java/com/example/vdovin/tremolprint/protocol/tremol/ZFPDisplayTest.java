@@ -0,0 +1,152 @@
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Coalescing and flushing of ZFPDisplay, the display commands are sent to the simulator.
+ */
+public class ZFPDisplayTest {
+
+    private final ZFPSimulator m_sim = new ZFPSimulator();
+    private final DisplayLib m_zfp = new DisplayLib(m_sim);
+    private final ZFPDisplay m_display = new ZFPDisplay();
+
+    @After
+    public void disconnect() {
+        m_zfp.close();
+        m_sim.close();
+    }
+
+    @Test
+    public void sendsOnlyTheLatestText() throws ZFPException {
+        m_display.setLine1("first");
+        m_display.setLine1("second   ");
+        m_display.flush(m_zfp);
+        assertEquals("1:second", m_zfp.sent());
+        assertEquals(1, m_sim.getFrameCount());
+    }
+
+    @Test
+    public void sendsNothingUnchanged() throws ZFPException {
+        m_display.setText("Total           1.10Thank you");
+        m_display.flush(m_zfp);
+        assertEquals("2:Total           1.10Thank you", m_zfp.sent());
+
+        m_display.setLine1("Total           1.10");
+        assertFalse(m_display.isPending());
+        assertEquals(-1, m_display.getFlushDelay(System.nanoTime()));
+        m_display.flush(m_zfp);
+        assertEquals("", m_zfp.sent());
+
+        m_display.setLine2("Bye");
+        m_display.flush(m_zfp);
+        assertEquals("L2:Bye", m_zfp.sent());
+    }
+
+    @Test
+    public void joinsBothLines() throws ZFPException {
+        m_display.setLine1("Bread");
+        m_display.setLine2("1.10");
+        m_display.flush(m_zfp);
+        assertEquals("2:Bread               1.10", m_zfp.sent());
+
+        m_display.clear();
+        m_display.flush(m_zfp);
+        assertEquals("C", m_zfp.sent());
+    }
+
+    @Test
+    public void waitsForTheInterval() throws ZFPException {
+        m_display.setInterval(100);
+        m_display.setLine1("one");
+        m_display.flush(m_zfp);
+        long now = System.nanoTime();
+        m_display.setLine1("two");
+        long delay = m_display.getFlushDelay(now);
+        assertTrue(0 < delay);
+        assertTrue(100 * 1000000L >= delay);
+        assertEquals(0, m_display.getFlushDelay(now + 100 * 1000000L));
+    }
+
+    @Test
+    public void sendsAgainAfterFailure() throws ZFPException {
+        m_display.setLine1("lost");
+        m_zfp.m_fail = true;
+        try {
+            m_display.flush(m_zfp);
+            fail("the flush succeeded");
+        } catch (ZFPException expected) {
+        }
+        assertTrue(m_display.isPending());
+
+        m_zfp.m_fail = false;
+        m_zfp.sent();
+        m_display.flush(m_zfp);
+        assertEquals("1:lost", m_zfp.sent());
+    }
+
+    @Test
+    public void sendsAgainAfterInvalidate() throws ZFPException {
+        m_display.setLine1("kept");
+        m_display.flush(m_zfp);
+        m_zfp.sent();
+        m_display.invalidate();
+        assertTrue(m_display.isPending());
+        m_display.flush(m_zfp);
+        assertEquals("1:kept", m_zfp.sent());
+    }
+
+    /** Notes the display commands before they are sent */
+    static class DisplayLib extends ZFPLib {
+        final List<String> m_sent = new ArrayList<String>();
+        volatile boolean m_fail;
+
+        DisplayLib(ZFPSimulator sim) {
+            super(sim.getInputStream(), sim.getOutputStream());
+        }
+
+        String sent() {
+            StringBuilder s = new StringBuilder();
+            for (String cmd : m_sent)
+                s.append((0 == s.length()) ? "" : ",").append(cmd);
+            m_sent.clear();
+            return s.toString();
+        }
+
+        void note(String cmd) throws ZFPException {
+            if (m_fail)
+                throw new ZFPException("display failed");
+            m_sent.add(cmd);
+        }
+
+        @Override
+        public void displayClear() throws ZFPException {
+            note("C");
+            super.displayClear();
+        }
+
+        @Override
+        public void displayLine1(String line) throws ZFPException {
+            note("1:" + line);
+            super.displayLine1(line);
+        }
+
+        @Override
+        public void displayLine2(String line) throws ZFPException {
+            note("L2:" + line);
+            super.displayLine2(line);
+        }
+
+        @Override
+        public void display(String line) throws ZFPException {
+            note("2:" + line);
+            super.display(line);
+        }
+    }
+}
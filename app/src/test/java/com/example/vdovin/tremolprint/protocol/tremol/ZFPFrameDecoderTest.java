@@ -0,0 +1,171 @@
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Frame recognition, CRC check and resynchronisation of ZFPFrameDecoder.
+ */
+public class ZFPFrameDecoderTest {
+
+    private final ZFPFrameDecoder m_decoder = new ZFPFrameDecoder();
+    private final byte[] m_buf = new byte[256];
+
+    @Test
+    public void decodesFrameSplitIntoChunks() throws IOException {
+        byte[] frame = frame((byte) 0x21, "ZFP-SIM 1.0");
+        for (int i = 0; i < frame.length; i += 3)
+            feed(Arrays.copyOfRange(frame, i, Math.min(i + 3, frame.length)));
+
+        assertEquals(ZFPFrameDecoder.FRAME, next());
+        assertEquals(frame.length, m_decoder.getLength());
+        assertArrayEquals(frame, Arrays.copyOf(m_buf, frame.length));
+    }
+
+    @Test
+    public void reportsBadCrc() throws IOException {
+        byte[] frame = frame((byte) 0x21, "ZFP-SIM 1.0");
+        frame[frame.length - 2] ^= 0x01;
+        feed(frame);
+        assertEquals(ZFPFrameDecoder.BAD_CRC, next());
+    }
+
+    @Test
+    public void reportsCorruptedData() throws IOException {
+        byte[] frame = frame((byte) 0x21, "ZFP-SIM 1.0");
+        frame[6] = 'X';
+        feed(frame);
+        assertEquals(ZFPFrameDecoder.BAD_CRC, next());
+    }
+
+    @Test
+    public void reportsShortFrame() throws IOException {
+        feed(new byte[]{0x02, 0x21, 0x0A});
+        assertEquals(ZFPFrameDecoder.BAD_FRAME, next());
+    }
+
+    @Test
+    public void resynchronisesAfterNoise() throws IOException {
+        byte[] frame = frame((byte) 0x60, "SIM00001;SIM00001");
+        feed(new byte[]{0x7F, 0x41, 0x00, (byte) 0xFF});
+        feed(frame);
+        assertEquals(ZFPFrameDecoder.FRAME, next());
+        assertArrayEquals(frame, Arrays.copyOf(m_buf, m_decoder.getLength()));
+    }
+
+    @Test
+    public void resynchronisesAfterBadFrame() throws IOException {
+        byte[] bad = frame((byte) 0x21, "ZFP-SIM 1.0");
+        bad[5] ^= 0x10;
+        byte[] good = frame((byte) 0x21, "ZFP-SIM 1.0");
+        feed(concat(bad, good));
+
+        assertEquals(ZFPFrameDecoder.BAD_CRC, next());
+        assertEquals(ZFPFrameDecoder.FRAME, next());
+        assertArrayEquals(good, Arrays.copyOf(m_buf, m_decoder.getLength()));
+    }
+
+    @Test
+    public void dropsFrameWithoutEtx() throws IOException {
+        // 256 bytes without ETX, the decoder starts over and finds the next frame
+        byte[] runaway = new byte[256];
+        Arrays.fill(runaway, (byte) 'A');
+        runaway[0] = 0x02;
+        byte[] good = frame((byte) 0x20, "\u0080\u0080\u0080\u0080\u0080");
+        feed(concat(runaway, good));
+
+        assertEquals(ZFPFrameDecoder.BAD_FRAME, next());
+        assertEquals(ZFPFrameDecoder.FRAME, next());
+    }
+
+    @Test
+    public void reportsSingleBytes() throws IOException {
+        feed(new byte[]{0x15, 0x0E, 0x03, 0x04, 0x05});
+        assertEquals(ZFPFrameDecoder.NACK, next());
+        assertEquals(ZFPFrameDecoder.RETRY, next());
+        assertEquals(ZFPFrameDecoder.ANTIECHO, next());
+        assertEquals(ZFPFrameDecoder.PING, next());
+        assertEquals(0x04, m_buf[0]);
+        assertEquals(ZFPFrameDecoder.PING, next());
+        assertEquals(0x05, m_buf[0]);
+    }
+
+    @Test
+    public void decodesAck() throws IOException {
+        byte[] ack = {0x06, 0x24, 0x30, 0x32, 0, 0, 0x0A};
+        byte crc = (byte) (ack[1] ^ ack[2] ^ ack[3]);
+        ack[4] = (byte) (((crc >> 4) & 0x0F) | 0x30);
+        ack[5] = (byte) ((crc & 0x0F) | 0x30);
+        feed(ack);
+        assertEquals(ZFPFrameDecoder.FRAME, next());
+        assertEquals(7, m_decoder.getLength());
+    }
+
+    @Test
+    public void returnsNoneAtDeadline() throws IOException {
+        assertEquals(ZFPFrameDecoder.NONE, m_decoder.next(m_buf, System.nanoTime() + 10000000L));
+    }
+
+    @Test
+    public void clearDropsPartialFrame() throws IOException {
+        byte[] frame = frame((byte) 0x21, "ZFP-SIM 1.0");
+        feed(Arrays.copyOf(frame, 6));
+        m_decoder.clear();
+        feed(frame);
+        assertEquals(ZFPFrameDecoder.FRAME, next());
+        assertEquals(frame.length, m_decoder.getLength());
+    }
+
+    @Test
+    public void countsDroppedResults() throws IOException {
+        for (int i = 0; i < ZFPFrameDecoder.QUEUE_SIZE + 2; i++)
+            feed(new byte[]{0x15});
+        assertEquals(2, m_decoder.getDroppedCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void closeWakesReader() throws IOException {
+        m_decoder.close();
+        next();
+    }
+
+    @Test
+    public void closeKeepsDecoderOfTheCaller() throws IOException {
+        new ZFPLib(m_decoder, new ByteArrayOutputStream()).close();
+        byte[] frame = frame((byte) 0x21, "ZFP-SIM 1.0");
+        feed(frame);
+        assertEquals(ZFPFrameDecoder.FRAME, next());
+    }
+
+    private void feed(byte[] b) {
+        m_decoder.feed(b, 0, b.length);
+    }
+
+    private int next() throws IOException {
+        return m_decoder.next(m_buf, System.nanoTime() + 1000000000L);
+    }
+
+    // a response frame the way Zeka FP sends it
+    private static byte[] frame(byte cmd, String data) {
+        ZFPFrameEncoder encoder = new ZFPFrameEncoder();
+        encoder.begin(cmd);
+        for (int i = 0; i < data.length(); i++)
+            encoder.append(new byte[]{(byte) data.charAt(i)}, 0, 1);
+        int len = encoder.end();
+        encoder.seal(0, len, 0x21);
+        byte[] frame = Arrays.copyOf(encoder.getBuffer(), len);
+        frame[len - 3] = (byte) ((frame[len - 3] & 0x0F) | 0x30);
+        return frame;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] res = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, res, a.length, b.length);
+        return res;
+    }
+}
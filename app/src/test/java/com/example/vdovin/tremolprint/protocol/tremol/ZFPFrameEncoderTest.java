@@ -0,0 +1,151 @@
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+import com.example.vdovin.tremolprint.protocol.sun.PrintfFormat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the frames of ZFPFrameEncoder with the PrintfFormat based code it replaced.
+ */
+public class ZFPFrameEncoderTest {
+
+    private static final String[] NAMES = {
+            "", "Bread", "Мляко 3,6% 1л", "A very long article name which is truncated at 36",
+            "Кафе с мляко и захар, голямо, за вкъщи", "semi;colon", "€ sign"
+    };
+
+    private final Locale m_locale = Locale.getDefault();
+
+    @After
+    public void restoreLocale() {
+        Locale.setDefault(m_locale);
+    }
+
+    @Test
+    public void sellFreeIsByteIdentical() throws Exception {
+        for (Locale locale : new Locale[]{Locale.ENGLISH, new Locale("bg", "BG")}) {
+            Locale.setDefault(locale);
+            ZFPFrameEncoder encoder = new ZFPFrameEncoder();
+            Random random = new Random(4);
+            for (int i = 0; i < 20000; i++) {
+                String name = NAMES[random.nextInt(NAMES.length)];
+                float price = randomFloat(random, 9999999.0f) * (random.nextBoolean() ? 1 : -1);
+                float quantity = randomFloat(random, 999999.999f);
+                float discount = random.nextBoolean() ? 0.0f : randomFloat(random, 999.0f) * (random.nextBoolean() ? 1 : -1);
+
+                encoder.reset();
+                int len = ZFPLib.encodeSellFree(encoder, name, 'B', price, quantity, discount, ZFPException.ZFP_LANG_EN);
+                byte[] data = Arrays.copyOfRange(encoder.getBuffer(), 4, len - 3);
+                assertArrayEquals(locale + " " + price + " " + quantity + " " + discount,
+                        sellFreeData(name, 'B', price, quantity, discount), data);
+            }
+        }
+    }
+
+    @Test
+    public void floatFormatIsIdentical() {
+        Random random = new Random(5);
+        for (int i = 0; i < 20000; i++) {
+            float num = randomFloat(random, 9999999.99f);
+            assertEquals(Float.toString(num), getFloatFormat(num, 2), ZFPLib.getFloatFormat(num, 2));
+            num = randomFloat(random, 999999.999f);
+            assertEquals(Float.toString(num), getFloatFormat(num, 3), ZFPLib.getFloatFormat(num, 3));
+        }
+    }
+
+    @Test
+    public void roundsHalfToEvenLikePrintfFormat() {
+        // 0.125 and 2.5 are exact binary fractions, 1.005 is slightly below its decimal value
+        assertEquals("0000000.12", ZFPLib.getFloatFormat(0.125f, 2));
+        assertEquals("0000000.38", ZFPLib.getFloatFormat(0.375f, 2));
+        assertEquals("0000001.00", ZFPLib.getFloatFormat(1.005f, 2));
+        assertEquals(new PrintfFormat("%.0f").sprintf(2.5f), new String(fixed(2.5f, 0)));
+    }
+
+    @Test
+    public void frameHasLengthAndCrc() {
+        ZFPFrameEncoder encoder = new ZFPFrameEncoder(8);
+        encoder.begin((byte) 0x21);
+        int len = encoder.end();
+        encoder.seal(0, len, 0x2A);
+
+        byte[] frame = Arrays.copyOf(encoder.getBuffer(), len);
+        assertArrayEquals(new byte[]{0x02, 0x23, 0x2A, 0x21, 0x32, 0x38, 0x0A}, frame);
+    }
+
+    @Test
+    public void framesFollowEachOther() {
+        ZFPFrameEncoder encoder = new ZFPFrameEncoder(8);
+        int first = encoder.begin((byte) 0x30);
+        int firstLen = encoder.text("long enough to grow the buffer", 40).end();
+        int second = encoder.begin((byte) 0x38);
+        int secondLen = encoder.end();
+
+        assertEquals(0, first);
+        assertEquals(firstLen, second);
+        assertEquals(first + firstLen + secondLen, encoder.size());
+        assertEquals(0x30, encoder.getBuffer()[first + 3]);
+        assertEquals(0x38, encoder.getBuffer()[second + 3]);
+    }
+
+    private static byte[] fixed(float num, int decimals) {
+        ZFPFrameEncoder encoder = new ZFPFrameEncoder();
+        encoder.fixed(num, decimals, 0, false, '.');
+        return Arrays.copyOf(encoder.getBuffer(), encoder.size());
+    }
+
+    // spreads the values over all magnitudes, with many of them on a decimal grid
+    private static float randomFloat(Random random, float max) {
+        float value = (float) (Math.pow(10, random.nextInt(8) - 1) * random.nextDouble());
+        if (random.nextBoolean())
+            value = Math.round(value * 1000.0f) / 1000.0f;
+        return Math.min(value, max);
+    }
+
+    // the code replaced by ZFPFrameEncoder
+
+    private static String getFloatFormat(float num, int count) {
+        float max_value = (2 == count) ? 9999999.99f : 999999.999f;
+        String match;
+        if (max_value < num)
+            match = "%.0f";
+        else {
+            match = "%010.";
+            match += Integer.toString(count);
+            match += "f";
+        }
+
+        String res = new PrintfFormat(match).sprintf(num).replace(',', '.');
+        // the original threw StringIndexOutOfBoundsException for short results
+        if ((9 < res.length()) && ('.' == res.charAt(9)))
+            return res.substring(0, 9);
+
+        return res;
+    }
+
+    private static byte[] sellFreeData(String name, char taxgrp, float price, float quantity, float discount)
+            throws Exception {
+        StringBuffer data = new StringBuffer(new PrintfFormat("%-36s").sprintf(ZFPLib.nstrcpy(name, 36)));
+        data.append(";");
+        data.append(taxgrp);
+        data.append(";");
+        data.append(getFloatFormat(price, 2));
+        data.append("*");
+        data.append(getFloatFormat(quantity, 3));
+        if (0.0f != discount) {
+            data.append(",");
+            data.append(new PrintfFormat("%6.2f").sprintf(discount));
+            data.append("%");
+        }
+
+        // the default charset of Android
+        return data.toString().getBytes("UTF-8");
+    }
+}
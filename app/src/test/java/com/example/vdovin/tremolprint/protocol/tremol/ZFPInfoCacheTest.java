@@ -0,0 +1,165 @@
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Answers, invalidation and printer identity of ZFPInfoCache, against the simulator.
+ */
+public class ZFPInfoCacheTest extends SimulatorFixture {
+
+    private final ZFPInfoCache m_cache = new ZFPInfoCache();
+
+    @Test
+    public void answersFromMemory() throws ZFPException {
+        m_zfp.setInfoCache(m_cache);
+        assertEquals("ZFP-SIM 1.0", m_zfp.getVersion());
+        assertEquals("SIM00001", m_zfp.getFactoryNumber());
+        assertEquals(2, m_sim.getFrameCount());
+
+        assertEquals("ZFP-SIM 1.0", m_zfp.getVersion());
+        assertEquals("SIM00001", m_zfp.getFactoryNumber());
+        assertEquals("SIM00001", m_zfp.getFiscalNumber());
+        assertEquals(2, m_sim.getFrameCount());
+    }
+
+    @Test
+    public void neverKeepsTheDecimalPoint() throws ZFPException {
+        m_zfp.setInfoCache(m_cache);
+        assertFalse(m_cache.isCached((byte) 0x63));
+        m_zfp.getDecimalPoint();
+        m_zfp.getDecimalPoint();
+        assertEquals(2, m_sim.getFrameCount());
+    }
+
+    @Test
+    public void commandDropsWhatItChanges() throws ZFPException {
+        m_zfp.setInfoCache(m_cache);
+        m_zfp.getVersion();
+        m_zfp.getFactoryNumber();
+        m_zfp.getTaxNumber();
+        assertEquals(3, m_sim.getFrameCount());
+
+        // setTaxNumber changes the tax number and the fiscal number
+        m_zfp.sendCommand((byte) 0x41, "0000;1234567890123".getBytes());
+        assertEquals(4, m_sim.getFrameCount());
+        m_zfp.getVersion();
+        assertEquals(4, m_sim.getFrameCount());
+        m_zfp.getFactoryNumber();
+        m_zfp.getTaxNumber();
+        assertEquals(6, m_sim.getFrameCount());
+    }
+
+    @Test
+    public void keepsEachDataSeparately() {
+        byte[] first = response((byte) 0x6A, "1;Ivan");
+        byte[] second = response((byte) 0x6A, "2;Maria");
+        m_cache.put((byte) 0x6A, new byte[]{'1'}, first, first.length);
+        m_cache.put((byte) 0x6A, new byte[]{'2'}, second, second.length);
+
+        byte[] dst = new byte[256];
+        assertEquals(second.length, m_cache.get((byte) 0x6A, new byte[]{'2'}, dst));
+        assertArrayEquals(second, Arrays.copyOf(dst, second.length));
+        assertEquals(-1, m_cache.get((byte) 0x6A, new byte[]{'3'}, dst));
+
+        m_cache.invalidate((byte) 0x4A);
+        assertEquals(-1, m_cache.get((byte) 0x6A, new byte[]{'1'}, dst));
+    }
+
+    @Test
+    public void loadedCacheIsUsedForTheSamePrinter() throws Exception {
+        m_zfp.setInfoCache(m_cache);
+        m_zfp.getVersion();
+        m_zfp.getFactoryNumber();
+        ZFPInfoCache loaded = reload(m_cache);
+        assertFalse(loaded.isVerified());
+
+        m_zfp.setInfoCache(loaded);
+        long frames = m_sim.getFrameCount();
+        // the identity is read once, then the version comes from the cache
+        assertEquals("ZFP-SIM 1.0", m_zfp.getVersion());
+        assertEquals(frames + 1, m_sim.getFrameCount());
+        assertTrue(loaded.isVerified());
+        assertEquals("ZFP-SIM 1.0", m_zfp.getVersion());
+        assertEquals(frames + 1, m_sim.getFrameCount());
+    }
+
+    @Test
+    public void loadedCacheIsDroppedForAnotherPrinter() throws Exception {
+        byte[] identity = response(ZFPInfoCache.IDENTITY, "OTHER001;OTHER001");
+        byte[] version = response((byte) 0x21, "OTHER 2.0");
+        m_cache.put(ZFPInfoCache.IDENTITY, null, identity, identity.length);
+        m_cache.put((byte) 0x21, null, version, version.length);
+        ZFPInfoCache loaded = reload(m_cache);
+
+        m_zfp.setInfoCache(loaded);
+        assertEquals("ZFP-SIM 1.0", m_zfp.getVersion());
+        assertEquals(2, m_sim.getFrameCount());
+        assertEquals("SIM00001", m_zfp.getFactoryNumber());
+        assertEquals(2, m_sim.getFrameCount());
+    }
+
+    @Test
+    public void neverSavesOperators() throws Exception {
+        byte[] identity = response(ZFPInfoCache.IDENTITY, "SIM00001;SIM00001");
+        byte[] operator = response((byte) 0x6A, "1;Ivan;0000");
+        m_cache.put(ZFPInfoCache.IDENTITY, null, identity, identity.length);
+        m_cache.put((byte) 0x6A, new byte[]{'1'}, operator, operator.length);
+        ZFPInfoCache loaded = reload(m_cache);
+
+        loaded.put(ZFPInfoCache.IDENTITY, null, identity, identity.length);
+        assertTrue(loaded.isVerified());
+        assertEquals(identity.length, loaded.get(ZFPInfoCache.IDENTITY, null, new byte[256]));
+        assertEquals(-1, loaded.get((byte) 0x6A, new byte[]{'1'}, new byte[256]));
+    }
+
+    @Test
+    public void loadsOnlyWhatItKeeps() throws IOException {
+        byte[] identity = response(ZFPInfoCache.IDENTITY, "SIM00001;SIM00001");
+        byte[] point = response((byte) 0x63, "2");
+        ByteArrayOutputStream saved = new ByteArrayOutputStream();
+        DataOutputStream dout = new DataOutputStream(saved);
+        dout.writeInt(ZFPInfoCache.MAGIC);
+        dout.writeInt(2);
+        dout.writeUTF(ZFPInfoCache.key(ZFPInfoCache.IDENTITY, null));
+        dout.writeShort(identity.length);
+        dout.write(identity);
+        dout.writeUTF(ZFPInfoCache.key((byte) 0x63, null));
+        dout.writeShort(point.length);
+        dout.write(point);
+        m_cache.readFrom(new ByteArrayInputStream(saved.toByteArray()));
+
+        m_cache.put(ZFPInfoCache.IDENTITY, null, identity, identity.length);
+        assertTrue(m_cache.isVerified());
+        assertEquals(-1, m_cache.get((byte) 0x63, null, new byte[256]));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherData() throws IOException {
+        m_cache.readFrom(new ByteArrayInputStream(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}));
+    }
+
+    private static ZFPInfoCache reload(ZFPInfoCache cache) throws IOException {
+        ByteArrayOutputStream saved = new ByteArrayOutputStream();
+        cache.writeTo(saved);
+        ZFPInfoCache loaded = new ZFPInfoCache();
+        loaded.readFrom(new ByteArrayInputStream(saved.toByteArray()));
+        return loaded;
+    }
+
+    private static byte[] response(byte cmd, String data) {
+        ZFPFrameEncoder encoder = new ZFPFrameEncoder();
+        encoder.begin(cmd);
+        encoder.append(data);
+        int len = encoder.end();
+        encoder.seal(0, len, 0x21);
+        return Arrays.copyOf(encoder.getBuffer(), len);
+    }
+}
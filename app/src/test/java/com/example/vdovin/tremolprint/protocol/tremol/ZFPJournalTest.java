@@ -0,0 +1,352 @@
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Wraparound of ZFPJournal and the recovery of interrupted receipts, by the caller or
+ * automatically, against the simulator.
+ */
+public class ZFPJournalTest extends SimulatorFixture {
+
+    private static final int CAPACITY = 1024;
+
+    private File m_file;
+
+    @Before
+    public void open() throws IOException {
+        m_file = File.createTempFile("journal", ".zfp");
+        m_zfp.setJournal(new ZFPJournal(m_file, CAPACITY));
+    }
+
+    @After
+    public void delete() {
+        m_file.delete();
+    }
+
+    @Test
+    public void wrapsAround() throws Exception {
+        ZFPJournal journal = m_zfp.getJournal();
+        int wraps = 0;
+        for (int i = 0; i < 20; i++) {
+            int pos = journal.m_pos;
+            m_zfp.printReceipt(receipt());
+            if (journal.m_pos < pos)
+                wraps++;
+            assertFalse(journal.hasPending());
+        }
+        assertTrue(1 < wraps);
+        assertEquals(20, m_sim.getBonNumber());
+
+        // the records behind the last one are older, the scan stops there
+        ZFPJournal reopened = restart();
+        assertFalse(reopened.hasPending());
+        assertEquals(journal.m_seq, reopened.m_seq);
+        assertEquals(journal.m_pos, reopened.m_pos);
+    }
+
+    @Test
+    public void findsInterruptedReceiptAfterWrap() throws Exception {
+        for (int i = 0; i < 7; i++)
+            m_zfp.printReceipt(receipt());
+        interrupt(receipt(), 3);
+
+        ZFPJournal journal = restart();
+        assertTrue(journal.hasPending());
+        assertEquals(5, journal.getStepCount());
+        assertEquals(3, journal.getDoneCount());
+        assertEquals(-1, journal.getFailedStep());
+        assertEquals(0x30, journal.getStep(0)[0]);
+        assertEquals(0x38, journal.getStep(4)[0]);
+    }
+
+    @Test
+    public void stopsAtBrokenRecord() throws Exception {
+        interrupt(receipt(), 3);
+        int end = m_zfp.getJournal().m_pos;
+
+        // a torn write of the last acknowledgement
+        RandomAccessFile raf = new RandomAccessFile(m_file, "rw");
+        try {
+            raf.seek(end - 1);
+            int crc = raf.read();
+            raf.seek(end - 1);
+            raf.write(crc ^ 0xFF);
+        } finally {
+            raf.close();
+        }
+        ZFPJournal journal = restart();
+        assertTrue(journal.hasPending());
+        assertEquals(2, journal.getDoneCount());
+    }
+
+    @Test
+    public void rejectsReceiptLargerThanTheJournal() throws Exception {
+        ZFPReceipt receipt = new ZFPReceipt().openFiscalBon(1, "0000", false, false);
+        for (int i = 0; i < 30; i++)
+            receipt.sellFree("Article " + i, 'A', 1.00f, 1.0f, 0.0f);
+        receipt.payment(ZFPAmount.parse("30.00"), 0, false).closeFiscalBon();
+        try {
+            m_zfp.printReceipt(receipt);
+            fail("the receipt was printed");
+        } catch (ZFPException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(0, m_sim.getFrameCount());
+    }
+
+    @Test
+    public void replaysInterruptedReceipt() throws Exception {
+        interrupt(receipt(), 3);
+        restart();
+
+        assertEquals(ZFPJournal.REPLAYED, m_zfp.recoverReceipt());
+        assertFalse(m_zfp.getJournal().hasPending());
+        assertEquals(1, m_sim.getBonNumber());
+        assertEquals(ZFPAmount.parse("5.80"), m_sim.m_daily[0].add(m_sim.m_daily[1]));
+        assertEquals(ZFPJournal.NONE, m_zfp.recoverReceipt());
+    }
+
+    @Test
+    public void replaysReceiptNeverOpened() throws Exception {
+        interrupt(receipt(), 0);
+        restart();
+
+        assertEquals(ZFPJournal.REPLAYED, m_zfp.recoverReceipt());
+        assertEquals(1, m_sim.getBonNumber());
+    }
+
+    @Test
+    public void voidsExpiredReceipt() throws Exception {
+        interrupt(receipt(), 3);
+        restart().setReplayWindow(0);
+        Thread.sleep(5);
+
+        assertEquals(ZFPJournal.VOIDED, m_zfp.recoverReceipt());
+        assertEquals(1, m_sim.getBonNumber());
+        for (int i = 0; i < ZFPSimulator.GROUPS; i++)
+            assertEquals(0, m_sim.m_daily[i].signum());
+        assertEquals(0, m_zfp.getCurrentReceiptInfo().getChangeAmount().signum());
+    }
+
+    @Test
+    public void neverResendsRefusedCommand() throws Exception {
+        ZFPReceipt receipt = new ZFPReceipt().openFiscalBon(1, "0000", false, false)
+                .sellFree("Bread", 'A', 1.10f, 1.0f, 0.0f)
+                .sellFree("Nothing", 'A', 1.10f, 0.0f, 0.0f)
+                .payment(ZFPAmount.parse("10.00"), 0, false)
+                .closeFiscalBon();
+        try {
+            m_zfp.printReceipt(receipt);
+            fail("the receipt was printed");
+        } catch (ZFPException e) {
+            assertTrue(0x100 > e.getErrorCode());
+        }
+        ZFPJournal journal = m_zfp.getJournal();
+        assertTrue(journal.hasPending());
+        assertEquals(2, journal.getFailedStep());
+        assertEquals(2, restart().getFailedStep());
+
+        try {
+            m_zfp.printReceipt(receipt());
+            fail("printed while a receipt is pending");
+        } catch (ZFPException e) {
+            assertEquals(0x10F, e.getErrorCode());
+        }
+
+        long frames = m_sim.getFrameCount();
+        assertEquals(ZFPJournal.VOIDED, m_zfp.recoverReceipt());
+        // receipt info, void of the sale, payment and close
+        assertEquals(frames + 4, m_sim.getFrameCount());
+        assertEquals(1, m_sim.getBonNumber());
+        assertEquals(0, m_sim.m_daily[0].signum());
+    }
+
+    @Test
+    public void failsRefusedReceiptAfterPayment() throws Exception {
+        ZFPReceipt receipt = new ZFPReceipt().openFiscalBon(1, "0000", false, false)
+                .sellFree("Bread", 'A', 1.10f, 1.0f, 0.0f)
+                .payment(ZFPAmount.parse("0.50"), 0, false)
+                .payment(ZFPAmount.parse("0.60"), 0, false)
+                .closeFiscalBon();
+        m_output.limit(3);
+        try {
+            m_zfp.printReceipt(receipt);
+            fail("the receipt was printed");
+        } catch (ZFPException e) {
+            assertEquals(-1, e.getErrorCode());
+        }
+        m_output.limit(Integer.MAX_VALUE);
+        m_zfp.getJournal().fail(3);
+
+        // paid in part, it can be neither voided nor completed
+        assertEquals(ZFPJournal.FAILED, m_zfp.recoverReceipt());
+        assertTrue(m_zfp.getCurrentReceiptInfo().isOpenReceipt());
+    }
+
+    @Test
+    public void endsReceiptWhoseOpeningWasRefused() throws Exception {
+        m_zfp.openFiscalBon(1, "0000", false, false);
+        try {
+            m_zfp.printReceipt(receipt());
+            fail("opened twice");
+        } catch (ZFPException e) {
+            assertTrue(0x100 > e.getErrorCode());
+        }
+        assertFalse(m_zfp.getJournal().hasPending());
+    }
+
+    @Test
+    public void leavesForeignReceipt() throws Exception {
+        interrupt(receipt(), 0);
+        m_zfp.openFiscalBon(2, "0000", false, false);
+        m_zfp.sellFree("Bread", 'A', 1.10f, 1.0f, 0.0f);
+        restart();
+
+        assertEquals(ZFPJournal.CONFLICT, m_zfp.recoverReceipt());
+        assertFalse(m_zfp.getJournal().hasPending());
+        assertEquals(ZFPAmount.parse("1.10"), m_sim.getTotal());
+    }
+
+    @Test
+    public void leavesReceiptWithOtherSales() throws Exception {
+        interrupt(receipt(), 2);
+        // the printer got another sale instead of the journaled one
+        m_zfp.sellFree("Milk", 'B', 9.99f, 1.0f, 0.0f);
+        restart();
+
+        assertEquals(ZFPJournal.CONFLICT, m_zfp.recoverReceipt());
+        assertEquals(0, m_sim.getBonNumber());
+    }
+
+    @Test
+    public void notesReceiptClosedMeanwhile() throws Exception {
+        interrupt(receipt(), 3);
+        m_zfp.payment(ZFPAmount.parse("10.00"), 0, false);
+        m_zfp.closeFiscalBon();
+        restart();
+
+        assertEquals(ZFPJournal.CLOSED, m_zfp.recoverReceipt());
+        assertEquals(1, m_sim.getBonNumber());
+    }
+
+    @Test
+    public void dropsReceipt() throws Exception {
+        interrupt(receipt(), 3);
+        restart();
+
+        assertTrue(m_zfp.dropReceipt());
+        assertFalse(m_zfp.dropReceipt());
+        assertFalse(restart().hasPending());
+        assertEquals(0, m_sim.getBonNumber());
+    }
+
+    @Test
+    public void leavesOrphanToTheCallerByDefault() throws Exception {
+        interrupt(receipt(), 3);
+        assertFalse(m_zfp.getJournal().isOrphaned());
+        assertTrue(restart().isOrphaned());
+        try {
+            m_zfp.printReceipt(receipt());
+            fail("printed while a receipt is pending");
+        } catch (ZFPException e) {
+            assertEquals(0x10F, e.getErrorCode());
+        }
+        m_zfp.getStatus();
+        assertTrue(m_zfp.getJournal().hasPending());
+    }
+
+    @Test
+    public void recoversOrphanBeforeTheNextReceipt() throws Exception {
+        interrupt(receipt(), 3);
+        restart();
+        m_zfp.setAutoRecover(true);
+
+        m_zfp.printReceipt(receipt());
+        assertFalse(m_zfp.getJournal().hasPending());
+        assertEquals(2, m_sim.getBonNumber());
+    }
+
+    @Test
+    public void recoversOrphanWhenAsyncStarts() throws Exception {
+        interrupt(receipt(), 3);
+        restart();
+        m_zfp.setAutoRecover(true);
+
+        // the first idle gap reads the status
+        ZFPAsync async = new ZFPAsync(m_zfp);
+        try {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (m_zfp.getJournal().hasPending() && (System.currentTimeMillis() < deadline))
+                Thread.sleep(5);
+        } finally {
+            async.close();
+        }
+        assertFalse(m_zfp.getJournal().hasPending());
+        assertEquals(1, m_sim.getBonNumber());
+    }
+
+    @Test
+    public void leavesReportedFailureToTheCaller() throws Exception {
+        m_zfp.setAutoRecover(true);
+        interrupt(receipt(), 3);
+
+        // the caller saw it fail, printing it again must not print it twice
+        try {
+            m_zfp.printReceipt(receipt());
+            fail("printed while a receipt is pending");
+        } catch (ZFPException e) {
+            assertEquals(0x10F, e.getErrorCode());
+        }
+        m_zfp.getStatus();
+        assertTrue(m_zfp.getJournal().hasPending());
+        assertEquals(0, m_sim.getBonNumber());
+    }
+
+    @Test
+    public void recoversAfterPowerDown() throws Exception {
+        m_zfp.setAutoRecover(true);
+        interrupt(receipt(), 3);
+        m_sim.setStatusBits(0, 0x02, true);
+
+        assertTrue(m_zfp.getStatus().isPowerDown());
+        assertFalse(m_zfp.getJournal().hasPending());
+        assertEquals(1, m_sim.getBonNumber());
+    }
+
+    private static ZFPReceipt receipt() throws ZFPException {
+        return new ZFPReceipt().openFiscalBon(1, "0000", false, false)
+                .sellFree("Bread", 'A', 1.10f, 1.0f, 0.0f)
+                .sellFree("Milk", 'B', 2.35f, 2.0f, 0.0f)
+                .payment(ZFPAmount.parse("10.00"), 0, false)
+                .closeFiscalBon();
+    }
+
+    // the connection is lost after some frames of the receipt
+    private void interrupt(ZFPReceipt receipt, int frames) {
+        m_output.limit(frames);
+        try {
+            m_zfp.printReceipt(receipt);
+            fail("the receipt was printed");
+        } catch (ZFPException e) {
+            assertEquals(-1, e.getErrorCode());
+        }
+        m_output.limit(Integer.MAX_VALUE);
+        assertTrue(m_zfp.getJournal().hasPending());
+        assertEquals(frames, m_zfp.getJournal().getDoneCount());
+    }
+
+    // the application starts again with the same file
+    private ZFPJournal restart() throws IOException {
+        ZFPJournal journal = new ZFPJournal(m_file, CAPACITY);
+        m_zfp.setJournal(journal);
+        return journal;
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * The local receipt state and sub total of ZFPLib compared with the simulator.
+ */
+public class ZFPReceiptStateTest extends SimulatorFixture {
+
+    @Test
+    public void followsTheReceipt() throws ZFPException {
+        ZFPReceiptState state = m_zfp.getReceiptState();
+        assertTrue(state.isSynchronized());
+        assertFalse(state.isOpenReceipt());
+
+        m_zfp.openFiscalBon(3, "0000", false, false);
+        m_zfp.sellFree("Bread", 'A', 1.10f, 0.3f, 0.0f);
+        m_zfp.sellFree("Milk", 'B', 2.35f, 3.0f, -10.0f);
+        m_zfp.sellFree("Sugar", 'B', 0.07f, 0.5f, 0.0f);
+        long frames = m_sim.getFrameCount();
+
+        state = m_zfp.getReceiptState();
+        assertEquals(frames, m_sim.getFrameCount());
+        assertTrue(state.isOpenReceipt());
+        assertTrue(state.isExact());
+        assertEquals(3, state.getOperator());
+        assertEquals(3, state.getPurchaces());
+        assertEquals(ZFPAmount.parse("0.33"), state.getTaxGroupAmount(0));
+        assertEquals(ZFPAmount.parse("6.38"), state.getTaxGroupAmount(1));
+        assertEquals(m_sim.getTotal(), state.getTotalAmount());
+    }
+
+    @Test
+    public void computesSubTotalLocally() throws ZFPException {
+        m_zfp.openFiscalBon(1, "0000", false, false);
+        m_zfp.sellFree("Bread", 'A', ZFPAmount.parse("1.10"), ZFPAmount.parse("0.3"), ZFPAmount.ZERO);
+        m_zfp.sellFree("Milk", 'C', ZFPAmount.parse("2.35"), ZFPAmount.parse("3"), ZFPAmount.parse("-10"));
+
+        // the first sub total reads the decimal point, the next ones need no frame at all
+        assertEquals(m_sim.getTotal(), m_zfp.getSubTotal());
+        long frames = m_sim.getFrameCount();
+        assertEquals(m_sim.getTotal(), m_zfp.getSubTotal());
+        assertEquals(frames, m_sim.getFrameCount());
+
+        m_zfp.payment(m_zfp.getSubTotal(), 0, false);
+        assertTrue(m_zfp.getReceiptState().isPaymentFinished());
+        m_zfp.closeFiscalBon();
+        assertEquals(1, m_sim.getBonNumber());
+        assertEquals(0, m_zfp.getReceiptState().getDriftCount());
+        assertFalse(m_zfp.getReceiptState().isOpenReceipt());
+    }
+
+    @Test
+    public void asksThePrinterAfterDatabaseSale() throws ZFPException {
+        m_zfp.openFiscalBon(1, "0000", false, false);
+        m_zfp.sellFree("Bread", 'A', 1.10f, 1.0f, 0.0f);
+        m_zfp.sellDB(false, 7, 2.0f, 0.0f);
+        assertFalse(m_zfp.getReceiptState().isExact());
+
+        long frames = m_sim.getFrameCount();
+        assertEquals(ZFPAmount.parse("3.10"), m_zfp.getSubTotal());
+        assertTrue(frames < m_sim.getFrameCount());
+        assertEquals(0, m_zfp.getReceiptState().getDriftCount());
+    }
+
+    @Test
+    public void checkFindsNoDrift() throws ZFPException {
+        m_zfp.setSubTotalCheck(1);
+        m_zfp.openFiscalBon(1, "0000", false, false);
+        for (int i = 1; i <= 20; i++) {
+            m_zfp.sellFree("Item " + i, 'A', 0.01f * i + 0.005f, 0.001f * i * i, (0 == i % 3) ? 5.0f : 0.0f);
+            assertEquals(m_sim.getTotal(), m_zfp.getSubTotal());
+        }
+        assertEquals(0, m_zfp.getReceiptState().getDriftCount());
+    }
+
+    @Test
+    public void synchronizesWithReceiptInfo() throws ZFPException {
+        m_zfp.openFiscalBon(1, "0000", false, false);
+        m_zfp.sellFree("Bread", 'A', 1.10f, 1.0f, 0.0f);
+        m_zfp.payment(0.50f, 0, false);
+
+        ZFPReceiptState state = m_zfp.getReceiptState();
+        ZFPAmount total = state.getTotalAmount();
+        state.invalidate();
+        long frames = m_sim.getFrameCount();
+        state = m_zfp.getReceiptState();
+        assertEquals(frames + 1, m_sim.getFrameCount());
+        assertTrue(state.isSynchronized());
+        assertTrue(state.isPaymentStarted());
+        assertFalse(state.isPaymentFinished());
+        assertEquals(total, state.getTotalAmount());
+        assertEquals(1, state.getPurchaces());
+    }
+
+    @Test
+    public void failedCommandDropsSynchronization() throws ZFPException {
+        m_zfp.openFiscalBon(1, "0000", false, false);
+        try {
+            // nothing sold, the printer refuses the payment
+            m_zfp.payment(1.00f, 0, false);
+            fail("the payment was taken");
+        } catch (ZFPException e) {
+            assertTrue(0x100 > e.getErrorCode());
+        }
+        assertFalse(m_zfp.m_receiptState.isSynchronized());
+        assertTrue(m_zfp.getReceiptState().isOpenReceipt());
+        assertFalse(m_zfp.getReceiptState().isPaymentStarted());
+    }
+
+    @Test
+    public void roundsItemsLikeThePrinter() {
+        ZFPAmount price = ZFPAmount.parse("2.35");
+        ZFPAmount quantity = ZFPAmount.parse("3.000");
+        // the discount of 0.705 is rounded away from zero
+        assertEquals(ZFPAmount.parse("6.34"), ZFPReceiptState.itemAmount(price, quantity, ZFPAmount.parse("-10.00"), 2));
+        assertEquals(ZFPAmount.parse("7.05"), ZFPReceiptState.itemAmount(price, quantity, null, 2));
+        assertEquals(ZFPAmount.parse("7"), ZFPReceiptState.itemAmount(price, quantity, ZFPAmount.ZERO, 0));
+    }
+}
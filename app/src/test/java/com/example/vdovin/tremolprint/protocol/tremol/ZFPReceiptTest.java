@@ -0,0 +1,62 @@
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Whole receipts printed by ZFPLib.printReceipt, against the simulator.
+ */
+public class ZFPReceiptTest extends SimulatorFixture {
+
+    @Test
+    public void totalsWhatThePrinterGets() throws ZFPException {
+        // 0.125f goes into the frame as 0.12 and 0.0625f as 0.062, the printer sums 0.18
+        ZFPReceipt receipt = new ZFPReceipt().openFiscalBon(1, "0000", false, false)
+                .sellFree("Salt", 'A', 0.125f, 1.0f, 0.0f)
+                .sellFree("Pepper", 'A', 1.0f, 0.0625f, 0.0f);
+        assertEquals(ZFPAmount.parse("0.18"), receipt.getTotalAmount());
+
+        receipt.payment(receipt.getTotalAmount(), 0, false).closeFiscalBon();
+        m_zfp.printReceipt(receipt);
+        assertEquals(1, m_sim.getBonNumber());
+        assertEquals(ZFPAmount.parse("0.18"), m_sim.m_daily[0]);
+        assertEquals(0, m_zfp.getCurrentReceiptInfo().getChangeAmount().signum());
+    }
+
+    @Test
+    public void totalsExactAmountsAndDiscounts() throws ZFPException {
+        ZFPReceipt receipt = new ZFPReceipt().openFiscalBon(1, "0000", false, false)
+                .sellFree("Milk", 'B', ZFPAmount.parse("2.35"), ZFPAmount.parse("3"), ZFPAmount.parse("-10"))
+                .sellFree("Bread", 'A', 1.10f, 0.3f, 5.0f)
+                .sellDB(false, 7, 1.0f, 0.0f);
+        // the database sale is priced by the printer
+        assertEquals(ZFPAmount.parse("6.69"), receipt.getTotalAmount());
+    }
+
+    @Test
+    public void printsWholeReceipt() throws ZFPException {
+        ZFPReceipt receipt = new ZFPReceipt().openFiscalBon(1, "0000", false, false)
+                .sellFree("Bread", 'A', 1.10f, 1.0f, 0.0f)
+                .calcIntermediateSum(false, false, false, 0.0f, '0')
+                .payment(ZFPAmount.parse("2.00"), 0, false)
+                .closeFiscalBon();
+        m_zfp.printReceipt(receipt);
+        assertEquals(5, receipt.getCompletedSteps());
+        assertEquals(ZFPAmount.parse("1.10"), receipt.getSubTotalAmount());
+        assertEquals(1, m_sim.getBonNumber());
+    }
+
+    @Test
+    public void rejectsReceiptWithoutPayment() {
+        try {
+            m_zfp.printReceipt(new ZFPReceipt().openFiscalBon(1, "0000", false, false)
+                    .sellFree("Bread", 'A', 1.10f, 1.0f, 0.0f)
+                    .closeFiscalBon());
+            fail("printed without a payment");
+        } catch (ZFPException e) {
+            assertEquals(0x101, e.getErrorCode());
+        }
+        assertEquals(0, m_sim.getFrameCount());
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * The pump thread of ZFPReceiver, on the stream of the simulator.
+ */
+public class ZFPReceiverTest {
+
+    private final ZFPSimulator m_sim = new ZFPSimulator();
+    private final ZFPFrameDecoder m_decoder = new ZFPFrameDecoder();
+    private final ZFPReceiver m_receiver = new ZFPReceiver(m_sim.getInputStream(), m_decoder);
+    private final byte[] m_buf = new byte[256];
+
+    @After
+    public void close() {
+        m_receiver.close();
+        m_sim.close();
+    }
+
+    @Test
+    public void pumpsIntoTheDecoder() throws Exception {
+        m_sim.getOutputStream().write(0x04);
+        assertEquals(ZFPFrameDecoder.PING, next());
+    }
+
+    @Test
+    public void closeStopsWithoutFailingTheDecoder() throws Exception {
+        m_receiver.close();
+        m_receiver.m_pump.join(1000);
+        assertFalse(m_receiver.m_pump.isAlive());
+
+        // the answer stays in the simulator for the next reader
+        m_sim.getOutputStream().write(0x04);
+        assertEquals(1, m_sim.getInputStream().available());
+        assertEquals(ZFPFrameDecoder.NONE, m_decoder.next(m_buf, System.nanoTime()));
+    }
+
+    @Test(expected = IOException.class)
+    public void endOfStreamFailsTheDecoder() throws IOException {
+        m_sim.close();
+        next();
+    }
+
+    private int next() throws IOException {
+        return m_decoder.next(m_buf, System.nanoTime() + 1000000000L);
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Resending of failed frames by ZFPLib, against the simulator.
+ */
+public class ZFPRetryPolicyTest extends SimulatorFixture {
+
+    @Test
+    public void retriesOnlyWhatIsSafe() {
+        ZFPRetryPolicy policy = new ZFPRetryPolicy();
+        assertTrue(policy.shouldRetry((byte) 0x31, 0x103, 0));   // NACK, not executed
+        assertFalse(policy.shouldRetry((byte) 0x31, 0x102, 0));  // timeout, maybe executed
+        assertTrue(policy.shouldRetry((byte) 0x21, 0x102, 0));
+        assertTrue(policy.shouldRetry((byte) 0x72, 0x104, 2));
+        assertFalse(policy.shouldRetry((byte) 0x72, 0x104, 3));
+        assertFalse(policy.shouldRetry((byte) 0x21, 0x32, 0));   // the printer refused it
+        assertFalse(ZFPRetryPolicy.NONE.shouldRetry((byte) 0x31, 0x103, 0));
+
+        policy.setIdempotent((byte) 0x31, true);
+        assertTrue(policy.shouldRetry((byte) 0x31, 0x102, 0));
+    }
+
+    @Test
+    public void delaysGrowUpToTheLimit() {
+        ZFPRetryPolicy policy = new ZFPRetryPolicy(10, 20, 500);
+        assertEquals(20, policy.getDelay(1));
+        assertEquals(40, policy.getDelay(2));
+        assertEquals(320, policy.getDelay(5));
+        assertEquals(500, policy.getDelay(6));
+        assertEquals(500, policy.getDelay(10));
+    }
+
+    @Test
+    public void resendsRejectedFrame() throws ZFPException {
+        m_output.corrupt(1);
+        m_zfp.openFiscalBon(1, "0000", false, false);
+        m_zfp.sellFree("Bread", 'A', 1.50f, 1.0f, 0.0f);
+
+        assertEquals(1, m_zfp.getRetryCount());
+        assertEquals(2, m_sim.getFrameCount());
+        assertEquals(ZFPAmount.parse("1.50"), m_sim.getTotal());
+    }
+
+    @Test
+    public void failsWhenRetriesAreUsedUp() throws ZFPException {
+        m_zfp.setRetryPolicy(new ZFPRetryPolicy(2, 0, 0));
+        m_output.corrupt(3);
+        try {
+            m_zfp.getVersion();
+            fail("the frame was taken");
+        } catch (ZFPException e) {
+            assertEquals(0x103, e.getErrorCode());
+        }
+        assertEquals(2, m_zfp.getRetryCount());
+        assertEquals("ZFP-SIM 1.0", m_zfp.getVersion());
+    }
+
+    @Test
+    public void neverRetriesWithoutPolicy() throws ZFPException {
+        m_zfp.setRetryPolicy(ZFPRetryPolicy.NONE);
+        m_output.corrupt(1);
+        try {
+            m_zfp.getVersion();
+            fail("the frame was taken");
+        } catch (ZFPException e) {
+            assertEquals(0x103, e.getErrorCode());
+        }
+        assertEquals(0, m_zfp.getRetryCount());
+    }
+}
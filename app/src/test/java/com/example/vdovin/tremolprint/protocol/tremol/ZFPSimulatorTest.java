@@ -0,0 +1,150 @@
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * The line and the receipt of ZFPSimulator, on raw bytes and through ZFPLib.
+ */
+public class ZFPSimulatorTest extends SimulatorFixture {
+
+    // a second printer for the raw bytes, the receiver of m_zfp reads the first one
+    private final ZFPSimulator m_line = new ZFPSimulator();
+    private final InputStream m_in = m_line.getInputStream();
+    private final OutputStream m_out = m_line.getOutputStream();
+
+    @After
+    public void closeLine() {
+        m_line.close();
+    }
+
+    @Test
+    public void answersPings() throws IOException {
+        m_out.write(0x04);
+        assertEquals(0x04, m_in.read());
+        m_out.write(0x05);
+        assertEquals(0x05, m_in.read());
+        // antiecho and noise are dropped
+        m_out.write(0x03);
+        m_out.write(0x55);
+        assertEquals(0, m_in.available());
+    }
+
+    @Test
+    public void rejectsBrokenFrames() throws IOException {
+        byte[] frame = frame((byte) 0x21, "", 0x20);
+        frame[frame.length - 2] ^= 0x01;
+        m_out.write(frame);
+        assertEquals(0x15, m_in.read());
+
+        // a length below the empty frame
+        m_out.write(new byte[]{0x02, 0x20});
+        assertEquals(0x15, m_in.read());
+        assertEquals(0, m_line.getFrameCount());
+    }
+
+    @Test
+    public void answersRetransmissionWithoutExecuting() throws IOException {
+        m_out.write(frame((byte) 0x30, "1;0000;0;0;0", 0x20));
+        byte[] opened = read(7);
+        byte[] sale = frame((byte) 0x31, "Bread;A;1.50*1.000", 0x21);
+        m_out.write(sale);
+        byte[] first = read(7);
+        m_out.write(sale);
+        assertArrayEquals(first, read(7));
+        assertArrayEquals(opened, first);
+
+        assertEquals(2, m_line.getFrameCount());
+        assertEquals(ZFPAmount.parse("1.50"), m_line.getTotal());
+    }
+
+    @Test
+    public void keepsTheReceipt() throws ZFPException {
+        m_zfp.openFiscalBon(1, "0000", false, false);
+        try {
+            m_zfp.payment(1.00f, 0, false);
+            fail("paid without a sale");
+        } catch (ZFPException e) {
+            assertEquals(ZFPSimulator.STATE_OPEN | ZFPSimulator.ERR_ZERO, e.getErrorCode());
+        }
+        m_zfp.sellFree("Bread", 'A', 1.50f, 2.0f, -10.0f);
+        m_zfp.sellDB(false, 7, 1.0f, 0.0f);
+        try {
+            m_zfp.closeFiscalBon();
+            fail("closed without a payment");
+        } catch (ZFPException e) {
+            assertEquals(ZFPSimulator.STATE_OPEN | ZFPSimulator.ERR_SUBTOTAL, e.getErrorCode());
+        }
+        m_zfp.payment(ZFPAmount.parse("5.00"), 0, false);
+        assertEquals(ZFPAmount.parse("1.30"), m_zfp.getCurrentReceiptInfo().getChangeAmount());
+        m_zfp.closeFiscalBon();
+
+        assertEquals(1, m_sim.getBonNumber());
+        assertEquals(ZFPAmount.ZERO, m_sim.getTotal());
+        assertEquals(ZFPAmount.parse("3.70"), m_sim.m_daily[0]);
+    }
+
+    @Test
+    public void reportsStatusBits() throws ZFPException {
+        assertFalse(m_zfp.getStatus().isPaperOut());
+        m_sim.setStatusBits(1, 0x01, true);
+        m_zfp.openFiscalBon(1, "0000", false, false);
+        ZFPStatus status = m_zfp.getStatus();
+        assertTrue(status.isPaperOut());
+        assertTrue(status.isOpenFiscalBon());
+        m_sim.setStatusBits(1, 0x01, false);
+        assertFalse(m_zfp.getStatus().isPaperOut());
+    }
+
+    @Test
+    public void delaysBytesLikeTheLine() throws IOException {
+        m_line.setBaudRate(9600);
+        long start = System.nanoTime();
+        m_out.write(frame((byte) 0x21, "", 0x20));
+        byte[] version = read(11 + 7);
+        long elapsed = System.nanoTime() - start;
+
+        assertEquals('Z', version[4]);
+        // the frame back and forth is 25 bytes of about 1.04 ms
+        assertTrue(elapsed >= 25 * 10L * 1000000000L / 9600);
+    }
+
+    @Test
+    public void endsTheStreamWhenClosed() throws IOException {
+        m_out.write(0x04);
+        m_line.close();
+        // what is on the line still arrives
+        assertEquals(0x04, m_in.read());
+        assertEquals(-1, m_in.read());
+        // the printer is gone, nothing is answered any more
+        m_out.write(0x04);
+        assertEquals(-1, m_in.read());
+    }
+
+    private byte[] read(int len) throws IOException {
+        byte[] b = new byte[len];
+        int n = 0;
+        while (n < len) {
+            int r = m_in.read(b, n, len - n);
+            assertTrue(0 < r);
+            n += r;
+        }
+        return b;
+    }
+
+    private static byte[] frame(byte cmd, String data, int nbl) {
+        ZFPFrameEncoder encoder = new ZFPFrameEncoder();
+        encoder.begin(cmd);
+        encoder.append(data);
+        int len = encoder.end();
+        encoder.seal(0, len, nbl);
+        return Arrays.copyOf(encoder.getBuffer(), len);
+    }
+}
@@ -0,0 +1,115 @@
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Refresh timing and listeners of ZFPStatusMonitor, against the simulator.
+ */
+public class ZFPStatusMonitorTest extends SimulatorFixture {
+
+    private final ZFPStatusMonitor m_monitor = new ZFPStatusMonitor();
+    private final List<Long> m_changes = new ArrayList<Long>();
+
+    private final ZFPStatusMonitor.Listener m_listener = new ZFPStatusMonitor.Listener() {
+        @Override
+        public void onStatusChanged(ZFPStatus previous, ZFPStatus current, long changed) {
+            m_changes.add(changed);
+        }
+    };
+
+    @Test
+    public void refreshesWhenDue() throws ZFPException {
+        long now = System.nanoTime();
+        // no status yet
+        assertEquals(0, m_monitor.getRefreshDelay(now));
+        assertNull(m_monitor.getStatus());
+        assertEquals(-1, m_monitor.getAge());
+
+        m_monitor.setInterval(1000);
+        m_monitor.refresh(m_zfp);
+        assertNotNull(m_monitor.getStatus());
+        now = System.nanoTime();
+        long delay = m_monitor.getRefreshDelay(now);
+        assertTrue(0 < delay);
+        assertTrue(1000 * 1000000L >= delay);
+        assertEquals(0, m_monitor.getRefreshDelay(now + 1000 * 1000000L));
+
+        m_monitor.invalidate();
+        assertEquals(0, m_monitor.getRefreshDelay(now));
+    }
+
+    @Test
+    public void refreshesOnlyWhenStaleWithoutInterval() throws ZFPException {
+        m_monitor.setInterval(0);
+        m_monitor.refresh(m_zfp);
+        assertEquals(-1, m_monitor.getRefreshDelay(System.nanoTime()));
+        m_monitor.invalidate();
+        assertEquals(0, m_monitor.getRefreshDelay(System.nanoTime()));
+    }
+
+    @Test
+    public void reportsChangedAlarms() throws ZFPException {
+        m_monitor.addListener(m_listener);
+        m_monitor.refresh(m_zfp);
+        // the first status reports only the alarms which are set, there are none
+        assertTrue(m_changes.isEmpty());
+
+        m_sim.setStatusBits(1, 0x01, true);
+        m_monitor.refresh(m_zfp);
+        assertEquals(1, m_changes.size());
+        assertEquals(ZFPStatusMonitor.PAPER_OUT, (long) m_changes.get(0));
+        assertTrue(m_monitor.getStatus().isPaperOut());
+
+        // an open receipt is not watched by default
+        m_zfp.openFiscalBon(1, "0000", false, false);
+        m_monitor.refresh(m_zfp);
+        assertEquals(1, m_changes.size());
+
+        m_monitor.setWatchedFlags(ZFPStatusMonitor.OPEN_FISCAL_BON);
+        m_sim.setStatusBits(1, 0x01, false);
+        m_zfp.sellFree("Bread", 'A', 1.10f, 1.0f, 0.0f);
+        m_zfp.payment(ZFPAmount.parse("1.10"), 0, false);
+        m_zfp.closeFiscalBon();
+        m_monitor.refresh(m_zfp);
+        assertEquals(2, m_changes.size());
+        assertEquals(ZFPStatusMonitor.OPEN_FISCAL_BON, (long) m_changes.get(1));
+    }
+
+    @Test
+    public void informsEveryListener() throws ZFPException {
+        m_monitor.addListener(new ZFPStatusMonitor.Listener() {
+            @Override
+            public void onStatusChanged(ZFPStatus previous, ZFPStatus current, long changed) {
+                throw new IllegalStateException("listener");
+            }
+        });
+        m_monitor.addListener(m_listener);
+        m_sim.setStatusBits(1, 0x01, true);
+        m_monitor.refresh(m_zfp);
+        assertEquals(1, m_changes.size());
+
+        m_monitor.removeListener(m_listener);
+        m_sim.setStatusBits(1, 0x01, false);
+        m_monitor.refresh(m_zfp);
+        assertEquals(1, m_changes.size());
+    }
+
+    @Test
+    public void keepsStatusAfterFailure() throws ZFPException {
+        m_monitor.refresh(m_zfp);
+        ZFPStatus status = m_monitor.getStatus();
+        m_sim.close();
+        try {
+            m_monitor.refresh(m_zfp);
+            fail("the printer answered");
+        } catch (ZFPException e) {
+            assertSame(e, m_monitor.getLastError());
+        }
+        assertSame(status, m_monitor.getStatus());
+    }
+}
@@ -0,0 +1,110 @@
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Learned timeouts of ZFPTimeoutPolicy and the deadline of ZFPLib, against the simulator.
+ */
+public class ZFPTimeoutPolicyTest extends SimulatorFixture {
+
+    private static final long MS = 1000000L;
+
+    private final ZFPTimeoutPolicy m_policy = new ZFPTimeoutPolicy();
+
+    @Test
+    public void startsFromTheDefaults() {
+        assertEquals(ZFPTimeoutPolicy.FAST_TIMEOUT, m_policy.getTimeout((byte) 0x04));
+        assertEquals(ZFPTimeoutPolicy.FAST_TIMEOUT, m_policy.getTimeout((byte) 0x72));
+        assertEquals(ZFPTimeoutPolicy.DEFAULT_TIMEOUT, m_policy.getTimeout((byte) 0x31));
+        assertEquals(ZFPTimeoutPolicy.REPORT_TIMEOUT, m_policy.getTimeout((byte) 0x7C));
+    }
+
+    @Test
+    public void learnsFromEnoughSamples() {
+        for (int i = 1; i < ZFPTimeoutPolicy.MIN_SAMPLES; i++)
+            m_policy.record((byte) 0x21, 600 * MS);
+        assertEquals(ZFPTimeoutPolicy.FAST_TIMEOUT, m_policy.getTimeout((byte) 0x21));
+
+        // 600 ms is in the bucket up to 1023 ms
+        m_policy.record((byte) 0x21, 600 * MS);
+        assertEquals(2048, m_policy.getTimeout((byte) 0x21));
+
+        m_policy.setAdaptive(false);
+        assertEquals(ZFPTimeoutPolicy.FAST_TIMEOUT, m_policy.getTimeout((byte) 0x21));
+    }
+
+    @Test
+    public void shortensOnlyFastCommands() {
+        for (int i = 0; i < ZFPTimeoutPolicy.MIN_SAMPLES; i++) {
+            m_policy.record((byte) 0x20, 5 * MS);
+            m_policy.record((byte) 0x31, 5 * MS);
+        }
+        assertEquals(ZFPTimeoutPolicy.MIN_TIMEOUT, m_policy.getTimeout((byte) 0x20));
+        assertEquals(ZFPTimeoutPolicy.DEFAULT_TIMEOUT, m_policy.getTimeout((byte) 0x31));
+    }
+
+    @Test
+    public void growsAfterTimeoutsUpToTheLimit() {
+        for (int i = 0; i < ZFPTimeoutPolicy.MIN_SAMPLES; i++)
+            m_policy.record((byte) 0x77, 90000 * MS);
+        assertEquals(ZFPTimeoutPolicy.MAX_TIMEOUT, m_policy.getTimeout((byte) 0x77));
+    }
+
+    @Test
+    public void setTimeoutForgetsSamples() {
+        for (int i = 0; i < ZFPTimeoutPolicy.MIN_SAMPLES; i++)
+            m_policy.record((byte) 0x21, 600 * MS);
+        m_policy.setTimeout((byte) 0x21, 50);
+        assertEquals(50, m_policy.getTimeout((byte) 0x21));
+    }
+
+    @Test
+    public void halvesOldSamples() {
+        for (int i = 0; i < ZFPTimeoutPolicy.WINDOW - 1; i++)
+            m_policy.record((byte) 0x21, 5 * MS);
+        m_policy.record((byte) 0x21, 600 * MS);
+        // the single slow sample is gone after the window, the fast ones remain
+        assertEquals(ZFPTimeoutPolicy.MIN_TIMEOUT, m_policy.getTimeout((byte) 0x21));
+    }
+
+    @Test
+    public void failsAtTheTimeout() throws ZFPException {
+        m_sim.setByteDelay(2 * MS);
+        m_zfp.setRetryPolicy(ZFPRetryPolicy.NONE);
+        m_zfp.getTimeoutPolicy().setTimeout((byte) 0x21, 20);
+        try {
+            m_zfp.getVersion();
+            fail("the response came in time");
+        } catch (ZFPException e) {
+            assertEquals(0x102, e.getErrorCode());
+        }
+    }
+
+    @Test
+    public void failsAtTheDeadline() throws ZFPException {
+        // the handshake takes about 60 ms, the version about 250 ms more
+        m_sim.setByteDelay(10 * MS);
+        long start = System.nanoTime();
+        m_zfp.setDeadline(start + 150 * MS);
+        try {
+            m_zfp.getVersion();
+            fail("the response came before the deadline");
+        } catch (ZFPException e) {
+            assertEquals(0x102, e.getErrorCode());
+        }
+        long elapsed = (System.nanoTime() - start) / MS;
+        assertTrue(elapsed + " ms", elapsed < ZFPTimeoutPolicy.FAST_TIMEOUT);
+        assertEquals(0, m_zfp.getRetryCount());
+    }
+
+    @Test
+    public void deadlineDoesNotExtendTimeout() throws ZFPException {
+        long start = System.nanoTime();
+        m_zfp.setDeadline(start + 60000 * MS);
+        assertEquals(start + ZFPTimeoutPolicy.FAST_TIMEOUT * MS, m_zfp.getDeadline((byte) 0x21, start));
+        m_zfp.setDeadline(0);
+        assertEquals("ZFP-SIM 1.0", m_zfp.getVersion());
+    }
+}
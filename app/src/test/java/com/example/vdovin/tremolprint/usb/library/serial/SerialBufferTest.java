@@ -0,0 +1,105 @@
+package com.example.vdovin.tremolprint.usb.library.serial;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * The write ring of SerialBuffer, drained like the write thread of UsbSerialDevice.
+ */
+public class SerialBufferTest {
+
+    private static final int SIZE = SerialBuffer.DEFAULT_WRITE_BUFFER_SIZE;
+
+    private final SerialBuffer m_buffer = new SerialBuffer(true);
+
+    @Test
+    public void keepsOrderAcrossTheEnd() {
+        m_buffer.openWriteBuffer();
+        m_buffer.putWriteBuffer(new byte[SIZE - 3]);
+        assertEquals(SIZE - 3, m_buffer.awaitWriteBuffer());
+        m_buffer.releaseWriteBuffer(SIZE - 3);
+
+        m_buffer.putWriteBuffer(new byte[]{1, 2, 3, 4, 5});
+        // the ring gives the contiguous part first
+        assertEquals(3, m_buffer.awaitWriteBuffer());
+        assertEquals(SIZE - 3, m_buffer.getWriteOffset());
+        assertArrayEquals(new byte[]{1, 2, 3}, take(3));
+        assertEquals(2, m_buffer.awaitWriteBuffer());
+        assertEquals(0, m_buffer.getWriteOffset());
+        assertArrayEquals(new byte[]{4, 5}, take(2));
+    }
+
+    @Test
+    public void blocksWriterUntilDrained() throws Exception {
+        m_buffer.openWriteBuffer();
+        final byte[] data = new byte[3 * SIZE];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) (i * 7);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                m_buffer.putWriteBuffer(data);
+            }
+        });
+        writer.start();
+
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        while (sent.size() < data.length) {
+            int n = m_buffer.awaitWriteBuffer();
+            sent.write(take(n));
+        }
+        writer.join(1000);
+        assertFalse(writer.isAlive());
+        assertArrayEquals(data, sent.toByteArray());
+    }
+
+    @Test
+    public void resetWakesBlockedWriter() throws Exception {
+        m_buffer.openWriteBuffer();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                m_buffer.putWriteBuffer(new byte[2 * SIZE]);
+            }
+        });
+        writer.start();
+        writer.join(50);
+        assertTrue(writer.isAlive());
+
+        m_buffer.resetWriteBuffer();
+        writer.join(1000);
+        assertFalse(writer.isAlive());
+
+        // what was left before the reset is not sent by the next write thread
+        m_buffer.openWriteBuffer();
+        m_buffer.putWriteBuffer(new byte[]{9});
+        assertEquals(1, m_buffer.awaitWriteBuffer());
+        assertArrayEquals(new byte[]{9}, take(1));
+    }
+
+    @Test
+    public void resetWakesWaitingReader() throws Exception {
+        m_buffer.openWriteBuffer();
+        Thread resetter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SerialInputStreamTest.sleep(20);
+                m_buffer.resetWriteBuffer();
+            }
+        });
+        resetter.start();
+        assertEquals(0, m_buffer.awaitWriteBuffer());
+        resetter.join();
+    }
+
+    private byte[] take(int length) {
+        int offset = m_buffer.getWriteOffset();
+        byte[] b = Arrays.copyOfRange(m_buffer.getWriteArray(), offset, offset + length);
+        m_buffer.releaseWriteBuffer(length);
+        return b;
+    }
+}
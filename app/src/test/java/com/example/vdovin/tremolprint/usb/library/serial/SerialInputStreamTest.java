@@ -0,0 +1,130 @@
+package com.example.vdovin.tremolprint.usb.library.serial;
+
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * The receive ring of SerialInputStream and the end of a blocked read.
+ */
+public class SerialInputStreamTest {
+
+    private final SerialInputStream m_input = new SerialInputStream(device(), 8);
+    private final byte[] m_buf = new byte[16];
+
+    @Test
+    public void keepsOrderAcrossTheEnd() throws Exception {
+        m_input.onReceivedData(new byte[]{1, 2, 3, 4, 5});
+        assertEquals(3, m_input.read(m_buf, 0, 3));
+        m_input.onReceivedData(new byte[]{6, 7, 8, 9, 10});
+        assertEquals(7, m_input.available());
+
+        assertEquals(4, m_input.read());
+        assertEquals(6, m_input.read(m_buf, 0, 16));
+        assertArrayEquals(new byte[]{5, 6, 7, 8, 9, 10}, Arrays.copyOf(m_buf, 6));
+        assertEquals(0, m_input.available());
+    }
+
+    @Test
+    public void dropsWhatDoesNotFit() throws Exception {
+        m_input.onReceivedData(new byte[]{1, 2, 3, 4, 5, 6});
+        m_input.onReceivedData(new byte[]{7, 8, 9, 10});
+        assertEquals(8, m_input.available());
+        assertEquals(2, m_input.getOverflowCount());
+        assertEquals(8, m_input.read(m_buf, 0, 16, 0));
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}, Arrays.copyOf(m_buf, 8));
+    }
+
+    @Test
+    public void returnsNothingAfterTheTimeout() throws Exception {
+        long start = System.nanoTime();
+        assertEquals(0, m_input.read(m_buf, 0, 1, 20));
+        assertTrue(System.nanoTime() - start >= 20 * 1000000L);
+    }
+
+    @Test
+    public void wakesReaderOnData() throws Exception {
+        Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sleep(20);
+                m_input.onReceivedData(new byte[]{42});
+            }
+        });
+        sender.start();
+        assertEquals(42, m_input.read());
+        sender.join();
+    }
+
+    @Test
+    public void deliversBufferedBytesAfterClose() throws Exception {
+        m_input.onReceivedData(new byte[]{1, 2});
+        m_input.close();
+        assertEquals(2, m_input.read(m_buf, 0, 16));
+        assertEquals(-1, m_input.read());
+        assertEquals(-1, m_input.read(m_buf, 0, 16));
+    }
+
+    @Test
+    public void closeWakesReader() throws Exception {
+        Thread closer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sleep(20);
+                m_input.close();
+            }
+        });
+        closer.start();
+        assertEquals(-1, m_input.read());
+        closer.join();
+    }
+
+    @Test
+    public void interruptEndsTheWait() throws Exception {
+        final Thread reader = Thread.currentThread();
+        Thread interrupter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sleep(20);
+                reader.interrupt();
+            }
+        });
+        interrupter.start();
+        try {
+            m_input.read();
+            fail("the read returned");
+        } catch (InterruptedIOException expected) {
+        }
+        // the interrupt is kept for the caller
+        assertTrue(Thread.interrupted());
+        interrupter.join();
+
+        m_input.onReceivedData(new byte[]{7});
+        assertEquals(7, m_input.read());
+    }
+
+    static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // only read(UsbReadCallback) is called, by the constructor
+    static UsbSerialInterface device() {
+        return (UsbSerialInterface) Proxy.newProxyInstance(UsbSerialInterface.class.getClassLoader(),
+                new Class<?>[]{UsbSerialInterface.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return 0;
+                    }
+                });
+    }
+}
@@ -0,0 +1,125 @@
+package com.example.vdovin.tremolprint.usb.library.serial;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * The record ring of WireTrace and its file format, read back with WireTrace.Reader.
+ */
+public class WireTraceTest {
+
+    // the smallest ring, one header and the longest record
+    private final WireTrace m_trace = new WireTrace(0);
+
+    @Test
+    public void readsBackTheRecords() throws IOException {
+        m_trace.record(WireTrace.TX, new byte[]{9, 1, 2, 9}, 1, 2);
+        ByteBuffer rx = ByteBuffer.wrap(new byte[]{3, 4, 5});
+        rx.position(1);
+        m_trace.record(WireTrace.RX, rx);
+        // the position of the buffer is left alone
+        assertEquals(1, rx.position());
+
+        WireTrace.Reader reader = reader();
+        assertTrue(reader.next());
+        assertEquals(WireTrace.TX, reader.getDirection());
+        assertArrayEquals(new byte[]{1, 2}, data(reader));
+        long time = reader.getTime();
+        assertTrue(reader.next());
+        assertEquals(WireTrace.RX, reader.getDirection());
+        assertArrayEquals(new byte[]{4, 5}, data(reader));
+        assertTrue(time <= reader.getTime());
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void splitsLongTransfers() throws IOException {
+        byte[] data = new byte[4096 + 10];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) i;
+        WireTrace trace = new WireTrace();
+        trace.record(WireTrace.TX, data, 0, data.length);
+
+        WireTrace.Reader reader = new WireTrace.Reader(new ByteArrayInputStream(write(trace)));
+        assertTrue(reader.next());
+        assertArrayEquals(Arrays.copyOf(data, 4096), data(reader));
+        assertTrue(reader.next());
+        assertArrayEquals(Arrays.copyOfRange(data, 4096, data.length), data(reader));
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void overwritesTheOldestRecords() throws IOException {
+        for (int i = 0; i < 1000; i++)
+            m_trace.record(WireTrace.TX, new byte[]{(byte) i, (byte) (i >> 8)}, 0, 2);
+        assertTrue(0 < m_trace.getDroppedCount());
+
+        // the records kept are the latest ones, in order, across the end of the ring
+        WireTrace.Reader reader = reader();
+        int count = 0;
+        int last = -1;
+        while (reader.next()) {
+            int i = (reader.getData()[0] & 0xFF) | ((reader.getData()[1] & 0xFF) << 8);
+            assertTrue((-1 == last) || (last + 1 == i));
+            last = i;
+            count++;
+        }
+        assertEquals(999, last);
+        assertEquals(1000, count + m_trace.getDroppedCount());
+    }
+
+    @Test
+    public void clearsTheRecords() throws IOException {
+        m_trace.record(WireTrace.RX, new byte[]{1}, 0, 1);
+        m_trace.clear();
+        assertFalse(reader().next());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        new WireTrace.Reader(new ByteArrayInputStream("not a trace at all".getBytes()));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedTrace() throws IOException {
+        m_trace.record(WireTrace.TX, new byte[]{1, 2, 3}, 0, 3);
+        byte[] file = write(m_trace);
+        WireTrace.Reader reader = new WireTrace.Reader(new ByteArrayInputStream(Arrays.copyOf(file, file.length - 1)));
+        reader.next();
+    }
+
+    @Test
+    public void recordsWhatSerialBufferWrites() throws IOException {
+        SerialBuffer buffer = new SerialBuffer(true);
+        buffer.setWireTrace(m_trace);
+        buffer.openWriteBuffer();
+        buffer.putWriteBuffer(new byte[]{1, 2, 3}, 1, 2);
+
+        WireTrace.Reader reader = reader();
+        assertTrue(reader.next());
+        assertEquals(WireTrace.TX, reader.getDirection());
+        assertArrayEquals(new byte[]{2, 3}, data(reader));
+        assertFalse(reader.next());
+    }
+
+    private WireTrace.Reader reader() throws IOException {
+        return new WireTrace.Reader(new ByteArrayInputStream(write(m_trace)));
+    }
+
+    private static byte[] write(WireTrace trace) throws IOException {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        trace.writeTo(file);
+        return file.toByteArray();
+    }
+
+    private static byte[] data(WireTrace.Reader reader) {
+        return Arrays.copyOf(reader.getData(), reader.getLength());
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * ZFPLibBenchmark.java
+ *
+ */
+
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+import com.example.vdovin.tremolprint.protocol.sun.PrintfFormat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/** Frame encoding, CRC, number formatting and response parsing of {@link ZFPLib} */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ZFPLibBenchmark {
+
+    protected ZFPSimulator m_sim;
+    protected ZFPLib m_zfp;
+    protected ZFPFrameEncoder m_encoder;
+    protected PrintfFormat m_printf;
+    protected ZFPAmount m_price;
+    protected ZFPAmount m_quantity;
+    protected ZFPAmount m_sum;
+
+    protected byte[] m_frame;
+    protected byte[] m_status;
+    protected byte[] m_receiptInfo;
+    protected byte[] m_article;
+
+    @Setup(Level.Trial)
+    public void setup() throws ZFPException {
+        m_sim = new ZFPSimulator();
+        m_zfp = new ZFPLib(m_sim.getInputStream(), m_sim.getOutputStream());
+        m_encoder = new ZFPFrameEncoder();
+        m_printf = new PrintfFormat("%010.2f");
+        m_price = ZFPAmount.parse("2.34");
+        m_quantity = ZFPAmount.parse("1.000");
+        m_sum = ZFPAmount.parse("10.00");
+
+        m_encoder.reset();
+        m_frame = copy(m_encoder.getBuffer(), ZFPLib.encodeSellFree(m_encoder, "Test article", '1',
+                2.34f, 1.0f, 0.0f, ZFPException.ZFP_LANG_EN));
+
+        // real responses, taken from the simulator
+        m_zfp.getStatus();
+        m_status = copy(m_zfp.m_receiveBuf, m_zfp.m_receiveLen);
+        m_zfp.openFiscalBon(1, "0", false, false);
+        m_zfp.sellFree("Test article", '1', 2.34f, 1.0f, 0.0f);
+        m_zfp.getCurrentReceiptInfo();
+        m_receiptInfo = copy(m_zfp.m_receiveBuf, m_zfp.m_receiveLen);
+
+        m_article = articleFrame();
+        new ZFPArticle(1, m_article, m_article.length, ZFPException.ZFP_LANG_EN);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        m_zfp.close();
+        m_sim.close();
+    }
+
+    @Benchmark
+    public boolean makeCRC() {
+        return m_zfp.makeCRC(m_frame, m_frame.length, 0);
+    }
+
+    @Benchmark
+    public int encodeSellFree() throws ZFPException {
+        m_encoder.reset();
+        return ZFPLib.encodeSellFree(m_encoder, "Test article", '1', 2.34f, 1.0f, 0.0f, ZFPException.ZFP_LANG_EN);
+    }
+
+    @Benchmark
+    public int encodeSellFreeAmount() throws ZFPException {
+        m_encoder.reset();
+        return ZFPLib.encodeSellFree(m_encoder, "Test article", '1', m_price, m_quantity, ZFPAmount.ZERO,
+                ZFPException.ZFP_LANG_EN);
+    }
+
+    @Benchmark
+    public int encodePayment() throws ZFPException {
+        m_encoder.reset();
+        return ZFPLib.encodePayment(m_encoder, 10.0f, 0, false, ZFPException.ZFP_LANG_EN);
+    }
+
+    @Benchmark
+    public int encodePaymentAmount() throws ZFPException {
+        m_encoder.reset();
+        return ZFPLib.encodePayment(m_encoder, m_sum, 0, false, ZFPException.ZFP_LANG_EN);
+    }
+
+    @Benchmark
+    public String getFloatFormat() {
+        return ZFPLib.getFloatFormat(1234.56f, 2);
+    }
+
+    @Benchmark
+    public String printfFormat() {
+        return m_printf.sprintf(1234.56f);
+    }
+
+    @Benchmark
+    public ZFPStatus parseStatus() throws ZFPException {
+        return new ZFPStatus(m_status, m_status.length, ZFPException.ZFP_LANG_EN);
+    }
+
+    @Benchmark
+    public ZFPReceiptInfo parseReceiptInfo() throws ZFPException {
+        return new ZFPReceiptInfo(m_receiptInfo, m_receiptInfo.length, ZFPException.ZFP_LANG_EN);
+    }
+
+    @Benchmark
+    public ZFPArticle parseArticle() throws ZFPException {
+        return new ZFPArticle(1, m_article, m_article.length, ZFPException.ZFP_LANG_EN);
+    }
+
+    protected static byte[] copy(byte[] buf, int len) {
+        byte[] res = new byte[len];
+        System.arraycopy(buf, 0, res, 0, len);
+        return res;
+    }
+
+    // laid out the way ZFPArticle reads it: number, name at 10, values from 31, date at 75
+    protected static byte[] articleFrame() {
+        StringBuilder data = new StringBuilder();
+        data.append("00001;");
+        data.append("Test article        ");
+        data.append(';');
+        data.append("    2.34;1;    234.00;   100.000;00100");
+        while (data.length() < 70)
+            data.append(' ');
+        data.append(';');
+        data.append("16-10-2026 12:30");
+        data.append(";0");
+
+        ZFPFrameEncoder enc = new ZFPFrameEncoder();
+        enc.begin((byte) 0x6B);
+        enc.append(data.toString());
+        int len = enc.end();
+        enc.seal(0, len, 0x20);
+        return copy(enc.getBuffer(), len);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * ZFPReceiptBenchmark.java
+ *
+ */
+
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/** Whole receipts printed on {@link ZFPSimulator}, including pings and responses */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ZFPReceiptBenchmark {
+
+    /** Simulated baud rate, 0 measures the host side only */
+    @Param({"0", "115200"})
+    public int baudRate;
+
+    /** Session window in milliseconds, 0 pings before every command */
+    @Param({"0", "500"})
+    public long sessionWindow;
+
+    protected ZFPSimulator m_sim;
+    protected ZFPLib m_zfp;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        m_sim = new ZFPSimulator(baudRate);
+        m_zfp = new ZFPLib(m_sim.getInputStream(), m_sim.getOutputStream());
+        m_zfp.setSessionWindow(sessionWindow);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        m_zfp.close();
+        m_sim.close();
+    }
+
+    @Benchmark
+    public void commands() throws ZFPException {
+        m_zfp.openFiscalBon(1, "0", false, false);
+        m_zfp.sellFree("Test article", '1', 2.34f, 1.0f, 0.0f);
+        m_zfp.sellFree("Test article2", '1', 1.0f, 3.54f, 0.0f);
+        m_zfp.payment(10.0f, 0, false);
+        m_zfp.closeFiscalBon();
+    }
+
+    @Benchmark
+    public ZFPReceipt printReceipt() throws ZFPException {
+        ZFPReceipt receipt = new ZFPReceipt()
+                .openFiscalBon(1, "0", false, false)
+                .sellFree("Test article", '1', 2.34f, 1.0f, 0.0f)
+                .sellFree("Test article2", '1', 1.0f, 3.54f, 0.0f)
+                .payment(10.0f, 0, false)
+                .closeFiscalBon();
+        m_zfp.printReceipt(receipt);
+        return receipt;
+    }
+}
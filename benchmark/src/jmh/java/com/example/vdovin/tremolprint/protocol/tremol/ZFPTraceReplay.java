@@ -0,0 +1,445 @@
+/*
+ * ZFPTraceReplay.java
+ *
+ */
+
+package com.example.vdovin.tremolprint.protocol.tremol;
+
+import com.example.vdovin.tremolprint.usb.library.serial.WireTrace;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/** ZFPTraceReplay plays the printer side of a recorded {@link WireTrace} back to {@link ZFPLib}.
+ *  <p>
+ *  The commands sent in the trace are sent again through the ZFPLib under test: the command
+ *  and the data are taken from the trace, the framing, the NBL, the pings, resends and waits
+ *  are left to ZFPLib. So the trace has to start with the first command of its ZFPLib, a
+ *  trace cut from a running session diverges at the NBL of its first frame.
+ *  Every byte ZFPLib writes is compared with the recorded TX bytes. A received chunk is
+ *  delivered once the TX bytes sent before it in the trace have been written again, after
+ *  the delay it had in the trace multiplied by the time scale. So a slow printer answers
+ *  as slowly as in the shop, whatever ZFPLib does in between.
+ *  <p>
+ *  The first byte which differs from the trace ends the replay, the answers would not fit
+ *  any more. The result gives the receipt latency, the throughput and the divergence.
+ *  <pre>
+ *  ZFPTraceReplay replay = new ZFPTraceReplay(new WireTrace.Reader(in), 1.0);
+ *  ZFPLib zfp = new ZFPLib(replay.getDecoder(), replay.getOutputStream());
+ *  System.out.print(replay.run(zfp));
+ *  </pre>
+ *  A replay runs once.
+ */
+public class ZFPTraceReplay {
+
+    protected static final byte OPEN_RECEIPT = 0x30;
+    protected static final byte CLOSE_RECEIPT = 0x38;
+
+    /** A received chunk of the trace */
+    protected static class Rx {
+        protected byte[] m_data;
+        // number of TX bytes written before it in the trace
+        protected long m_afterTx;
+        protected long m_time;
+        // trace time it is delayed from, the last TX or RX before it
+        protected long m_anchor;
+        // replay time the TX bytes before it were written again
+        protected long m_reached;
+    }
+
+    /** Commands sent after one ping handshake, e.g. the frames of a receipt */
+    protected static class Unit {
+        protected boolean m_pings;
+        protected final List<byte[]> m_frames = new ArrayList<byte[]>();
+    }
+
+    protected final double m_scale;
+    protected final byte[] m_tx;
+    protected final List<Rx> m_rx;
+    protected final List<Unit> m_units;
+    protected final long m_traceTime;
+    protected final ZFPFrameDecoder m_decoder;
+    protected final OutputStream m_output;
+
+    protected int m_txPos;
+    protected int m_reachIndex;
+    protected int m_divergence;
+    protected int m_expected;
+    protected int m_actual;
+    protected volatile boolean m_closed;
+
+    /** Creates a new instance of ZFPTraceReplay
+     *  @param reader the recorded trace
+     *  @param scale factor applied to the recorded delays, 1 for the recorded timing,
+     *  0 answers as soon as possible
+     *  @throws IOException when the trace cannot be read
+     */
+    public ZFPTraceReplay(WireTrace.Reader reader, double scale) throws IOException {
+        m_scale = Math.max(scale, 0);
+        m_rx = new ArrayList<Rx>();
+        m_units = new ArrayList<Unit>();
+        m_decoder = new ZFPFrameDecoder();
+        m_divergence = -1;
+
+        ByteArrayOutputStream tx = new ByteArrayOutputStream();
+        ZFPFrameDecoder commands = new ZFPFrameDecoder();
+        byte[] frame = new byte[ZFPFrameDecoder.FRAME_SIZE];
+        long txTime = 0;
+        long time = 0;
+        while (reader.next()) {
+            time = reader.getTime();
+            if (WireTrace.TX == reader.getDirection()) {
+                tx.write(reader.getData(), 0, reader.getLength());
+                txTime = time;
+                commands.feed(reader.getData(), 0, reader.getLength());
+                int kind;
+                while (ZFPFrameDecoder.NONE != (kind = commands.next(frame, 0)))
+                    addCommand(kind, frame, commands.getLength());
+            } else {
+                Rx rx = new Rx();
+                rx.m_data = Arrays.copyOf(reader.getData(), reader.getLength());
+                rx.m_afterTx = tx.size();
+                rx.m_time = time;
+                rx.m_anchor = m_rx.isEmpty() ? txTime : Math.max(txTime, m_rx.get(m_rx.size() - 1).m_time);
+                m_rx.add(rx);
+            }
+        }
+        m_tx = tx.toByteArray();
+        m_traceTime = time;
+
+        m_output = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                sent(b, off, len);
+            }
+        };
+    }
+
+    /** Gets the decoder ZFPLib has to read from */
+    public ZFPFrameDecoder getDecoder() {
+        return m_decoder;
+    }
+
+    /** Gets the stream ZFPLib has to write to */
+    public OutputStream getOutputStream() {
+        return m_output;
+    }
+
+    /** Sends the commands of the trace through ZFPLib
+     *  @param zfp a ZFPLib created on {@link #getDecoder()} and {@link #getOutputStream()}
+     *  @return what happened
+     */
+    public Result run(ZFPLib zfp) {
+        Result result = new Result(m_scale, m_traceTime);
+
+        Thread feeder = start();
+        long begin = System.nanoTime();
+        long receiptStart = 0;
+        try {
+            for (Unit unit : m_units) {
+                long unitStart = System.nanoTime();
+                try {
+                    if (unit.m_frames.isEmpty() && unit.m_pings)
+                        zfp.handshake((byte) 0x04);
+                    for (byte[] f : unit.m_frames) {
+                        byte cmd = f[3];
+                        if (OPEN_RECEIPT == cmd)
+                            receiptStart = unitStart;
+                        // the frame without STX, LEN, NBL, CMD and the checksum with ETX
+                        zfp.sendCommand(cmd, (7 < f.length) ? Arrays.copyOfRange(f, 4, f.length - 3) : null);
+                        result.m_commands++;
+                        if ((CLOSE_RECEIPT == cmd) && (0 != receiptStart)) {
+                            result.addReceipt(System.nanoTime() - receiptStart);
+                            receiptStart = 0;
+                        }
+                    }
+                } catch (ZFPException e) {
+                    result.m_errors++;
+                    receiptStart = 0;
+                    if (isDiverged())
+                        break;
+                }
+            }
+        } finally {
+            result.m_elapsed = System.nanoTime() - begin;
+            stop(feeder);
+        }
+
+        synchronized (this) {
+            result.m_divergence = m_divergence;
+            result.m_expected = m_expected;
+            result.m_actual = m_actual;
+            result.m_unsent = m_tx.length - m_txPos;
+        }
+        return result;
+    }
+
+    protected void addCommand(int kind, byte[] b, int len) {
+        Unit unit = m_units.isEmpty() ? null : m_units.get(m_units.size() - 1);
+        switch (kind) {
+            case ZFPFrameDecoder.ANTIECHO:
+            case ZFPFrameDecoder.PING:
+                // the pings of a handshake and their repetitions start one unit
+                if ((null == unit) || !unit.m_frames.isEmpty()) {
+                    unit = new Unit();
+                    m_units.add(unit);
+                }
+                unit.m_pings = true;
+                break;
+            case ZFPFrameDecoder.FRAME:
+            case ZFPFrameDecoder.BAD_CRC:
+                if (null == unit) {
+                    unit = new Unit();
+                    m_units.add(unit);
+                }
+                byte[] frame = Arrays.copyOf(b, len);
+                List<byte[]> frames = unit.m_frames;
+                // a resend is left to ZFPLib
+                if (frames.isEmpty() || !Arrays.equals(frames.get(frames.size() - 1), frame))
+                    frames.add(frame);
+                break;
+        }
+    }
+
+    protected synchronized void sent(byte[] b, int off, int len) throws IOException {
+        if (0 <= m_divergence)
+            throw new IOException("replay diverged at TX byte " + m_divergence);
+        for (int i = off; i < off + len; i++) {
+            if ((m_tx.length == m_txPos) || (m_tx[m_txPos] != b[i])) {
+                m_divergence = m_txPos;
+                m_expected = (m_tx.length == m_txPos) ? -1 : m_tx[m_txPos] & 0xFF;
+                m_actual = b[i] & 0xFF;
+                notifyAll();
+                throw new IOException("replay diverged at TX byte " + m_divergence);
+            }
+            m_txPos++;
+        }
+        reached();
+        notifyAll();
+    }
+
+    protected synchronized boolean isDiverged() {
+        return 0 <= m_divergence;
+    }
+
+    // marks the chunks whose TX bytes have been written
+    protected void reached() {
+        long now = System.nanoTime();
+        while ((m_reachIndex < m_rx.size()) && (m_rx.get(m_reachIndex).m_afterTx <= m_txPos))
+            m_rx.get(m_reachIndex++).m_reached = now;
+    }
+
+    protected Thread start() {
+        synchronized (this) {
+            reached();
+        }
+        Thread feeder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                feed();
+            }
+        }, "ZFPTraceReplay");
+        feeder.setDaemon(true);
+        feeder.start();
+        return feeder;
+    }
+
+    protected void stop(Thread feeder) {
+        synchronized (this) {
+            m_closed = true;
+            notifyAll();
+        }
+        try {
+            feeder.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    protected void feed() {
+        long last = 0;
+        for (Rx rx : m_rx) {
+            long due;
+            synchronized (this) {
+                try {
+                    while (!m_closed && (m_txPos < rx.m_afterTx))
+                        wait();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                due = Math.max(rx.m_reached, last) + (long) ((rx.m_time - rx.m_anchor) * m_scale);
+            }
+            // wait() would round the short gaps between the chunks up to milliseconds
+            long left;
+            while (!m_closed && (0 < (left = due - System.nanoTime())))
+                LockSupport.parkNanos(this, Math.min(left, 10000000L));
+            if (m_closed)
+                return;
+            m_decoder.feed(rx.m_data, 0, rx.m_data.length);
+            last = System.nanoTime();
+        }
+    }
+
+    /** The outcome of a replay, times in nanoseconds */
+    public static class Result {
+        protected final double m_scale;
+        protected final long m_traceTime;
+        protected long[] m_receipts = new long[16];
+        protected int m_receiptCount;
+        protected int m_commands;
+        protected int m_errors;
+        protected long m_elapsed;
+        protected int m_divergence;
+        protected int m_expected;
+        protected int m_actual;
+        protected int m_unsent;
+
+        protected Result(double scale, long traceTime) {
+            m_scale = scale;
+            m_traceTime = traceTime;
+        }
+
+        protected void addReceipt(long nanos) {
+            if (m_receipts.length == m_receiptCount)
+                m_receipts = Arrays.copyOf(m_receipts, 2 * m_receiptCount);
+            m_receipts[m_receiptCount++] = nanos;
+        }
+
+        /** Gets the number of receipts printed from 0x30 to 0x38 without an error */
+        public int getReceiptCount() {
+            return m_receiptCount;
+        }
+
+        /** Gets the latencies of the receipts in the order they were printed */
+        public long[] getReceiptLatencies() {
+            return Arrays.copyOf(m_receipts, m_receiptCount);
+        }
+
+        /** Gets a percentile of the receipt latency
+         *  @param percentile percentile between 0 and 100
+         */
+        public long getReceiptLatency(double percentile) {
+            if (0 == m_receiptCount)
+                return 0;
+            long[] sorted = getReceiptLatencies();
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(m_receiptCount * percentile / 100.0);
+            return sorted[Math.min(Math.max(rank, 1), m_receiptCount) - 1];
+        }
+
+        public int getCommandCount() {
+            return m_commands;
+        }
+
+        public int getErrorCount() {
+            return m_errors;
+        }
+
+        /** Gets the duration of the replay */
+        public long getElapsed() {
+            return m_elapsed;
+        }
+
+        /** Gets the duration of the trace */
+        public long getTraceTime() {
+            return m_traceTime;
+        }
+
+        /** Tells if ZFPLib wrote other bytes than the trace or left some of them out */
+        public boolean isDiverged() {
+            return (0 <= m_divergence) || (0 != m_unsent);
+        }
+
+        /** Gets the offset of the first TX byte which differs from the trace, -1 if there is none */
+        public int getDivergenceOffset() {
+            return m_divergence;
+        }
+
+        /** Writes the result as a few lines, times in milliseconds */
+        public void write(Writer out) throws IOException {
+            double seconds = m_elapsed / 1e9;
+            out.write("replay x" + m_scale + " of " + ZFPMetrics.Snapshot.millis(m_traceTime) + " ms trace: "
+                    + ZFPMetrics.Snapshot.millis(m_elapsed) + " ms, " + m_receiptCount + " receipts ("
+                    + rate(m_receiptCount, seconds) + "/s), " + m_commands + " commands ("
+                    + rate(m_commands, seconds) + "/s), " + m_errors + " errors\n");
+            if (0 < m_receiptCount) {
+                long sum = 0;
+                for (int i = 0; i < m_receiptCount; i++)
+                    sum += m_receipts[i];
+                out.write("receipt latency mean/p50/p99/max: " + ZFPMetrics.Snapshot.millis(sum / m_receiptCount)
+                        + "/" + ZFPMetrics.Snapshot.millis(getReceiptLatency(50))
+                        + "/" + ZFPMetrics.Snapshot.millis(getReceiptLatency(99))
+                        + "/" + ZFPMetrics.Snapshot.millis(getReceiptLatency(100)) + " ms\n");
+            }
+            if (0 <= m_divergence) {
+                out.write("DIVERGED at TX byte " + m_divergence + ": expected "
+                        + ((0 > m_expected) ? "end of trace" : ZFPMetrics.Snapshot.hex(m_expected))
+                        + ", written " + ZFPMetrics.Snapshot.hex(m_actual) + "\n");
+            } else if (0 != m_unsent) {
+                out.write("DIVERGED: the last " + m_unsent + " TX bytes of the trace were not written\n");
+            } else {
+                out.write("TX bytes match the trace\n");
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringWriter out = new StringWriter();
+            try {
+                write(out);
+            } catch (IOException e) {
+                // not thrown by StringWriter
+            }
+            return out.toString();
+        }
+
+        protected static String rate(int count, double seconds) {
+            return (0 < seconds) ? String.valueOf(Math.round(count / seconds * 10) / 10.0) : "0";
+        }
+    }
+
+    /** Replays a trace file and prints the result and the metrics of ZFPLib.
+     *  Arguments: the trace file and optionally the time scale, 1 by default.
+     */
+    public static void main(String[] args) throws IOException {
+        if (1 > args.length) {
+            System.err.println("usage: ZFPTraceReplay <trace file> [time scale]");
+            System.exit(2);
+        }
+        double scale = (1 < args.length) ? Double.parseDouble(args[1]) : 1.0;
+
+        ZFPTraceReplay replay;
+        InputStream in = new BufferedInputStream(new FileInputStream(args[0]));
+        try {
+            replay = new ZFPTraceReplay(new WireTrace.Reader(in), scale);
+        } finally {
+            in.close();
+        }
+
+        ZFPLib zfp = new ZFPLib(replay.getDecoder(), replay.getOutputStream());
+        Result result = replay.run(zfp);
+        zfp.close();
+
+        Writer out = new OutputStreamWriter(System.out, "UTF-8");
+        result.write(out);
+        zfp.getMetrics().snapshot().write(out);
+        out.flush();
+        System.exit(result.isDiverged() ? 1 : 0);
+    }
+}
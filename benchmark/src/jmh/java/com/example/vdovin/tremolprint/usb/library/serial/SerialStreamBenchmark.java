@@ -0,0 +1,122 @@
+package com.example.vdovin.tremolprint.usb.library.serial;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the stream adapters over a serial device, per byte.
+ * The read callback is invoked on the benchmark thread, the way the USB read thread does it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SerialStreamBenchmark
+{
+    private static final int CHUNK = 64;
+
+    private LoopbackDevice device;
+    private SerialInputStream input;
+    private SerialOutputStream output;
+    private byte[] chunk;
+    private byte[] dst;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        device = new LoopbackDevice();
+        input = new SerialInputStream(device);
+        output = new SerialOutputStream(device);
+        chunk = new byte[CHUNK];
+        for (int i = 0; i < CHUNK; i++)
+            chunk[i] = (byte) i;
+        dst = new byte[CHUNK];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        input.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CHUNK)
+    public int readByByte()
+    {
+        device.callback.onReceivedData(chunk);
+        int sum = 0;
+        for (int i = 0; i < CHUNK; i++)
+            sum += input.read();
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CHUNK)
+    public int readBulk() throws IOException
+    {
+        device.callback.onReceivedData(chunk);
+        int n = 0;
+        while (n < CHUNK)
+            n += input.read(dst, n, CHUNK - n);
+        return n;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CHUNK)
+    public int writeByByte()
+    {
+        for (int i = 0; i < CHUNK; i++)
+            output.write(chunk[i]);
+        output.flush();
+        return device.written;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CHUNK)
+    public int writeBulk() throws IOException
+    {
+        output.write(chunk, 0, CHUNK);
+        output.flush();
+        return device.written;
+    }
+
+    /** Serial device which only counts the written bytes and keeps the read callback */
+    static class LoopbackDevice implements UsbSerialInterface
+    {
+        UsbReadCallback callback;
+        int written;
+
+        @Override public boolean open() { return true; }
+        @Override public void write(byte[] buffer) { written += buffer.length; }
+        @Override public void write(byte[] buffer, int offset, int length) { written += length; }
+        @Override public int read(UsbReadCallback mCallback) { callback = mCallback; return 0; }
+        @Override public void close() { }
+        @Override public boolean syncOpen() { return true; }
+        @Override public int syncWrite(byte[] buffer, int timeout) { written += buffer.length; return buffer.length; }
+        @Override public int syncRead(byte[] buffer, int timeout) { return 0; }
+        @Override public void syncClose() { }
+        @Override public void setBaudRate(int baudRate) { }
+        @Override public void setDataBits(int dataBits) { }
+        @Override public void setStopBits(int stopBits) { }
+        @Override public void setParity(int parity) { }
+        @Override public void setFlowControl(int flowControl) { }
+        @Override public void setRTS(boolean state) { }
+        @Override public void setDTR(boolean state) { }
+        @Override public void getCTS(UsbCTSCallback ctsCallback) { }
+        @Override public void getDSR(UsbDSRCallback dsrCallback) { }
+        @Override public void getBreak(UsbBreakCallback breakCallback) { }
+        @Override public void getFrame(UsbFrameCallback frameCallback) { }
+        @Override public void getOverrun(UsbOverrunCallback overrunCallback) { }
+        @Override public void getParity(UsbParityCallback parityCallback) { }
+    }
+}
@@ -0,0 +1,45 @@
+package com.example.vdovin.tremolprint.usb.library.serial;
+
+import com.example.vdovin.tremolprint.protocol.tremol.ZFPTraceFormatter;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Prints a wire trace pulled from the device as annotated ZFP frames.
+ *
+ *   adb shell run-as com.example.vdovin.tremolprint cat files/wire.trace > wire.trace
+ *   ./gradlew :benchmark:decodeTrace -Ptrace=wire.trace
+ */
+public class WireTraceDump
+{
+    public static void main(String[] args) throws IOException
+    {
+        if(args.length != 1)
+        {
+            System.err.println("usage: WireTraceDump <trace file>");
+            System.exit(2);
+        }
+
+        InputStream in = new BufferedInputStream(new FileInputStream(args[0]));
+        Writer out = new OutputStreamWriter(System.out, "UTF-8");
+        try
+        {
+            WireTrace.Reader reader = new WireTrace.Reader(in);
+            out.write("trace started " + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date(reader.getStartMillis())) + "\n");
+            ZFPTraceFormatter formatter = new ZFPTraceFormatter(out);
+            while(reader.next())
+                formatter.format(reader.getDirection() == WireTrace.TX, reader.getTime(), reader.getData(), 0, reader.getLength());
+        }finally
+        {
+            out.flush();
+            in.close();
+        }
+    }
+}